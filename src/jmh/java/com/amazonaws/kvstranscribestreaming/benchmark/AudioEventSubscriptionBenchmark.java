@@ -0,0 +1,116 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPumpExecutor;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSAudioReader;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
+import com.amazonaws.kvstranscribestreaming.transcribe.KVSByteToAudioEventSubscription;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end cost of turning one synthetic call of {@link #CALL_SECONDS} seconds into AudioEvents: MKV parsing,
+ * chunking, the AudioEvent copy and writing the recording, as done by KVSByteToAudioEventSubscription. One operation
+ * is a whole call, so gc.alloc.rate.norm is the allocation per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioEventSubscriptionBenchmark {
+
+    private static final int CALL_SECONDS = 10;
+    private static final int FRAME_SIZE_IN_BYTES = 320;
+    private static final int FRAMES_PER_FRAGMENT = 50;
+    private static final int SAMPLE_RATE = 8000;
+
+    @Param({"frames", "duration"})
+    public String chunking;
+
+    private byte[] mkvStream;
+    private AudioChunkPolicy chunkPolicy;
+    private MetricsUtil metricsUtil;
+    private AudioPumpExecutor audioPumpExecutor;
+    private final OutputStream recording = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void createStream() {
+        int frameMillis = FRAME_SIZE_IN_BYTES * 1000 / (SAMPLE_RATE * 2);
+        mkvStream = SyntheticMkvStream.create(CALL_SECONDS * 1000 / (frameMillis * FRAMES_PER_FRAGMENT),
+                FRAMES_PER_FRAGMENT, FRAME_SIZE_IN_BYTES, SAMPLE_RATE);
+        chunkPolicy = "duration".equals(chunking)
+                ? AudioChunkPolicy.duration(100, SAMPLE_RATE, 2, 0)
+                : AudioChunkPolicy.frames(AudioChunkPolicy.DEFAULT_CHUNK_SIZE_IN_FRAMES);
+        // only used if the reader has to resume, which never happens on an in memory stream
+        metricsUtil = new MetricsUtil(null);
+        audioPumpExecutor = new AudioPumpExecutor(1, metricsUtil);
+    }
+
+    @Benchmark
+    public void produceAudioEvents(Blackhole blackhole) throws InterruptedException, IOException {
+        try (KVSAudioReader reader = new KVSAudioReader((streamArn, fragmentNumber) -> new ByteArrayInputStream(mkvStream),
+                "benchmark", null, new KVSTransactionIdTagProcessor(SyntheticMkvStream.TRANSACTION_ID), metricsUtil)) {
+            CountDownLatch done = new CountDownLatch(1);
+            Subscriber<AudioStream> subscriber = new Subscriber<AudioStream>() {
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(AudioStream audioEvent) {
+                    blackhole.consume(audioEvent);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    blackhole.consume(t);
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            };
+
+            KVSByteToAudioEventSubscription subscription = new KVSByteToAudioEventSubscription(subscriber, reader,
+                    "benchmark", recording, true, chunkPolicy, audioPumpExecutor);
+            subscriber.onSubscribe(subscription);
+            subscription.start();
+            done.await();
+            subscription.cancel();
+        }
+    }
+}
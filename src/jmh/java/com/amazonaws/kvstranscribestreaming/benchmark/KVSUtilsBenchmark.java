@@ -0,0 +1,153 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPool;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunker;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioFrameSource;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
+import com.amazonaws.kvstranscribestreaming.utils.KVSUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per frame cost of pulling audio out of a KVS stream. Run with the gc profiler (enabled in build.gradle) and compare
+ * gc.alloc.rate.norm: copyFramePayload is the extraction step on its own and must report 0 B/op, while the readFrame
+ * benchmarks also include whatever the MKV parser allocates for every element it reads. The readChunk benchmarks
+ * compare both getByteBufferFromStream overloads with filling a reused chunk buffer through an AudioChunker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVSUtilsBenchmark {
+
+    private static final int FRAME_SIZE_IN_BYTES = 320;
+    private static final int FRAMES_PER_CHUNK = 4;
+
+    private byte[] mkvStream;
+    private StreamingMkvReader streamingMkvReader;
+    private FragmentMetadataVisitor fragmentVisitor;
+    private KVSTransactionIdTagProcessor tagProcessor;
+    private MkvDataElement simpleBlock;
+    private MkvDataElement nextFrame;
+    private final ByteBuffer audioBuffer = ByteBuffer.allocate(4096);
+    private final AudioChunker audioChunker = new AudioChunker(AudioChunkPolicy.frames(FRAMES_PER_CHUNK),
+            new AudioChunkPool(AudioChunkPool.DEFAULT_CHUNK_CAPACITY, 1));
+    private final AudioFrameSource frameSource = new AudioFrameSource() {
+        @Override
+        public int readAudioFrame(ByteBuffer audioBuffer) throws MkvElementVisitException {
+            if (peekAudioFrameSize() == 0) {
+                return 0;
+            }
+            int bytesRead = KVSUtils.copyFramePayload(nextFrame, audioBuffer);
+            nextFrame = null;
+            return bytesRead;
+        }
+
+        @Override
+        public int peekAudioFrameSize() throws MkvElementVisitException {
+            if (nextFrame == null) {
+                nextFrame = KVSUtils.nextAudioFrame(streamingMkvReader, fragmentVisitor, tagProcessor);
+            }
+            return nextFrame == null ? 0 : KVSUtils.framePayloadLength(nextFrame);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void createStream() throws MkvElementVisitException {
+        mkvStream = SyntheticMkvStream.create(50, 100, FRAME_SIZE_IN_BYTES, 8000);
+        openStream();
+
+        // keep a single parsed SimpleBlock around to measure extraction on its own
+        while (simpleBlock == null && streamingMkvReader.mightHaveNext()) {
+            Optional<MkvElement> element = streamingMkvReader.nextIfAvailable();
+            if (element.isPresent()
+                    && MkvTypeInfos.SIMPLEBLOCK.equals(element.get().getElementMetaData().getTypeInfo())) {
+                simpleBlock = (MkvDataElement) element.get();
+            }
+        }
+        openStream();
+    }
+
+    @Benchmark
+    public int copyFramePayload() {
+        audioBuffer.clear();
+        return KVSUtils.copyFramePayload(simpleBlock, audioBuffer);
+    }
+
+    @Benchmark
+    public int readFrameIntoPooledBuffer() throws MkvElementVisitException {
+        audioBuffer.clear();
+        int bytesRead = KVSUtils.readAudioFrame(streamingMkvReader, fragmentVisitor, tagProcessor, audioBuffer);
+        if (bytesRead == 0) {
+            openStream();
+        }
+        return bytesRead;
+    }
+
+    @Benchmark
+    public ByteBuffer readFrameWithValueCopy() throws MkvElementVisitException {
+        ByteBuffer frame = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor);
+        if (frame.remaining() == 0) {
+            openStream();
+        }
+        return frame;
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public ByteBuffer readChunkWithValueCopy() throws MkvElementVisitException {
+        ByteBuffer chunk = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor,
+                FRAMES_PER_CHUNK);
+        if (chunk.remaining() == 0) {
+            openStream();
+        }
+        return chunk;
+    }
+
+    @Benchmark
+    public int readChunkIntoPooledBuffer() throws MkvElementVisitException {
+        int chunkSize = audioChunker.fill(frameSource);
+        if (chunkSize == 0) {
+            openStream();
+        }
+        return chunkSize;
+    }
+
+    private void openStream() {
+        streamingMkvReader = StreamingMkvReader.createDefault(
+                new InputStreamParserByteSource(new ByteArrayInputStream(mkvStream)));
+        tagProcessor = new KVSTransactionIdTagProcessor(SyntheticMkvStream.TRANSACTION_ID);
+        fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+        nextFrame = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void closeChunker() {
+        audioChunker.close();
+    }
+}
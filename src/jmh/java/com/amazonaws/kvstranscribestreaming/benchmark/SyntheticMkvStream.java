@@ -0,0 +1,164 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds an in-memory MKV byte stream shaped like the output of a KVS GetMedia call on a Voice Connector stream:
+ * every fragment carries its own EBML header and segment with track info, the KVS fragment metadata tags, the Chime
+ * TransactionId tag and one cluster of 16 bit PCM audio frames.
+ */
+public final class SyntheticMkvStream {
+
+    public static final String TRANSACTION_ID = "0ba7d4f8-7b6c-4ef6-a6a6-5f2e0e5b2d61";
+
+    private static final int EBML_HEADER = 0x1A45DFA3;
+    private static final int DOC_TYPE = 0x4282;
+    private static final int SEGMENT = 0x18538067;
+    private static final int INFO = 0x1549A966;
+    private static final int TIMECODE_SCALE = 0x2AD7B1;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int TRACK_UID = 0x73C5;
+    private static final int TRACK_TYPE = 0x83;
+    private static final int CODEC_ID = 0x86;
+    private static final int AUDIO = 0xE1;
+    private static final int SAMPLING_FREQUENCY = 0xB5;
+    private static final int CHANNELS = 0x9F;
+    private static final int BIT_DEPTH = 0x6264;
+    private static final int TAGS = 0x1254C367;
+    private static final int TAG = 0x7373;
+    private static final int SIMPLE_TAG = 0x67C8;
+    private static final int TAG_NAME = 0x45A3;
+    private static final int TAG_STRING = 0x4487;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMECODE = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+
+    private static final byte[] UNKNOWN_SIZE = {0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF};
+
+    private SyntheticMkvStream() {
+    }
+
+    /**
+     * @param fragments         number of fragments in the stream
+     * @param framesPerFragment audio frames in every fragment
+     * @param frameSizeInBytes  PCM payload size of every frame, 320 bytes is 20 ms of 8 kHz 16 bit audio
+     * @param sampleRate        sample rate advertised in the track info
+     * @return the MKV stream
+     */
+    public static byte[] create(int fragments, int framesPerFragment, int frameSizeInBytes, int sampleRate) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long producerMillis = 1_600_000_000_000L;
+        long frameMillis = frameSizeInBytes * 1000L / (sampleRate * 2L);
+
+        for (int fragment = 0; fragment < fragments; fragment++) {
+            writeElement(stream, EBML_HEADER, element(DOC_TYPE, "matroska".getBytes(StandardCharsets.US_ASCII)));
+
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            writeElement(segment, INFO, element(TIMECODE_SCALE, unsigned(1_000_000)));
+            writeElement(segment, TRACKS, element(TRACK_ENTRY, concat(
+                    element(TRACK_NUMBER, unsigned(1)),
+                    element(TRACK_UID, unsigned(1)),
+                    element(TRACK_TYPE, unsigned(2)),
+                    element(CODEC_ID, "A_PCM/INT/LIT".getBytes(StandardCharsets.US_ASCII)),
+                    element(AUDIO, concat(
+                            element(SAMPLING_FREQUENCY, floatBytes(sampleRate)),
+                            element(CHANNELS, unsigned(1)),
+                            element(BIT_DEPTH, unsigned(16)))))));
+
+            long fragmentMillis = producerMillis + fragment * framesPerFragment * frameMillis;
+            String timestamp = String.format("%d.%03d", fragmentMillis / 1000, fragmentMillis % 1000);
+            writeElement(segment, TAGS, concat(
+                    tag("AWS_KINESISVIDEO_FRAGMENT_NUMBER", String.format("91343852333181432392682062%013d", fragment)),
+                    tag("AWS_KINESISVIDEO_SERVER_TIMESTAMP", timestamp),
+                    tag("AWS_KINESISVIDEO_PRODUCER_TIMESTAMP", timestamp)));
+
+            ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            writeElement(cluster, TIMECODE, unsigned(fragmentMillis));
+            for (int frame = 0; frame < framesPerFragment; frame++) {
+                writeElement(cluster, SIMPLE_BLOCK, simpleBlock(frame * frameMillis, frameSizeInBytes, frame));
+            }
+            writeElement(segment, CLUSTER, cluster.toByteArray());
+            writeElement(segment, TAGS, tag("TransactionId", TRANSACTION_ID));
+
+            writeId(stream, SEGMENT);
+            stream.write(UNKNOWN_SIZE, 0, UNKNOWN_SIZE.length);
+            byte[] segmentBytes = segment.toByteArray();
+            stream.write(segmentBytes, 0, segmentBytes.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] simpleBlock(long relativeTimecode, int frameSizeInBytes, int seed) {
+        byte[] block = new byte[4 + frameSizeInBytes];
+        block[0] = (byte) 0x81; // track 1
+        block[1] = (byte) (relativeTimecode >> 8);
+        block[2] = (byte) relativeTimecode;
+        block[3] = (byte) 0x80; // keyframe, no lacing
+        for (int i = 0; i < frameSizeInBytes; i += 2) {
+            // a quiet saw tooth so the payload isn't all zeros
+            short sample = (short) (((i + seed * 7) % 256) * 16 - 2048);
+            block[4 + i] = (byte) sample;
+            block[5 + i] = (byte) (sample >> 8);
+        }
+        return block;
+    }
+
+    private static byte[] tag(String name, String value) {
+        return element(TAG, element(SIMPLE_TAG, concat(
+                element(TAG_NAME, name.getBytes(StandardCharsets.UTF_8)),
+                element(TAG_STRING, value.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static byte[] element(int id, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeElement(out, id, data);
+        return out.toByteArray();
+    }
+
+    private static void writeElement(ByteArrayOutputStream out, int id, byte[] data) {
+        writeId(out, id);
+        writeSize(out, data.length);
+        out.write(data, 0, data.length);
+    }
+
+    private static void writeId(ByteArrayOutputStream out, int id) {
+        // element ids keep their length marker bits, so write only the significant bytes
+        int length = 4 - Integer.numberOfLeadingZeros(id) / 8;
+        for (int i = length - 1; i >= 0; i--) {
+            out.write(id >>> (i * 8));
+        }
+    }
+
+    private static void writeSize(ByteArrayOutputStream out, long size) {
+        // always encode as an 8 byte EBML integer to keep the writer simple
+        out.write(0x01);
+        for (int i = 6; i >= 0; i--) {
+            out.write((int) (size >>> (i * 8)));
+        }
+    }
+
+    private static byte[] unsigned(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> ((7 - i) * 8));
+        }
+        return bytes;
+    }
+
+    private static byte[] floatBytes(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return unsigned(bits);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTag;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of KVSTransactionIdTagProcessor for the tags of a fragment: the call's TransactionId tag and one of the KVS
+ * tags the processor ignores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagProcessorBenchmark {
+
+    private final KVSTransactionIdTagProcessor tagProcessor =
+            new KVSTransactionIdTagProcessor(SyntheticMkvStream.TRANSACTION_ID);
+    // a copy so the comparison can't short cut on identity
+    private final MkvTag transactionIdTag = new MkvTag("TransactionId", new String(SyntheticMkvStream.TRANSACTION_ID));
+    private final MkvTag fragmentNumberTag = new MkvTag("AWS_KINESISVIDEO_FRAGMENT_NUMBER",
+            "913438523331814323926820620000000000000");
+    private final Optional<FragmentMetadata> fragmentMetadata = Optional.empty();
+
+    @Benchmark
+    public boolean processTransactionIdTag() {
+        tagProcessor.process(transactionIdTag, fragmentMetadata);
+        return tagProcessor.shouldStopProcessing();
+    }
+
+    @Benchmark
+    public boolean processOtherTag() {
+        tagProcessor.process(fragmentNumberTag, fragmentMetadata);
+        return tagProcessor.shouldStopProcessing();
+    }
+}
@@ -0,0 +1,64 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import com.amazonaws.kvstranscribestreaming.utils.AudioUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of converting a call's .raw recording into the WAV file uploaded to S3.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WavConversionBenchmark {
+
+    // 8 kHz 16 bit mono
+    private static final int BYTES_PER_SECOND = 16_000;
+
+    @Param({"60", "600"})
+    public int callSeconds;
+
+    private Path rawFile;
+
+    @Setup(Level.Trial)
+    public void writeRecording() throws IOException {
+        rawFile = Files.createTempFile("benchmark", ".raw");
+        byte[] audio = new byte[callSeconds * BYTES_PER_SECOND];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (byte) (i % 251);
+        }
+        Files.write(rawFile, audio);
+    }
+
+    @Benchmark
+    public File convertToWav() throws IOException, UnsupportedAudioFileException {
+        return AudioUtils.convertToWav(rawFile.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRecording() throws IOException {
+        Files.deleteIfExists(rawFile);
+        Files.deleteIfExists(rawFile.resolveSibling(rawFile.getFileName().toString().replace(".raw", ".wav")));
+    }
+}
@@ -0,0 +1,83 @@
+package com.amazonaws.kvstranscribestreaming.benchmark;
+
+import com.amazonaws.kvstranscribestreaming.publisher.WebSocketFrameEncoder;
+import com.amazonaws.streamingeventmodel.Direction;
+import com.amazonaws.streamingeventmodel.MediaType;
+import com.amazonaws.streamingeventmodel.StreamingStatusDetail;
+import com.amazonaws.streamingeventmodel.StreamingStatusStartedDetail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding the payload of a web socket frame from a call's transcript segments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebSocketFrameEncoderBenchmark {
+
+    @Param({"TEXT", "JSON"})
+    public WebSocketFrameEncoder.Format format;
+
+    @Param({"1", "5"})
+    public int segmentsPerFrame;
+
+    private WebSocketFrameEncoder encoder;
+    private List<Result> segments;
+
+    @Setup(Level.Trial)
+    public void createSegments() {
+        StreamingStatusDetail detail = StreamingStatusStartedDetail.builder()
+                .voiceConnectorId("abcdefghijklmnopqrstuv")
+                .transactionId("9f1b7c4e-2d3a-4b5c-8e6f-0a1b2c3d4e5f")
+                .callId("6a3d9b2e-4c1f-4e8a-9d7b-2f5c8e1a0b3d")
+                .direction(Direction.Inbound)
+                .startTime("2020-01-01T00:00:00.000Z")
+                .mediaType(MediaType.AUDIO_L16)
+                .startFragmentNumber("91343852333181432392682062000000000000000000")
+                .streamArn("arn:aws:kinesisvideo:us-east-1:123456789012:stream/ChimeVoiceConnector-abc/1")
+                .fromNumber("+15555550100")
+                .toNumber("+15555550199")
+                .isCaller(Boolean.TRUE)
+                .build();
+        encoder = new WebSocketFrameEncoder(format, detail);
+
+        segments = new ArrayList<>();
+        for (int i = 0; i < segmentsPerFrame; i++) {
+            segments.add(Result.builder()
+                    .resultId("result-" + i)
+                    .startTime(i * 2.5)
+                    .endTime(i * 2.5 + 2.1)
+                    .isPartial(false)
+                    .alternatives(Alternative.builder()
+                            .transcript("Thanks for calling, how can I help you with your \"account\" today?")
+                            .build())
+                    .build());
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return encoder.encode(segments);
+    }
+}
@@ -0,0 +1,8 @@
+package com.amazonaws.kvstranscribestreaming.constants;
+
+public class SpeakerLabelDDBConstants {
+    public static final String TABLE_SPEAKER_LABEL = "SpeakerLabelClaim";
+    public static final String TRANSACTION_ID = "TransactionId";
+    public static final String FIRST_SPEAKER_STREAM_ARN = "FirstSpeakerStreamArn";
+    public static final String EXPIRES_AT = "ExpiresAt";
+}
@@ -1,6 +1,7 @@
 package com.amazonaws.kvstranscribestreaming.constants;
 
 public class TranscribeDDBConstants {
+    public static final String TABLE_TRANSCRIPT = "TranscriptSegment";
     public static final String TRANSACTION_ID = "TransactionId";
     public static final String CALL_ID = "CallId";
     public static final String START_TIME = "StartTime";
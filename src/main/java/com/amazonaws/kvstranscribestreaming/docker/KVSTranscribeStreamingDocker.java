@@ -2,6 +2,9 @@ package com.amazonaws.kvstranscribestreaming.docker;
 
 import com.amazonaws.kvstranscribestreaming.constants.Platform;
 import com.amazonaws.kvstranscribestreaming.handler.KVSTranscribeStreamingHandler;
+import com.amazonaws.kvstranscribestreaming.worker.KVSTranscribeStreamingWorker;
+import com.amazonaws.kvstranscribestreaming.worker.SqsCallEventSource;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -9,33 +12,75 @@ import org.apache.commons.cli.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Demonstrate Amazon VoiceConnectors's real-time transcription feature using
  * AWS Kinesis Video Streams and AWS Transcribe. The data flow is :
  * <p>
  * Amazon CloudWatch Events => Amazon SQS => AWS Lambda => AWS Transcribe => AWS
  * DynamoDB & S3
+ * <p>
+ * Started with -e the container transcribes the single call of the given event. Started with -w it runs as a long
+ * lived worker that receives the events from the SQS queue in CALL_EVENTS_QUEUE_URL and transcribes up to
+ * MAX_CONCURRENT_CALLS calls at once.
  */
 public class KVSTranscribeStreamingDocker {
     private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingDocker.class);
     private static final String DOCKER_KEY_PREFIX = "KVSTranscribeStreamingDocker:";
-    public static void main(String[] args) {
+    private static final String CALL_EVENTS_QUEUE_URL = System.getenv("CALL_EVENTS_QUEUE_URL");
+    // ECS waits up to 120 seconds after SIGTERM before killing the container
+    private static final long WORKER_SHUTDOWN_TIMEOUT_SECONDS = 110;
+
+    public static void main(String[] args) throws InterruptedException {
+        final CommandLine line = parseArguments(args);
+        if (line.hasOption('w')) {
+            runWorker();
+            return;
+        }
+
         final KVSTranscribeStreamingHandler handler = new KVSTranscribeStreamingHandler(Platform.ECS);
-        String eventBody = constructEventBody(args);
+        String eventBody = line.getOptionValue('e');
+        logger.info("{} event body is {}", DOCKER_KEY_PREFIX, eventBody);
         handler.handleRequest(eventBody);
     }
 
-    private static String constructEventBody(String[] args) {
+    private static void runWorker() throws InterruptedException {
+        if (CALL_EVENTS_QUEUE_URL == null) {
+            throw new IllegalStateException("CALL_EVENTS_QUEUE_URL must be set to run as a worker");
+        }
+        int maxConcurrentCalls = KVSTranscribeStreamingWorker.maxConcurrentCallsFromEnvironment();
+
+        final KVSTranscribeStreamingWorker worker = new KVSTranscribeStreamingWorker(
+                new SqsCallEventSource(AmazonSQSClientBuilder.defaultClient(), CALL_EVENTS_QUEUE_URL),
+                maxConcurrentCalls, () -> new KVSTranscribeStreamingHandler(Platform.ECS),
+                KVSTranscribeStreamingHandler.metricsUtil);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("{} shutting down worker", DOCKER_KEY_PREFIX);
+            try {
+                worker.shutdown(WORKER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "worker-shutdown"));
+
+        logger.info("{} running as worker on queue {}", DOCKER_KEY_PREFIX, CALL_EVENTS_QUEUE_URL);
+        worker.run();
+    }
+
+    private static CommandLine parseArguments(String[] args) {
         final Options options = new Options();
-        options.addRequiredOption("e", "eventBody", true, "Streaming event body in json format");
+        options.addOption("e", "eventBody", true, "Streaming event body in json format");
+        options.addOption("w", "worker", false, "Run as a long lived worker receiving events from SQS");
 
         final CommandLineParser parser = new DefaultParser();
         try {
             final CommandLine line = parser.parse(options, args);
-            final String body = line.getOptionValue('e');
-            logger.info("{} event body is {}", DOCKER_KEY_PREFIX, body);
-
-            return body;
+            if (!line.hasOption('e') && !line.hasOption('w')) {
+                throw new IllegalArgumentException("Either an event body (-e) or worker mode (-w) is required");
+            }
+            return line;
         } catch (final Exception e) {
             String errorMsg = String.format("Unable to process streaming event. Message: %s", e.getMessage());
             logger.error(errorMsg, e);
@@ -43,4 +88,3 @@ public class KVSTranscribeStreamingDocker {
         }
     }
 }
-
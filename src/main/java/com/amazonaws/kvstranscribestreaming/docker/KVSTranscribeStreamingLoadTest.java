@@ -0,0 +1,135 @@
+package com.amazonaws.kvstranscribestreaming.docker;
+
+import com.amazonaws.kvstranscribestreaming.constants.Platform;
+import com.amazonaws.kvstranscribestreaming.handler.KVSTranscribeStreamingHandler;
+import com.amazonaws.kvstranscribestreaming.streaming.FileReplayMediaSource;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSMediaSource;
+import com.amazonaws.kvstranscribestreaming.worker.KVSTranscribeStreamingWorker;
+import com.amazonaws.streamingeventmodel.Direction;
+import com.amazonaws.streamingeventmodel.MediaType;
+import com.amazonaws.streamingeventmodel.StreamingStatusStartedDetail;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many simulated calls through {@link KVSTranscribeStreamingHandler} at once, each replaying the same recorded
+ * KVS stream from a local MKV file instead of reading from Kinesis Video Streams. Transcription, DynamoDB and S3 are
+ * used as configured by the usual environment variables.
+ *
+ * Every simulated call gets its own transaction id, derived from the one streamed, so that the calls don't share
+ * audio files, S3 objects or DynamoDB items. The TransactionId tags of the replayed media are matched against the
+ * transaction id streamed rather than the call's.
+ */
+public class KVSTranscribeStreamingLoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingLoadTest.class);
+    private static final String LOAD_TEST_KEY_PREFIX = "KVSTranscribeStreamingLoadTest:";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new Options();
+        options.addRequiredOption("f", "file", true, "MKV recording of a KVS stream, as returned by GetMedia");
+        options.addOption("c", "calls", true, "Number of concurrent simulated calls, 10 by default");
+        options.addOption("p", "pacing", true, "REAL_TIME (default) or MAX_SPEED");
+        options.addOption("x", "faultProbability", true, "Share of media streams failing at a random offset, 0 by default");
+        options.addOption("t", "transactionId", true, "Transaction id to stream, the recording's own by default");
+
+        final CommandLine line;
+        try {
+            line = new DefaultParser().parse(options, args);
+        } catch (final ParseException e) {
+            logger.error("{} invalid arguments: {}", LOAD_TEST_KEY_PREFIX, e.getMessage());
+            throw e;
+        }
+
+        final int calls = Integer.parseInt(line.getOptionValue('c', "10"));
+        if (calls > KVSTranscribeStreamingWorker.maxConcurrentCallsFromEnvironment()) {
+            throw new IllegalArgumentException("Set MAX_CONCURRENT_CALLS to at least " + calls
+                    + " to run that many calls at once");
+        }
+        final FileReplayMediaSource recording = new FileReplayMediaSource(Paths.get(line.getOptionValue('f')),
+                FileReplayMediaSource.Pacing.valueOf(line.getOptionValue('p', "REAL_TIME")),
+                Double.parseDouble(line.getOptionValue('x', "0")));
+        final String transactionId = line.getOptionValue('t', recording.getTransactionId());
+        if (transactionId == null) {
+            throw new IllegalArgumentException("Recording has no TransactionId tag, pass one with -t");
+        }
+        final KVSMediaSource mediaSource = new KVSMediaSource() {
+            @Override
+            public InputStream getMedia(String streamArn, String startFragmentNumber) {
+                return recording.getMedia(streamArn, startFragmentNumber);
+            }
+
+            @Override
+            public String getMediaTransactionId(String callTransactionId) {
+                return transactionId;
+            }
+        };
+
+        logger.info("{} starting {} calls", LOAD_TEST_KEY_PREFIX, calls);
+        ExecutorService callExecutor = Executors.newFixedThreadPool(calls);
+        List<Future<Long>> results = new ArrayList<>(calls);
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            final String eventBody = constructEventBody(i, transactionId + "-" + i,
+                    recording.getFirstFragmentNumber());
+            results.add(callExecutor.submit(() -> {
+                long callStart = System.nanoTime();
+                String result = new KVSTranscribeStreamingHandler(Platform.ECS, mediaSource).handleRequest(eventBody);
+                long callMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - callStart);
+                return result.contains("Success") ? callMillis : -callMillis;
+            }));
+        }
+
+        int failed = 0;
+        long maxCallMillis = 0;
+        long totalCallMillis = 0;
+        for (Future<Long> result : results) {
+            long callMillis = result.get();
+            if (callMillis < 0) {
+                failed++;
+            }
+            maxCallMillis = Math.max(maxCallMillis, Math.abs(callMillis));
+            totalCallMillis += Math.abs(callMillis);
+        }
+        callExecutor.shutdown();
+
+        logger.info("{} {} calls finished in {} ms, {} failed, average call {} ms, longest call {} ms",
+                LOAD_TEST_KEY_PREFIX, calls, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed,
+                totalCallMillis / calls, maxCallMillis);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static String constructEventBody(int call, String transactionId, String startFragmentNumber)
+            throws Exception {
+        StreamingStatusStartedDetail detail = StreamingStatusStartedDetail.builder()
+                .voiceConnectorId("load-test")
+                .transactionId(transactionId)
+                .callId(UUID.randomUUID().toString())
+                .direction(Direction.Inbound)
+                .startTime(Instant.now().toString())
+                .mediaType(MediaType.AUDIO_L16)
+                .startFragmentNumber(startFragmentNumber)
+                .streamArn("arn:aws:kinesisvideo:replay:000000000000:stream/load-test-call-" + call + "/0")
+                .isCaller(Boolean.TRUE)
+                .build();
+        return objectMapper.writeValueAsString(Collections.singletonMap("detail", detail));
+    }
+}
@@ -3,54 +3,67 @@ package com.amazonaws.kvstranscribestreaming.handler;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.kvstranscribestreaming.constants.Platform;
-import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
-import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kvstranscribestreaming.constants.TranscribeDDBConstants;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioClock;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPool;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunker;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPacer;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPumpExecutor;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioReplayBuffer;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSAudioReader;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSGetMediaSource;
+import com.amazonaws.kvstranscribestreaming.streaming.KVSMediaSource;
+import com.amazonaws.kvstranscribestreaming.streaming.PrefetchingMediaSource;
 import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
+import com.amazonaws.kvstranscribestreaming.streaming.VoiceActivityGate;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.streamingeventmodel.StreamingStatus;
 import com.amazonaws.streamingeventmodel.StreamingStatusStartedDetail;
+import com.amazonaws.kvstranscribestreaming.publisher.CoalescingTranscriptionPublisher;
+import com.amazonaws.kvstranscribestreaming.publisher.ConnectionIdCache;
+import com.amazonaws.kvstranscribestreaming.publisher.ConnectionRateLimiter;
+import com.amazonaws.kvstranscribestreaming.publisher.DynamoDBBatchWriter;
 import com.amazonaws.kvstranscribestreaming.publisher.DynamoDBTranscriptionPublisher;
+import com.amazonaws.kvstranscribestreaming.publisher.QueuedTranscriptionPublisher;
 import com.amazonaws.kvstranscribestreaming.publisher.TranscriptionPublisher;
+import com.amazonaws.kvstranscribestreaming.publisher.WebSocketPostClient;
 import com.amazonaws.kvstranscribestreaming.publisher.WebSocketTranscriptionPublisher;
-import com.amazonaws.kvstranscribestreaming.transcribe.KVSByteToAudioEventSubscription;
+import com.amazonaws.kvstranscribestreaming.transcribe.KVSAudioStreamPublisher;
+import com.amazonaws.kvstranscribestreaming.transcribe.SessionTimeline;
 import com.amazonaws.kvstranscribestreaming.transcribe.StreamTranscriptionBehaviorImpl;
 import com.amazonaws.kvstranscribestreaming.transcribe.TranscribeStreamingRetryClient;
 
 import com.amazonaws.kvstranscribestreaming.utils.AudioUtils;
-import com.amazonaws.kvstranscribestreaming.utils.KVSUtils;
+import com.amazonaws.kvstranscribestreaming.utils.KVSClientCache;
+import com.amazonaws.kvstranscribestreaming.utils.LatencyTracker;
 import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.kvstranscribestreaming.worker.KVSTranscribeStreamingWorker;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.reactivestreams.Publisher;
-import org.reactivestreams.Subscriber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
 import software.amazon.awssdk.services.transcribestreaming.model.LanguageCode;
 import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
+import software.amazon.awssdk.services.transcribestreaming.model.PartialResultsStability;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -64,12 +77,23 @@ import java.util.concurrent.TimeoutException;
  */
 public class KVSTranscribeStreamingHandler {
 
-    private static final int CHUNK_SIZE_IN_KB = 4;
+    // since we're definitely working with telephony audio, we know that's 8 kHz
+    private static final int SAMPLE_RATE_HERTZ = 8000;
+    private static final int BYTES_PER_SECOND = SAMPLE_RATE_HERTZ * 2;
+    private static final AudioChunkPolicy AUDIO_CHUNK_POLICY = AudioChunkPolicy.fromEnvironment(SAMPLE_RATE_HERTZ);
     private static final Regions REGION = Regions.fromName(System.getenv("AWS_REGION"));
     private static final String TRANSCRIBE_ENDPOINT = "https://transcribestreaming." + REGION.getName()
             + ".amazonaws.com";
     private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
     private static final String IS_TRANSCRIBE_ENABLED = System.getenv("IS_TRANSCRIBE_ENABLED");
+    private static final String TRANSCRIBE_SESSION_OVERLAP_SECONDS = System.getenv("TRANSCRIBE_SESSION_OVERLAP_SECONDS");
+    private static final int DEFAULT_TRANSCRIBE_SESSION_OVERLAP_SECONDS = 5;
+    private static final long SESSION_OVERLAP_BYTES = (long) BYTES_PER_SECOND * (TRANSCRIBE_SESSION_OVERLAP_SECONDS == null
+            ? DEFAULT_TRANSCRIBE_SESSION_OVERLAP_SECONDS : Integer.parseInt(TRANSCRIBE_SESSION_OVERLAP_SECONDS));
+    private static final boolean TRANSCRIBE_PARTIAL_RESULTS = Boolean.parseBoolean(System.getenv("TRANSCRIBE_PARTIAL_RESULTS"));
+    private static final String TRANSCRIBE_PARTIAL_RESULTS_STABILITY = System.getenv("TRANSCRIBE_PARTIAL_RESULTS_STABILITY");
+    private static final String PARTIAL_RESULTS_COALESCE_MS = System.getenv("PARTIAL_RESULTS_COALESCE_MS");
+    private static final long DEFAULT_PARTIAL_RESULTS_COALESCE_MS = 200;
     private static final String RECORDINGS_KEY_PREFIX = "voiceConnectorToKVS_";
     private static final boolean CONSOLE_LOG_TRANSCRIPT_FLAG = true;
     private static final boolean RECORDINGS_PUBLIC_READ_ACL = false;
@@ -79,20 +103,44 @@ public class KVSTranscribeStreamingHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingHandler.class);
     public static final MetricsUtil metricsUtil = new MetricsUtil(AmazonCloudWatchClientBuilder.defaultClient());
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final KVSClientCache kvsClientCache = new KVSClientCache(REGION, getAWSCredentials(), metricsUtil);
+    private static final KVSMediaSource defaultKvsMediaSource = PrefetchingMediaSource.fromEnvironment(
+            new KVSGetMediaSource(kvsClientCache), metricsUtil);
+    private static final AudioPumpExecutor audioPumpExecutor = new AudioPumpExecutor(
+            KVSTranscribeStreamingWorker.maxConcurrentCallsFromEnvironment(), metricsUtil);
+    private static final LatencyTracker dynamoDBLatencyTracker = new LatencyTracker("DynamoDBPublish", metricsUtil);
+    private static final LatencyTracker webSocketLatencyTracker = new LatencyTracker("WebSocketPublish", metricsUtil);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
 
     private final Platform platform;
+    private final KVSMediaSource kvsMediaSource;
     private final Boolean shouldWriteAudioToFile = Boolean.TRUE;
 
     private static final DynamoDB dynamoDB = new DynamoDB(
             AmazonDynamoDBClientBuilder.standard().withRegion(REGION.getName()).build());
 
+    private static final DynamoDBBatchWriter transcriptWriter = DynamoDBBatchWriter.fromEnvironment(dynamoDB,
+            TranscribeDDBConstants.TABLE_TRANSCRIPT, TranscribeDDBConstants.TRANSACTION_ID,
+            TranscribeDDBConstants.START_TIME, metricsUtil);
+
+    private static final ConnectionIdCache connectionIdCache = ConnectionIdCache.fromEnvironment(dynamoDB, metricsUtil);
+    private static final ConnectionRateLimiter connectionRateLimiter = ConnectionRateLimiter.fromEnvironment();
+
     private static final ObjectMapper objectMapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
     private String transactionId;
     public KVSTranscribeStreamingHandler(final Platform platform) {
+        this(platform, defaultKvsMediaSource);
+    }
+
+    /**
+     * @param platform
+     * @param kvsMediaSource where the call audio is read from instead of KVS GetMedia, e.g. a replay for load tests
+     */
+    public KVSTranscribeStreamingHandler(final Platform platform, final KVSMediaSource kvsMediaSource) {
         this.platform = platform;
+        this.kvsMediaSource = kvsMediaSource;
     }
 
     public String handleRequest(String eventBody) {
@@ -118,6 +166,9 @@ public class KVSTranscribeStreamingHandler {
         } catch (Exception e) {
             logger.error("[{}] KVS to Transcribe Streaming failed with: ", this.transactionId, e);
             return "{ \"result\": \"Failed\" }";
+        } finally {
+            // Lambda may freeze the process as soon as we return, so don't leave metrics behind
+            metricsUtil.flush();
         }
         return "{ \"result\": \"Success\" }";
     }
@@ -131,6 +182,25 @@ public class KVSTranscribeStreamingHandler {
      * @throws Exception
      */
     private void startKVSToTranscribeStreaming(StreamingStatusStartedDetail detail) throws Exception {
+        // a call admitted to the audio pump always has a pump thread to read its stream on
+        boolean transcribeEnabled = Boolean.parseBoolean(IS_TRANSCRIBE_ENABLED);
+        if (transcribeEnabled && !audioPumpExecutor.tryAdmitCall()) {
+            throw new IllegalStateException("Already transcribing " + audioPumpExecutor.getMaxCalls()
+                    + " calls, raise MAX_CONCURRENT_CALLS to run more at once");
+        }
+        try {
+            streamCall(detail, transcribeEnabled);
+        } finally {
+            if (transcribeEnabled) {
+                audioPumpExecutor.releaseCall();
+            }
+        }
+    }
+
+    /**
+     * Stream the call, once it has been admitted to the audio pump if transcribing
+     */
+    private void streamCall(StreamingStatusStartedDetail detail, boolean transcribeEnabled) throws Exception {
 
         final String transactionId = detail.getTransactionId();
         final String callId = detail.getCallId();
@@ -138,34 +208,43 @@ public class KVSTranscribeStreamingHandler {
         final String startFragmentNumber = detail.getStartFragmentNumber();
         final String startTime = detail.getStartTime();
 
-
         Path saveAudioFilePath = Paths.get("/tmp",
-                transactionId + "_" + DATE_FORMAT.format(new Date()) + ".raw");
+                transactionId + "_" + DATE_FORMAT.format(LocalDateTime.now()) + ".raw");
         FileOutputStream fileOutputStream = new FileOutputStream(saveAudioFilePath.toString());
 
-        InputStream kvsInputStream = KVSUtils.getInputStreamFromKVS(streamArn, REGION, startFragmentNumber,
-                getAWSCredentials());
-        StreamingMkvReader streamingMkvReader = StreamingMkvReader
-                .createDefault(new InputStreamParserByteSource(kvsInputStream));
+        KVSTransactionIdTagProcessor tagProcessor = new KVSTransactionIdTagProcessor(
+                kvsMediaSource.getMediaTransactionId(transactionId));
+        KVSAudioReader kvsAudioReader = new KVSAudioReader(kvsMediaSource, streamArn,
+                startFragmentNumber, tagProcessor, metricsUtil);
 
-        KVSTransactionIdTagProcessor tagProcessor = new KVSTransactionIdTagProcessor(transactionId);
-        FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
-
-        if (Boolean.parseBoolean(IS_TRANSCRIBE_ENABLED)) {
-            try (TranscribeStreamingRetryClient client = new TranscribeStreamingRetryClient(getTranscribeCredentials(),
-                    TRANSCRIBE_ENDPOINT, REGION, metricsUtil)) {
+        if (transcribeEnabled) {
+            AudioClock audioClock = AudioClock.forReader(transactionId, kvsAudioReader, BYTES_PER_SECOND, metricsUtil);
+            try {
+                // shared by all calls and never closed, so sessions reuse its connections
+                TranscribeStreamingRetryClient client = TranscribeClientHolder.CLIENT;
 
-                logger.info("Calling Transcribe service..");
+                logger.info("Calling Transcribe service.. audio chunked with {}", AUDIO_CHUNK_POLICY);
 
-                List<TranscriptionPublisher> publishers = Arrays.asList(new WebSocketTranscriptionPublisher(dynamoDB, detail, getAWSCredentials()),
-                        new DynamoDBTranscriptionPublisher(detail, dynamoDB, CONSOLE_LOG_TRANSCRIPT_FLAG));
+                List<TranscriptionPublisher> publishers = Arrays.asList(
+                        withPartialResults(queued("WebSocket", transactionId,
+                                new WebSocketTranscriptionPublisher(connectionIdCache, connectionRateLimiter,
+                                        WebSocketPostClientHolder.CLIENT, detail,
+                                        webSocketLatencyTracker.forCall(transactionId, audioClock)))),
+                        withPartialResults(queued("DynamoDB", transactionId,
+                                new DynamoDBTranscriptionPublisher(detail, dynamoDB, CONSOLE_LOG_TRANSCRIPT_FLAG,
+                                        dynamoDBLatencyTracker.forCall(transactionId, audioClock), transcriptWriter))));
 
+                SessionTimeline sessionTimeline = new SessionTimeline(BYTES_PER_SECOND);
                 CompletableFuture<Void> result = client.startStreamTranscription(
-                        // since we're definitely working with telephony audio, we know that's 8 kHz
-                        getRequest(8000),
-                        new KVSAudioStreamPublisher(streamingMkvReader, transactionId, fileOutputStream, tagProcessor,
-                                fragmentVisitor, this.shouldWriteAudioToFile),
-                        new StreamTranscriptionBehaviorImpl(publishers));
+                        getRequest(SAMPLE_RATE_HERTZ),
+                        new KVSAudioStreamPublisher(audioClock, transactionId, fileOutputStream,
+                                this.shouldWriteAudioToFile, AUDIO_CHUNK_POLICY, audioPumpExecutor,
+                                AudioReplayBuffer.fromEnvironment(BYTES_PER_SECOND), sessionTimeline,
+                                AudioPacer.fromEnvironment(transactionId, audioClock, BYTES_PER_SECOND),
+                                SESSION_OVERLAP_BYTES,
+                                () -> VoiceActivityGate.fromEnvironment(BYTES_PER_SECOND, metricsUtil), metricsUtil),
+                        new StreamTranscriptionBehaviorImpl(publishers),
+                        sessionTimeline);
 
                 // There is no timeout limit for transcription running on ECS. Since Lambda doesn't support function with more than 15 mins
                 // Set up a timeout here so that there is enough time for the audio to be uploaded in S3 before function got destoryed.
@@ -180,32 +259,26 @@ public class KVSTranscribeStreamingHandler {
                 logger.error("[{}] Error during streaming: ", this.transactionId, e);
                 throw e;
             } finally {
+                audioClock.close();
                 // Upload the raw audio regardless of any exception thrown in the middle
                 if (this.shouldWriteAudioToFile) {
-                    closeFileAndUploadRawAudio(kvsInputStream, fileOutputStream, saveAudioFilePath, transactionId, startTime);
+                    closeFileAndUploadRawAudio(kvsAudioReader, fileOutputStream, saveAudioFilePath, transactionId, startTime);
                 }
             }
         } else {
+            AudioChunker audioChunker = new AudioChunker(
+                    AudioChunkPolicy.frames(AudioChunkPolicy.DEFAULT_CHUNK_SIZE_IN_FRAMES), AudioChunkPool.getDefault());
             try {
                 logger.info("Transcribe is not enabled; saving audio bytes to location");
 
-                while(true)
-                {
-                    ByteBuffer outputBuffer = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor,
-                            CHUNK_SIZE_IN_KB);
-
-                    if (outputBuffer.remaining() > 0) {
-                        //Write audioBytes to a temporary file as they are received from the stream
-                        byte[] audioBytes = new byte[outputBuffer.remaining()];
-                        outputBuffer.get(audioBytes);
-                        fileOutputStream.write(audioBytes);
-                    } else {
-                        break;
-                    }
+                while (audioChunker.fill(kvsAudioReader) > 0) {
+                    //Write audioBytes to a temporary file as they are received from the stream
+                    AudioUtils.writeAudioChunk(fileOutputStream, audioChunker.getChunk());
                 }
             } finally {
+                audioChunker.close();
                 // Upload the raw audio regardless of any exception thrown in the middle
-                closeFileAndUploadRawAudio(kvsInputStream, fileOutputStream, saveAudioFilePath, transactionId, startTime);
+                closeFileAndUploadRawAudio(kvsAudioReader, fileOutputStream, saveAudioFilePath, transactionId, startTime);
             }
         }
     }
@@ -213,17 +286,17 @@ public class KVSTranscribeStreamingHandler {
     /**
      * Closes the FileOutputStream and uploads the Raw audio file to S3
      *
-     * @param kvsInputStream
+     * @param kvsAudioReader
      * @param fileOutputStream
      * @param saveAudioFilePath
      * @param transactionId
      * @throws IOException
      */
-    private void closeFileAndUploadRawAudio(InputStream kvsInputStream, FileOutputStream fileOutputStream,
+    private void closeFileAndUploadRawAudio(KVSAudioReader kvsAudioReader, FileOutputStream fileOutputStream,
             Path saveAudioFilePath, String transactionId, String startTime) throws IOException {
 
         try {
-            kvsInputStream.close();
+            kvsAudioReader.close();
             fileOutputStream.close();
         } catch (IOException e) {
             logger.error("[{}] Failed to close KVS or file streams due to ", this.transactionId, e);
@@ -247,7 +320,7 @@ public class KVSTranscribeStreamingHandler {
     }
 
     /**
-     * @return AWS credentials to be used to connect to Transcribe service. This
+     * @return AWS credentials to be used to connect to Transcribe service and API Gateway. This
      *         example uses the default credentials provider, which looks for
      *         environment variables (AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY)
      *         or a credentials file on the system running this program.
@@ -267,38 +340,62 @@ public class KVSTranscribeStreamingHandler {
      *         transcription service
      */
     private static StartStreamTranscriptionRequest getRequest(Integer mediaSampleRateHertz) {
-        return StartStreamTranscriptionRequest.builder().languageCode(LanguageCode.EN_US.toString())
-                .mediaEncoding(MediaEncoding.PCM).mediaSampleRateHertz(mediaSampleRateHertz).build();
+        StartStreamTranscriptionRequest.Builder request = StartStreamTranscriptionRequest.builder()
+                .languageCode(LanguageCode.EN_US.toString())
+                .mediaEncoding(MediaEncoding.PCM).mediaSampleRateHertz(mediaSampleRateHertz);
+        if (TRANSCRIBE_PARTIAL_RESULTS) {
+            // stable items of partial results won't change any more, so they can be shown straight away
+            request.enablePartialResultsStabilization(true)
+                    .partialResultsStability(TRANSCRIBE_PARTIAL_RESULTS_STABILITY == null
+                            ? PartialResultsStability.HIGH
+                            : PartialResultsStability.fromValue(TRANSCRIBE_PARTIAL_RESULTS_STABILITY.toLowerCase()));
+        }
+        return request.build();
     }
 
     /**
-     * KVSAudioStreamPublisher implements audio stream publisher. It emits audio
-     * events from a KVS stream asynchronously in a separate thread
+     * Publish through a queue of its own, so that a slow publisher delays neither the others nor the Transcribe
+     * response stream.
      */
-    private static class KVSAudioStreamPublisher implements Publisher<AudioStream> {
-        private final StreamingMkvReader streamingMkvReader;
-        private String callId;
-        private OutputStream outputStream;
-        private KVSTransactionIdTagProcessor tagProcessor;
-        private FragmentMetadataVisitor fragmentVisitor;
-        private boolean shouldWriteToOutputStream;
-
-        private KVSAudioStreamPublisher(StreamingMkvReader streamingMkvReader, String callId, OutputStream outputStream,
-                                        KVSTransactionIdTagProcessor tagProcessor, FragmentMetadataVisitor fragmentVisitor,
-                boolean shouldWriteToOutputStream) {
-            this.streamingMkvReader = streamingMkvReader;
-            this.callId = callId;
-            this.outputStream = outputStream;
-            this.tagProcessor = tagProcessor;
-            this.fragmentVisitor = fragmentVisitor;
-            this.shouldWriteToOutputStream = shouldWriteToOutputStream;
+    private static TranscriptionPublisher queued(String type, String transactionId, TranscriptionPublisher publisher) {
+        return QueuedTranscriptionPublisher.fromEnvironment(type, transactionId, publisher, metricsUtil);
+    }
+
+    /**
+     * Forward the stable part of partial results, coalesced per result id, when partial results are enabled.
+     */
+    private static TranscriptionPublisher withPartialResults(TranscriptionPublisher publisher) {
+        if (!TRANSCRIBE_PARTIAL_RESULTS) {
+            return publisher;
         }
+        return new CoalescingTranscriptionPublisher(publisher, PARTIAL_RESULTS_COALESCE_MS == null
+                ? DEFAULT_PARTIAL_RESULTS_COALESCE_MS : Long.parseLong(PARTIAL_RESULTS_COALESCE_MS));
+    }
 
-        @Override
-        public void subscribe(Subscriber<? super AudioStream> s) {
-            s.onSubscribe(new KVSByteToAudioEventSubscription(s, streamingMkvReader, callId, outputStream, tagProcessor,
-                    fragmentVisitor, shouldWriteToOutputStream));
+    /**
+     * Holds the Transcribe client shared by all calls, created on first use so that it isn't built when
+     * transcription is disabled.
+     */
+    private static class TranscribeClientHolder {
+        private static final TranscribeStreamingRetryClient CLIENT;
+
+        static {
+            try {
+                CLIENT = new TranscribeStreamingRetryClient(getTranscribeCredentials(), TRANSCRIBE_ENDPOINT, REGION,
+                        metricsUtil);
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException("Invalid Transcribe endpoint " + TRANSCRIBE_ENDPOINT, e);
+            }
         }
     }
 
+    /**
+     * Holds the API Gateway client posting the transcripts of all calls to web sockets, created on first use so that
+     * it isn't built when transcription is disabled.
+     */
+    private static class WebSocketPostClientHolder {
+        private static final WebSocketPostClient CLIENT = WebSocketPostClient.fromEnvironment(
+                getTranscribeCredentials(), metricsUtil);
+    }
+
 }
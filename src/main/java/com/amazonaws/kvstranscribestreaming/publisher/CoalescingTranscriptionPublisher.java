@@ -0,0 +1,150 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publisher forwarding the stable part of partial results, coalesced, and final results to another publisher.
+ *
+ * With partial results stabilization Transcribe marks the items of a partial result that will not change any more.
+ * A partial result is cut down to its stable items, and dropped if there are none or they are the same as those
+ * already forwarded for its result id. The first partial of a result id waits for the coalescing window and is then
+ * forwarded as the latest partial received for it, so a chatty partial stream sends at most one update per result id
+ * per window. A final result is forwarded straight away and drops the partial waiting for its result id.
+ *
+ * Events are forwarded one result at a time, from the Transcribe response thread or the coalescing timer but never
+ * concurrently, so the delegate needs no synchronization of its own. {@link #publishDone()} is passed on without the
+ * lock held, so a slow delegate doesn't hold up the timer shared by all calls.
+ */
+public class CoalescingTranscriptionPublisher implements TranscriptionPublisher {
+
+    private static final ScheduledExecutorService coalescingTimer = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("partial-results-coalescer-%d").daemon(true).build());
+
+    private final TranscriptionPublisher delegate;
+    private final long windowMillis;
+    private final Map<String, Result> pendingPartials = new HashMap<>();
+    private final Map<String, ScheduledFuture<?>> pendingFlushes = new HashMap<>();
+    private final Map<String, String> forwardedTranscripts = new HashMap<>();
+
+    /**
+     * @param delegate     publisher the results are forwarded to
+     * @param windowMillis how long partials of a result id are coalesced for
+     */
+    public CoalescingTranscriptionPublisher(TranscriptionPublisher delegate, long windowMillis) {
+        Validate.isTrue(windowMillis >= 0, "Coalescing window must not be negative");
+        this.delegate = Validate.notNull(delegate);
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public synchronized void publish(TranscriptEvent e) {
+        for (Result result : e.transcript().results()) {
+            if (Boolean.TRUE.equals(result.isPartial())) {
+                coalesce(result);
+            } else {
+                ScheduledFuture<?> flush = pendingFlushes.remove(result.resultId());
+                if (flush != null) {
+                    flush.cancel(false);
+                }
+                pendingPartials.remove(result.resultId());
+                forwardedTranscripts.remove(result.resultId());
+                forward(result);
+            }
+        }
+    }
+
+    @Override
+    public void publishDone() {
+        synchronized (this) {
+            for (ScheduledFuture<?> flush : pendingFlushes.values()) {
+                flush.cancel(false);
+            }
+            pendingFlushes.clear();
+            pendingPartials.clear();
+            forwardedTranscripts.clear();
+        }
+        // may wait for the delegate's queued events, a flush already running finds nothing pending and returns
+        delegate.publishDone();
+    }
+
+    private void coalesce(Result partial) {
+        Result stable = toStableResult(partial);
+        if (stable == null) {
+            return;
+        }
+        String resultId = partial.resultId();
+        String transcript = stable.alternatives().get(0).transcript();
+        if (transcript.equals(forwardedTranscripts.get(resultId))) {
+            pendingPartials.remove(resultId);
+            return;
+        }
+
+        pendingPartials.put(resultId, stable);
+        if (!pendingFlushes.containsKey(resultId)) {
+            pendingFlushes.put(resultId, coalescingTimer.schedule(() -> flush(resultId), windowMillis,
+                    TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private synchronized void flush(String resultId) {
+        pendingFlushes.remove(resultId);
+        Result partial = pendingPartials.remove(resultId);
+        if (partial != null) {
+            forwardedTranscripts.put(resultId, partial.alternatives().get(0).transcript());
+            forward(partial);
+        }
+    }
+
+    private void forward(Result result) {
+        delegate.publish(TranscriptEvent.builder()
+                .transcript(Transcript.builder().results(result).build())
+                .build());
+    }
+
+    /**
+     * @return the partial result with only the stable items of its first alternative, null if none is stable
+     */
+    private static Result toStableResult(Result partial) {
+        if (partial.alternatives().isEmpty()) {
+            return null;
+        }
+        Alternative alternative = partial.alternatives().get(0);
+        List<Item> items = new ArrayList<>(alternative.items().size());
+        StringBuilder transcript = new StringBuilder();
+        for (Item item : alternative.items()) {
+            if (!Boolean.TRUE.equals(item.stable())) {
+                // items only become stable from the start of the result
+                break;
+            }
+            if (transcript.length() > 0 && item.type() != ItemType.PUNCTUATION) {
+                transcript.append(' ');
+            }
+            transcript.append(item.content());
+            items.add(item);
+        }
+
+        if (items.isEmpty()) {
+            return null;
+        }
+        return partial.toBuilder()
+                .endTime(items.get(items.size() - 1).endTime())
+                .alternatives(alternative.toBuilder().items(items).transcript(transcript.toString()).build())
+                .build();
+    }
+}
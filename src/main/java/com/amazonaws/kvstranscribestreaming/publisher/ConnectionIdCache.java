@@ -0,0 +1,199 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.amazonaws.kvstranscribestreaming.constants.WebSocketMappingDDBConstants.CONNECTION_ID;
+import static com.amazonaws.kvstranscribestreaming.constants.WebSocketMappingDDBConstants.NUMBER;
+
+/**
+ * Process wide cache of the web socket connection ids of phone numbers, read from the web socket mapping table.
+ *
+ * A number with a connection is cached for the positive TTL, and a number without one for the shorter negative TTL,
+ * so that calls nobody is watching don't read the table for every transcript. Once an entry has lived half its TTL it
+ * is reloaded in the background while callers keep getting the cached value, so a publisher only waits on DynamoDB
+ * for numbers it has not looked up recently. Callers invalidate a number when its connection turns out to be gone.
+ * A reload only replaces the entry it was started for, so a reload finishing after an invalidation doesn't bring the
+ * gone connection back.
+ *
+ * Hits and misses are counted and exported as the {@code ConnectionIdCacheHit} and {@code ConnectionIdCacheMiss}
+ * metrics every 10 seconds, lookups never wait for CloudWatch.
+ */
+public class ConnectionIdCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionIdCache.class);
+    private static final String WEBSOCKET_MAPPING_TABLE_NAME = System.getenv("WEBSOCKET_MAPPING_TABLE_NAME");
+    private static final String CONNECTION_ID_CACHE_TTL_SECONDS = System.getenv("CONNECTION_ID_CACHE_TTL_SECONDS");
+    private static final String CONNECTION_ID_NEGATIVE_CACHE_TTL_MS = System.getenv("CONNECTION_ID_NEGATIVE_CACHE_TTL_MS");
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    // a client connecting to watch a call in progress should see its transcript within a couple of seconds
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = 2_000;
+    private static final long EVICTION_INTERVAL_MILLIS = 60_000;
+    private static final long METRICS_INTERVAL_SECONDS = 10;
+
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("connection-id-refresher-%d").daemon(true).build());
+
+    private final Table mappingTable;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final MetricsUtil metricsUtil;
+    private final ConcurrentMap<String, CachedConnection> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextEvictionMillis = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param dynamoDB          client the mapping table is read with
+     * @param tableName         web socket mapping table
+     * @param ttlMillis         how long the connection id of a number is cached
+     * @param negativeTtlMillis how long a number without a connection is cached
+     * @param metricsUtil       metrics the cache hits and misses are recorded to, null to record none
+     */
+    public ConnectionIdCache(DynamoDB dynamoDB, String tableName, long ttlMillis, long negativeTtlMillis,
+                             MetricsUtil metricsUtil) {
+        Validate.isTrue(ttlMillis >= 0, "Cache TTL must not be negative");
+        Validate.isTrue(negativeTtlMillis >= 0, "Negative cache TTL must not be negative");
+        this.mappingTable = Validate.notNull(dynamoDB).getTable(Validate.notNull(tableName));
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.metricsUtil = metricsUtil;
+        if (metricsUtil != null) {
+            refresher.scheduleWithFixedDelay(this::recordMetrics, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return cache of the WEBSOCKET_MAPPING_TABLE_NAME table, configured by the CONNECTION_ID_CACHE_TTL_SECONDS and
+     * CONNECTION_ID_NEGATIVE_CACHE_TTL_MS environment variables
+     */
+    public static ConnectionIdCache fromEnvironment(DynamoDB dynamoDB, MetricsUtil metricsUtil) {
+        return new ConnectionIdCache(dynamoDB, WEBSOCKET_MAPPING_TABLE_NAME,
+                TimeUnit.SECONDS.toMillis(CONNECTION_ID_CACHE_TTL_SECONDS == null
+                        ? DEFAULT_TTL_SECONDS : Long.parseLong(CONNECTION_ID_CACHE_TTL_SECONDS)),
+                CONNECTION_ID_NEGATIVE_CACHE_TTL_MS == null
+                        ? DEFAULT_NEGATIVE_TTL_MILLIS : Long.parseLong(CONNECTION_ID_NEGATIVE_CACHE_TTL_MS),
+                metricsUtil);
+    }
+
+    /**
+     * @param number phone number
+     * @return connection id of the number, null if no client is connected for it
+     */
+    public String getConnectionId(String number) {
+        if (number == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        CachedConnection cached = connections.get(number);
+        if (cached != null && cached.expiresAtMillis > now) {
+            hits.incrementAndGet();
+            if (cached.refreshAtMillis <= now && cached.refreshing.compareAndSet(false, true)) {
+                refresher.execute(() -> refresh(number, cached));
+            }
+            return cached.connectionId;
+        }
+
+        misses.incrementAndGet();
+        return load(number, cached).connectionId;
+    }
+
+    /**
+     * Drop the cached connection id of a number after posting to it failed because the connection is gone, so the
+     * next lookup reads the table again. Nothing is dropped if the number is cached with another id by now.
+     *
+     * @param number       phone number
+     * @param connectionId connection id that is gone
+     */
+    public void invalidate(String number, String connectionId) {
+        CachedConnection cached = connections.get(number);
+        if (cached != null && Objects.equals(cached.connectionId, connectionId) && connections.remove(number, cached)) {
+            logger.info("Invalidated connection id {} for number {}", connectionId, number);
+        }
+    }
+
+    private void refresh(String number, CachedConnection cached) {
+        try {
+            load(number, cached);
+        } catch (RuntimeException e) {
+            // the entry is still served until it expires and the next lookup after that reads the table
+            logger.warn("Failed to refresh the connection id of number {}", number, e);
+        }
+    }
+
+    /**
+     * Read the connection id of a number and cache it, unless the entry it replaces changed meanwhile.
+     *
+     * @param replaced entry found by the lookup, null if there was none
+     */
+    private CachedConnection load(String number, CachedConnection replaced) {
+        Item item = mappingTable.getItem(new GetItemSpec()
+                .withPrimaryKey(NUMBER, number)
+                .withConsistentRead(true)
+                .withProjectionExpression(CONNECTION_ID));
+        String connectionId = item != null && item.hasAttribute(CONNECTION_ID) ? item.getString(CONNECTION_ID) : null;
+
+        long now = System.currentTimeMillis();
+        long ttl = connectionId == null ? negativeTtlMillis : ttlMillis;
+        CachedConnection loaded = new CachedConnection(connectionId, now + ttl / 2, now + ttl);
+        boolean stored = replaced == null
+                ? connections.putIfAbsent(number, loaded) == null : connections.replace(number, replaced, loaded);
+        if (!stored) {
+            logger.debug("Connection id of number {} changed while it was read, not caching {}", number, connectionId);
+        }
+        evictExpired(now);
+        return loaded;
+    }
+
+    /**
+     * Drop the entries of numbers no longer looked up, at most once per eviction interval.
+     */
+    private void evictExpired(long now) {
+        long next = nextEvictionMillis.get();
+        if (next <= now && nextEvictionMillis.compareAndSet(next, now + EVICTION_INTERVAL_MILLIS)) {
+            connections.values().removeIf(cached -> cached.expiresAtMillis <= now);
+        }
+    }
+
+    private void recordMetrics() {
+        long hitCount = hits.getAndSet(0);
+        long missCount = misses.getAndSet(0);
+        if (hitCount > 0) {
+            metricsUtil.recordMetric("ConnectionIdCacheHit", hitCount);
+        }
+        if (missCount > 0) {
+            metricsUtil.recordMetric("ConnectionIdCacheMiss", missCount);
+        }
+    }
+
+    private static final class CachedConnection {
+        private final String connectionId;
+        private final long refreshAtMillis;
+        private final long expiresAtMillis;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private CachedConnection(String connectionId, long refreshAtMillis, long expiresAtMillis) {
+            this.connectionId = connectionId;
+            this.refreshAtMillis = refreshAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
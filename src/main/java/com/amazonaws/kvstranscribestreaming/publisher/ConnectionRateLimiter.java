@@ -0,0 +1,103 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide token buckets limiting the rate of posts to each web socket connection, so that publishers hold back
+ * and coalesce their frames rather than have API Gateway throttle them. Both legs of a call, and every call watched by
+ * the same client, share the bucket of the client's connection.
+ */
+public class ConnectionRateLimiter {
+
+    private static final String WEBSOCKET_POST_RATE = System.getenv("WEBSOCKET_POST_RATE");
+    private static final String WEBSOCKET_POST_BURST = System.getenv("WEBSOCKET_POST_BURST");
+    private static final double DEFAULT_POSTS_PER_SECOND = 10;
+    private static final int DEFAULT_BURST = 10;
+    private static final long EVICTION_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final double postsPerSecond;
+    private final int burst;
+    private final long nanosPerToken;
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextEvictionNanos = new AtomicLong(System.nanoTime() + EVICTION_INTERVAL_NANOS);
+
+    /**
+     * @param postsPerSecond posts per second allowed to each connection, 0 for no limit
+     * @param burst          posts allowed at once to a connection that was idle
+     */
+    public ConnectionRateLimiter(double postsPerSecond, int burst) {
+        Validate.isTrue(postsPerSecond >= 0, "Post rate must not be negative");
+        Validate.isTrue(burst > 0, "Burst must be positive");
+        this.postsPerSecond = postsPerSecond;
+        this.burst = burst;
+        this.nanosPerToken = postsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / postsPerSecond);
+    }
+
+    /**
+     * @return limiter configured by the WEBSOCKET_POST_RATE and WEBSOCKET_POST_BURST environment variables
+     */
+    public static ConnectionRateLimiter fromEnvironment() {
+        return new ConnectionRateLimiter(
+                WEBSOCKET_POST_RATE == null ? DEFAULT_POSTS_PER_SECOND : Double.parseDouble(WEBSOCKET_POST_RATE),
+                WEBSOCKET_POST_BURST == null ? DEFAULT_BURST : Integer.parseInt(WEBSOCKET_POST_BURST));
+    }
+
+    /**
+     * Take a token to post to the connection, if one is available.
+     *
+     * @param connectionId web socket connection
+     * @return 0 if a token was taken, else the nanoseconds until one is available
+     */
+    public long tryAcquire(String connectionId) {
+        if (postsPerSecond == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        evictIdle(now);
+        return buckets.computeIfAbsent(connectionId, id -> new TokenBucket(now)).tryAcquire(now);
+    }
+
+    /**
+     * Drop the buckets of connections that have been idle long enough to be full again, at most once per interval.
+     */
+    private void evictIdle(long now) {
+        long next = nextEvictionNanos.get();
+        if (next - now <= 0 && nextEvictionNanos.compareAndSet(next, now + EVICTION_INTERVAL_NANOS)) {
+            buckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    /**
+     * Tokens are kept as the time at which the bucket is empty again: {@code now} when it has none left, and
+     * {@code now - burst * nanosPerToken} or earlier when it is full.
+     */
+    private class TokenBucket {
+        private long emptyAtNanos;
+
+        private TokenBucket(long now) {
+            this.emptyAtNanos = now - burst * nanosPerToken;
+        }
+
+        private synchronized long tryAcquire(long now) {
+            long fullAt = now - burst * nanosPerToken;
+            if (emptyAtNanos - fullAt < 0) {
+                emptyAtNanos = fullAt;
+            }
+            long next = emptyAtNanos + nanosPerToken;
+            if (next - now > 0) {
+                return next - now;
+            }
+            emptyAtNanos = next;
+            return 0;
+        }
+
+        private synchronized boolean isFull(long now) {
+            return emptyAtNanos - (now - burst * nanosPerToken) <= 0;
+        }
+    }
+}
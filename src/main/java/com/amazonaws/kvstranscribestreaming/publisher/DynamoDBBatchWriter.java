@@ -0,0 +1,339 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes items to a DynamoDB table in the background, in BatchWriteItem requests shared by all calls of the process.
+ *
+ * Items are queued and written by a single writer thread, in batches of up to 25 that are sent once full or once
+ * the oldest item has waited for the maximum delay. Items with the same key in a batch are collapsed into the last
+ * one, since a batch can't write a key twice. Unprocessed items, and the items of a batch failing with an error that
+ * can be retried, are queued again after a jittered exponential backoff, so the writer thread never sleeps, and are
+ * dropped after the maximum number of attempts. At most the queue capacity items wait to be written: beyond that new
+ * items are dropped rather than growing the heap or blocking the Transcribe response thread.
+ *
+ * The writes, batches, unprocessed and dropped items are counted and exported every 10 seconds, as the
+ * DynamoDBBatchSize average and the DynamoDBUnprocessedItems and DynamoDBWriteDropped metrics.
+ */
+public class DynamoDBBatchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DynamoDBBatchWriter.class);
+    private static final String DDB_BATCH_MAX_DELAY_MS = System.getenv("DDB_BATCH_MAX_DELAY_MS");
+    private static final String DDB_BATCH_QUEUE_CAPACITY = System.getenv("DDB_BATCH_QUEUE_CAPACITY");
+    private static final long DEFAULT_MAX_DELAY_MS = 100;
+    private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    private static final int MAX_BATCH_SIZE = 25;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5_000;
+    private static final long METRICS_INTERVAL_SECONDS = 10;
+
+    // schedules the retries and exports the metrics of all writers
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("ddb-batch-scheduler-%d").daemon(true).build());
+
+    private final DynamoDB dynamoDB;
+    private final String tableName;
+    private final String hashKeyName;
+    private final String rangeKeyName;
+    private final long maxDelayNanos;
+    private final int queueCapacity;
+    private final MetricsUtil metricsUtil;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    // items written and not completed yet, queued or waiting for a retry
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedItems = new AtomicLong();
+    private final AtomicLong unprocessedItems = new AtomicLong();
+    private final AtomicLong droppedItems = new AtomicLong();
+    private long droppedExported;
+
+    /**
+     * @param dynamoDB       client the batches are written with
+     * @param tableName      table the items are written to
+     * @param hashKeyName    name of the table's hash key, a string or number
+     * @param rangeKeyName   name of the table's range key, a string or number, null if it has none
+     * @param maxDelayMillis longest time an item waits for its batch to fill up
+     * @param queueCapacity  most items waiting to be written
+     * @param metricsUtil
+     */
+    public DynamoDBBatchWriter(DynamoDB dynamoDB, String tableName, String hashKeyName, String rangeKeyName,
+                               long maxDelayMillis, int queueCapacity, MetricsUtil metricsUtil) {
+        Validate.isTrue(maxDelayMillis >= 0, "Max batch delay must not be negative");
+        Validate.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+        this.dynamoDB = Validate.notNull(dynamoDB);
+        this.tableName = Validate.notNull(tableName);
+        this.hashKeyName = Validate.notNull(hashKeyName);
+        this.rangeKeyName = rangeKeyName;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.queueCapacity = queueCapacity;
+        this.metricsUtil = Validate.notNull(metricsUtil);
+
+        new BasicThreadFactory.Builder()
+                .namingPattern("ddb-batch-writer-" + tableName + "-%d")
+                .daemon(true)
+                .build()
+                .newThread(this::writeLoop)
+                .start();
+        scheduler.scheduleWithFixedDelay(this::recordMetrics, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return writer configured by the DDB_BATCH_MAX_DELAY_MS and DDB_BATCH_QUEUE_CAPACITY environment variables
+     */
+    public static DynamoDBBatchWriter fromEnvironment(DynamoDB dynamoDB, String tableName, String hashKeyName,
+                                                      String rangeKeyName, MetricsUtil metricsUtil) {
+        return new DynamoDBBatchWriter(dynamoDB, tableName, hashKeyName, rangeKeyName,
+                DDB_BATCH_MAX_DELAY_MS == null ? DEFAULT_MAX_DELAY_MS : Long.parseLong(DDB_BATCH_MAX_DELAY_MS),
+                DDB_BATCH_QUEUE_CAPACITY == null ? DEFAULT_QUEUE_CAPACITY : Integer.parseInt(DDB_BATCH_QUEUE_CAPACITY),
+                metricsUtil);
+    }
+
+    /**
+     * Queue an item to be written. Never blocks.
+     *
+     * @param item item to write
+     * @return future completed on the writer thread once the item is written, or exceptionally if it was dropped
+     */
+    public CompletableFuture<Void> write(Item item) {
+        Entry entry = new Entry(Validate.notNull(item));
+        if (pending.incrementAndGet() > queueCapacity) {
+            pending.decrementAndGet();
+            logger.warn("Dropping item for table {}, too many items waiting to be written", tableName);
+            droppedItems.incrementAndGet();
+            entry.written.completeExceptionally(new IllegalStateException(
+                    "Too many items waiting to be written to table " + tableName));
+            return entry.written;
+        }
+        queue.add(entry);
+        return entry.written;
+    }
+
+    /**
+     * @return items dropped so far
+     */
+    long getDroppedCount() {
+        return droppedItems.get();
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    Entry entry = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (entry == null) {
+                        break;
+                    }
+                    batch.add(entry);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                logger.warn("DynamoDB batch writer for table {} interrupted, {} items not written", tableName,
+                        pending.get());
+                return;
+            } catch (RuntimeException e) {
+                logger.error("DynamoDB batch writer for table {} failed", tableName, e);
+                dropAll(batch, e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write the batch, then complete its written items and queue the others again.
+     */
+    private void writeBatch(List<Entry> batch) {
+        // a batch can't write the same key twice, the last item queued wins and completes the others with it
+        Map<List<Object>, List<Entry>> entriesByKey = new LinkedHashMap<>();
+        Map<List<Object>, Item> items = new LinkedHashMap<>();
+        for (Entry entry : batch) {
+            List<Object> key = keyOf(entry.item);
+            entriesByKey.computeIfAbsent(key, k -> new ArrayList<>(1)).add(entry);
+            items.put(key, entry.item);
+        }
+        batches.incrementAndGet();
+        batchedItems.addAndGet(items.size());
+
+        Map<String, List<WriteRequest>> unprocessed;
+        try {
+            unprocessed = dynamoDB.batchWriteItem(new TableWriteItems(tableName).withItemsToPut(items.values()))
+                    .getUnprocessedItems();
+        } catch (RuntimeException e) {
+            if (!isRetryable(e)) {
+                logger.error("Failed to write {} items to table {}", items.size(), tableName, e);
+                dropAll(batch, e);
+                return;
+            }
+            logger.warn("Failed to write {} items to table {}, retrying", items.size(), tableName, e);
+            retry(batch, e);
+            return;
+        }
+
+        List<Entry> retried = new ArrayList<>();
+        List<WriteRequest> unprocessedRequests = unprocessed == null ? null : unprocessed.get(tableName);
+        if (unprocessedRequests != null) {
+            unprocessedItems.addAndGet(unprocessedRequests.size());
+            for (WriteRequest request : unprocessedRequests) {
+                List<Entry> entries = request.getPutRequest() == null
+                        ? null : entriesByKey.remove(keyOf(request.getPutRequest().getItem()));
+                if (entries != null) {
+                    retried.addAll(entries);
+                }
+            }
+        }
+        for (List<Entry> entries : entriesByKey.values()) {
+            for (Entry entry : entries) {
+                complete(entry);
+            }
+        }
+        if (!retried.isEmpty()) {
+            retry(retried, null);
+        }
+    }
+
+    /**
+     * Queue the entries again after a backoff, or drop those out of attempts.
+     *
+     * @param failure why the entries weren't written, null if they were unprocessed
+     */
+    private void retry(List<Entry> entries, RuntimeException failure) {
+        List<Entry> retried = new ArrayList<>(entries.size());
+        int attempts = 0;
+        for (Entry entry : entries) {
+            if (++entry.attempts >= MAX_ATTEMPTS) {
+                logger.error("Dropping item for table {} after {} attempts", tableName, entry.attempts);
+                drop(entry, failure != null ? failure : new IllegalStateException(
+                        "Item not processed by table " + tableName + " after " + entry.attempts + " attempts"));
+            } else {
+                retried.add(entry);
+                attempts = Math.max(attempts, entry.attempts);
+            }
+        }
+        if (retried.isEmpty()) {
+            return;
+        }
+
+        long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempts);
+        scheduler.schedule(() -> queue.addAll(retried),
+                ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1), TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(Entry entry) {
+        pending.decrementAndGet();
+        entry.written.complete(null);
+    }
+
+    private void drop(Entry entry, Throwable cause) {
+        pending.decrementAndGet();
+        droppedItems.incrementAndGet();
+        entry.written.completeExceptionally(cause);
+    }
+
+    private void dropAll(List<Entry> entries, Throwable cause) {
+        for (Entry entry : entries) {
+            if (!entry.written.isDone()) {
+                drop(entry, cause);
+            }
+        }
+    }
+
+    /**
+     * Throttling, server errors and client errors such as timeouts are retried, invalid requests aren't.
+     */
+    private static boolean isRetryable(RuntimeException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            return RetryUtils.isThrottlingException(serviceException)
+                    || RetryUtils.isRetryableServiceException(serviceException);
+        }
+        return e instanceof AmazonClientException && ((AmazonClientException) e).isRetryable();
+    }
+
+    private void recordMetrics() {
+        long batchCount = batches.getAndSet(0);
+        long itemCount = batchedItems.getAndSet(0);
+        if (batchCount > 0) {
+            metricsUtil.recordMetric("DynamoDBBatchSize", (double) itemCount / batchCount, StandardUnit.Count);
+        }
+        long unprocessed = unprocessedItems.getAndSet(0);
+        if (unprocessed > 0) {
+            metricsUtil.recordMetric("DynamoDBUnprocessedItems", unprocessed);
+        }
+        long dropped = droppedItems.get();
+        if (dropped > droppedExported) {
+            metricsUtil.recordMetric("DynamoDBWriteDropped", dropped - droppedExported);
+            droppedExported = dropped;
+        }
+    }
+
+    private List<Object> keyOf(Item item) {
+        return rangeKeyName == null
+                ? Arrays.asList(keyValue(item.get(hashKeyName)))
+                : Arrays.asList(keyValue(item.get(hashKeyName)), keyValue(item.get(rangeKeyName)));
+    }
+
+    /**
+     * Key of an unprocessed item, as sent in the request.
+     */
+    private List<Object> keyOf(Map<String, AttributeValue> item) {
+        return rangeKeyName == null
+                ? Arrays.asList(attributeKeyValue(item.get(hashKeyName)))
+                : Arrays.asList(attributeKeyValue(item.get(hashKeyName)), attributeKeyValue(item.get(rangeKeyName)));
+    }
+
+    private static Object attributeKeyValue(AttributeValue value) {
+        if (value == null) {
+            return null;
+        }
+        return value.getN() != null ? keyValue(new BigDecimal(value.getN())) : value.getS();
+    }
+
+    private static Object keyValue(Object value) {
+        // 1.5 and 1.50 are the same number key
+        return value instanceof Number ? new BigDecimal(value.toString()).stripTrailingZeros() : value;
+    }
+
+    private static class Entry {
+        private final Item item;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        // only used by the writer thread and the scheduler, one at a time
+        private int attempts;
+
+        private Entry(Item item) {
+            this.item = item;
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package com.amazonaws.kvstranscribestreaming.publisher;
 
+import com.amazonaws.kvstranscribestreaming.utils.LatencyTracker;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
-import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.streamingeventmodel.StreamingStatusDetail;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -14,32 +14,70 @@ import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent
 import java.text.NumberFormat;
 import java.time.Instant;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.amazonaws.kvstranscribestreaming.constants.TranscribeDDBConstants.*;
 
 /**
  * TranscribedSegmentWriter writes the transcript segments to DynamoDB
+ *
+ * With a {@link DynamoDBBatchWriter} segments are queued to be written in batches in the background, off the
+ * Transcribe response thread, and {@link #publishDone()} waits for the call's own segments to be written, not for
+ * those other calls queued meanwhile.
  */
 public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
     private final String transactionId;
     private final String callId;
-    private String speakerLabel;
-    private final DynamoDB ddbClient;
+    private final SpeakerLabelRegistry speakerLabelRegistry;
+    private final String speakerLeg;
+    private volatile String speakerLabel;
+    private final Table transcriptTable;
+    private final DynamoDBBatchWriter batchWriter;
     private final Boolean consoleLogTranscriptFlag;
     private final Boolean isCaller;
-    private static final String TABLE_TRANSCRIPT = "TranscriptSegment";
+    private final LatencyTracker.CallLatency latency;
+    // segments queued to the batch writer and not written or dropped yet
+    private final Set<CompletableFuture<Void>> pendingWrites = ConcurrentHashMap.newKeySet();
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+    private static final boolean PUBLISH_PARTIAL_RESULTS = Boolean.parseBoolean(System.getenv("TRANSCRIBE_PARTIAL_RESULTS"));
     private static final Logger logger = LoggerFactory.getLogger(DynamoDBTranscriptionPublisher.class);
 
     public DynamoDBTranscriptionPublisher(StreamingStatusDetail streamingStatusStartedDetail, DynamoDB ddbClient, Boolean consoleLogTranscriptFlag) {
+        this(streamingStatusStartedDetail, ddbClient, consoleLogTranscriptFlag, null, null);
+    }
+
+    /**
+     * @param latency     latency the segments written are recorded to, null to record none
+     * @param batchWriter writer the segments are queued to, null to write each one synchronously
+     */
+    public DynamoDBTranscriptionPublisher(StreamingStatusDetail streamingStatusStartedDetail, DynamoDB ddbClient,
+                                          Boolean consoleLogTranscriptFlag, LatencyTracker.CallLatency latency,
+                                          DynamoDBBatchWriter batchWriter) {
         this.transactionId = Validate.notNull(streamingStatusStartedDetail.getTransactionId());
         this.callId = streamingStatusStartedDetail.getCallId();
-        this.ddbClient = Validate.notNull(ddbClient);
+        this.transcriptTable = Validate.notNull(ddbClient).getTable(TABLE_TRANSCRIPT);
+        this.batchWriter = batchWriter;
         this.consoleLogTranscriptFlag = Validate.notNull(consoleLogTranscriptFlag);
         this.isCaller = streamingStatusStartedDetail.getIsCaller();
+        this.latency = latency;
 
-        // initialize it to null so it's set on the first write
-        // TODO:  this is a race condition nightmare so use the leg attribute once it's available
-        this.speakerLabel = null;
+        // resolved once per call, before any segment is published, unless the claim fails
+        if (this.isCaller != null) {
+            this.speakerLabelRegistry = null;
+            this.speakerLeg = null;
+            this.speakerLabel = this.isCaller == Boolean.TRUE ? "spk_0" : "spk_1";
+        } else {
+            String streamArn = streamingStatusStartedDetail.getStreamArn();
+            this.speakerLabelRegistry = new SpeakerLabelRegistry(ddbClient);
+            this.speakerLeg = streamArn != null ? streamArn : UUID.randomUUID().toString();
+            this.speakerLabel = speakerLabelRegistry.claim(this.transactionId, this.speakerLeg);
+        }
     }
 
     @Override
@@ -49,12 +87,13 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
 
             Result result = results.get(0);
 
-            // we're only saving final transcripts here (note:  this will make the Ux appear slower)
-            if (!result.isPartial()) {
+            // we're only saving final transcripts here unless partial results are enabled (note:  this will make the Ux appear slower)
+            // a partial result is overwritten by the following ones and its final result, they share the start time
+            if (!result.isPartial() || PUBLISH_PARTIAL_RESULTS) {
                 try {
                     Item ddbItem = toDynamoDbItem(result);
                     if (ddbItem != null) {
-                        getDdbClient().getTable(TABLE_TRANSCRIPT).putItem(ddbItem);
+                        write(ddbItem, latency == null ? null : () -> latency.recordPublished(result));
                     }
 
                 } catch (Exception e) {
@@ -84,34 +123,42 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
         
         if (ddbItem != null) {
             try {
-                getDdbClient().getTable(TABLE_TRANSCRIPT).putItem(ddbItem);
+                write(ddbItem, null);
+                if (batchWriter != null) {
+                    CompletableFuture.allOf(pendingWrites.toArray(new CompletableFuture<?>[0]))
+                            .get(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while waiting for the transcript of {} to be written to DDB", this.transactionId);
+            } catch (ExecutionException | TimeoutException e) {
+                logger.error("Transcript of {} not fully written to DDB within {} seconds", this.transactionId, DRAIN_TIMEOUT_SECONDS, e);
             } catch (Exception e) {
                 logger.error("Exception while writing to DDB:", e);
             }
         }
-    }
 
-    private DynamoDB getDdbClient() {
-        return this.ddbClient;
+        if (latency != null) {
+            latency.close();
+        }
     }
 
-    private String initSpeakerLabel() {
-        // assume that the first speaker is spk_0 and all others are spk_1
-        // TODO:  if we need to be more precise, use the stream ARN to determine how many speakers for a given CallId
-        String speaker = "spk_0";
-
-        QuerySpec spec = new QuerySpec()
-            .withMaxResultSize(1)
-            .withKeyConditionExpression(TRANSACTION_ID + " = :id")
-            .withValueMap(new ValueMap().withString(":id", getTransactionId()));
-
-        if (getDdbClient().getTable(TABLE_TRANSCRIPT).query(spec).iterator().hasNext()) {
-            speaker = "spk_1";
+    private void write(Item ddbItem, Runnable onWritten) {
+        if (batchWriter != null) {
+            CompletableFuture<Void> written = batchWriter.write(ddbItem);
+            pendingWrites.add(written);
+            written.whenComplete((v, e) -> {
+                pendingWrites.remove(written);
+                if (e == null && onWritten != null) {
+                    onWritten.run();
+                }
+            });
+            return;
+        }
+        transcriptTable.putItem(ddbItem);
+        if (onWritten != null) {
+            onWritten.run();
         }
-
-        logger.info(String.format("Speaker label was assumed to be %s for %s", speaker, getTransactionId()));
-
-        return speaker;
     }
 
     private Item toDynamoDbItem(Result result) {
@@ -119,11 +166,11 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
         Instant now = Instant.now();
         if (result.alternatives().size() > 0) {
             if (!result.alternatives().get(0).transcript().isEmpty()) {
+                String speaker = getSpeakerLabel();
                 ddbItem = new Item()
                         .withKeyComponent(TRANSACTION_ID, this.transactionId)
                         .withKeyComponent(START_TIME, result.startTime())
                         .withString(CALL_ID, this.callId)
-                        .withString(SPEAKER, getSpeakerLabel())
                         .withDouble(END_TIME, result.endTime())
                         .withString(SEGMENT_ID, result.resultId())
                         .withString(TRANSCRIPT, result.alternatives().get(0).transcript())
@@ -131,6 +178,9 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
                         .withString(LOGGED_ON, now.toString())
                         .withBoolean(IS_PARTIAL, result.isPartial())
                         .withBoolean(IS_FINAL, Boolean.FALSE);
+                if (speaker != null) {
+                    ddbItem.withString(SPEAKER, speaker);
+                }
 
                 if (consoleLogTranscriptFlag) {
                     NumberFormat nf = NumberFormat.getInstance();
@@ -142,7 +192,7 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
                             System.currentTimeMillis(),
                             nf.format(result.startTime()),
                             nf.format(result.endTime()),
-                            getSpeakerLabel(),
+                            speaker,
                             result.alternatives().get(0).transcript()));
                 }
             }
@@ -151,18 +201,13 @@ public class DynamoDBTranscriptionPublisher implements TranscriptionPublisher {
         return ddbItem;
     }
 
-    private String getTransactionId() {
-        return this.transactionId;
-    }
-
+    /**
+     * @return speaker label of the leg, claimed again if the claim failed so far, null until a claim succeeds
+     */
     private String getSpeakerLabel() {
-        // If isCaller is not avaiable, fall back to initial speaker label by querying DynamoDB.
-        if (this.isCaller == null && this.speakerLabel == null) {
-            this.speakerLabel = initSpeakerLabel();
-        } else if (this.isCaller != null) {
-            this.speakerLabel = this.isCaller == Boolean.TRUE ? "spk_0" : "spk_1";
+        if (this.speakerLabel == null) {
+            this.speakerLabel = speakerLabelRegistry.claim(this.transactionId, this.speakerLeg);
         }
-
         return this.speakerLabel;
     }
 }
@@ -0,0 +1,284 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.kvstranscribestreaming.utils.LatencyTracker;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher queueing events for another publisher, so that a slow publisher neither delays the others nor backs up
+ * the Transcribe response stream.
+ *
+ * Every publisher of a call has its own bounded queue, drained in order by at most one task at a time on a thread
+ * pool shared by all publishers of the process. When the queue is full, the overflow policy decides: drop the oldest
+ * partial result and let final results spill over the capacity, drop the oldest event, or wait for room. Only waiting
+ * blocks the caller, so the other policies are safe on the Transcribe response thread. The events
+ * queued across all calls, per publisher type, are sampled as the {@code <type>PublishQueueDepth} metric, the events
+ * dropped since the last sample as {@code <type>PublishDropped}, and the time the publisher takes per event is tracked as
+ * {@code <type>PublishTime} percentiles.
+ *
+ * {@link #publishDone()} waits for the queued events to be published before the publisher is told the call is done.
+ */
+public class QueuedTranscriptionPublisher implements TranscriptionPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueuedTranscriptionPublisher.class);
+    private static final String PUBLISHER_QUEUE_CAPACITY = System.getenv("PUBLISHER_QUEUE_CAPACITY");
+    private static final String PUBLISHER_OVERFLOW_POLICY = System.getenv("PUBLISHER_OVERFLOW_POLICY");
+    private static final String PUBLISHER_MAX_THREADS = System.getenv("PUBLISHER_MAX_THREADS");
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_MAX_THREADS = 64;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+    private static final long METRICS_INTERVAL_SECONDS = 10;
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    private static final ThreadPoolExecutor publisherPool;
+    private static final ScheduledExecutorService metricsSampler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("publisher-queue-metrics-%d").daemon(true).build());
+    private static final Map<String, PublisherType> publisherTypes = new ConcurrentHashMap<>();
+
+    static {
+        int maxThreads = PUBLISHER_MAX_THREADS == null ? DEFAULT_MAX_THREADS : Integer.parseInt(PUBLISHER_MAX_THREADS);
+        publisherPool = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new BasicThreadFactory.Builder().namingPattern("transcript-publisher-%d").daemon(true).build());
+        publisherPool.allowCoreThreadTimeOut(true);
+        metricsSampler.scheduleWithFixedDelay(QueuedTranscriptionPublisher::recordQueueMetrics,
+                METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for room in the queue. This blocks the thread publishing, which for the Transcribe response handler is
+         * a thread of the SDK's event loop shared by many calls, so it must not be used there.
+         */
+        BLOCK,
+        /** Drop the oldest event queued. */
+        DROP_OLDEST,
+        /**
+         * Drop the oldest partial result queued, or the new one. A final result with no partial to make room for it
+         * spills over the capacity, by at most the capacity again, and is only dropped beyond that.
+         */
+        DROP_PARTIALS;
+
+        /**
+         * @param value policy name, in any case and with dashes or underscores
+         */
+        public static OverflowPolicy fromValue(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final String callId;
+    private final TranscriptionPublisher delegate;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final PublisherType type;
+    private final Deque<TranscriptEvent> queue = new ArrayDeque<>();
+    private boolean draining;
+
+    /**
+     * @param type           publisher type, e.g. DynamoDB, used in the metric names
+     * @param callId         call the events belong to, for logging
+     * @param delegate       publisher the events are published to
+     * @param capacity       most events queued
+     * @param overflowPolicy what to do with an event when the queue is full
+     * @param metricsUtil
+     */
+    public QueuedTranscriptionPublisher(String type, String callId, TranscriptionPublisher delegate, int capacity,
+                                        OverflowPolicy overflowPolicy, MetricsUtil metricsUtil) {
+        Validate.isTrue(capacity > 0, "Queue capacity must be positive");
+        this.callId = Validate.notNull(callId);
+        this.delegate = Validate.notNull(delegate);
+        this.capacity = capacity;
+        this.overflowPolicy = Validate.notNull(overflowPolicy);
+        this.type = publisherTypes.computeIfAbsent(Validate.notNull(type),
+                name -> new PublisherType(name, Validate.notNull(metricsUtil)));
+    }
+
+    /**
+     * @return publisher queueing events as configured by the PUBLISHER_QUEUE_CAPACITY and PUBLISHER_OVERFLOW_POLICY
+     * environment variables, dropping partial results first by default
+     */
+    public static QueuedTranscriptionPublisher fromEnvironment(String type, String callId,
+                                                               TranscriptionPublisher delegate,
+                                                               MetricsUtil metricsUtil) {
+        return new QueuedTranscriptionPublisher(type, callId, delegate,
+                PUBLISHER_QUEUE_CAPACITY == null ? DEFAULT_QUEUE_CAPACITY : Integer.parseInt(PUBLISHER_QUEUE_CAPACITY),
+                PUBLISHER_OVERFLOW_POLICY == null
+                        ? OverflowPolicy.DROP_PARTIALS : OverflowPolicy.fromValue(PUBLISHER_OVERFLOW_POLICY),
+                metricsUtil);
+    }
+
+    @Override
+    public void publish(TranscriptEvent e) {
+        synchronized (this) {
+            try {
+                if (queue.size() >= capacity && !makeRoom(e)) {
+                    dropped();
+                    return;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                dropped();
+                return;
+            }
+
+            queue.addLast(e);
+            type.queued.incrementAndGet();
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        publisherPool.execute(this::drain);
+    }
+
+    @Override
+    public void publishDone() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        synchronized (this) {
+            try {
+                while (draining) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        logger.error("[{}] {} events still queued for the {} publisher after {} seconds", callId,
+                                queue.size(), type.name, DRAIN_TIMEOUT_SECONDS);
+                        break;
+                    }
+                    wait(remainingMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        delegate.publishDone();
+    }
+
+    /**
+     * Make room in the full queue for the event, as the overflow policy says. Called with the lock held.
+     *
+     * @return false if the event has to be dropped instead
+     * @throws InterruptedException if interrupted while waiting for room, only with {@link OverflowPolicy#BLOCK}
+     */
+    private boolean makeRoom(TranscriptEvent e) throws InterruptedException {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                queue.removeFirst();
+                type.queued.decrementAndGet();
+                dropped();
+                return true;
+            case DROP_PARTIALS:
+                for (Iterator<TranscriptEvent> it = queue.iterator(); it.hasNext(); ) {
+                    if (isPartial(it.next())) {
+                        it.remove();
+                        type.queued.decrementAndGet();
+                        dropped();
+                        return true;
+                    }
+                }
+                // only final results are queued, they spill over rather than wait
+                return !isPartial(e) && queue.size() < 2 * capacity;
+            default:
+                while (queue.size() >= capacity) {
+                    wait();
+                }
+                return true;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            TranscriptEvent e;
+            synchronized (this) {
+                e = queue.pollFirst();
+                if (e == null) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                type.queued.decrementAndGet();
+                // wakes up a publish waiting for room
+                notifyAll();
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                delegate.publish(e);
+            } catch (RuntimeException ex) {
+                logger.error("[{}] {} publisher failed to publish an event", callId, type.name, ex);
+            }
+            type.publishTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    private void dropped() {
+        // counted only, publishing may happen on the Transcribe response thread
+        type.dropped.incrementAndGet();
+    }
+
+    /**
+     * @return events dropped by all publishers of this publisher's type
+     */
+    long getDroppedCount() {
+        return type.dropped.get();
+    }
+
+    private static boolean isPartial(TranscriptEvent e) {
+        for (Result result : e.transcript().results()) {
+            if (!Boolean.TRUE.equals(result.isPartial())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void recordQueueMetrics() {
+        for (PublisherType type : publisherTypes.values()) {
+            type.metricsUtil.recordMetric(type.name + "PublishQueueDepth", type.queued.get());
+            long dropped = type.dropped.get();
+            if (dropped > type.droppedExported) {
+                type.metricsUtil.recordMetric(type.name + "PublishDropped", dropped - type.droppedExported);
+                type.droppedExported = dropped;
+            }
+        }
+    }
+
+    /**
+     * Metrics shared by all publishers of a type.
+     */
+    private static class PublisherType {
+        private final String name;
+        private final MetricsUtil metricsUtil;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        // dropped events already exported, only read and written by the metrics sampler
+        private long droppedExported;
+        private final LatencyTracker publishTime;
+
+        private PublisherType(String name, MetricsUtil metricsUtil) {
+            this.name = name;
+            this.metricsUtil = metricsUtil;
+            this.publishTime = new LatencyTracker(name + "PublishTime", metricsUtil);
+        }
+    }
+}
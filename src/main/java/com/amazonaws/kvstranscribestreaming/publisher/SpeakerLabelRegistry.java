@@ -0,0 +1,78 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static com.amazonaws.kvstranscribestreaming.constants.SpeakerLabelDDBConstants.EXPIRES_AT;
+import static com.amazonaws.kvstranscribestreaming.constants.SpeakerLabelDDBConstants.FIRST_SPEAKER_STREAM_ARN;
+import static com.amazonaws.kvstranscribestreaming.constants.SpeakerLabelDDBConstants.TABLE_SPEAKER_LABEL;
+import static com.amazonaws.kvstranscribestreaming.constants.SpeakerLabelDDBConstants.TRANSACTION_ID;
+
+/**
+ * Assigns the speaker labels of the two legs of a call when the streaming event doesn't say which leg is the caller.
+ *
+ * The first leg to claim the call is spk_0 and the other one spk_1. The claim is a single conditional write per leg:
+ * the stream ARN of spk_0 is set on the call's item of the SpeakerLabelClaim table unless another stream already set
+ * it. The legs may be transcribed by different processes, e.g. one Lambda invocation or container per leg, so the
+ * claim is kept in DynamoDB rather than in memory. Claiming again for the same stream returns the same label. Nothing
+ * is released when a leg ends, successfully or not: the item expires a day after the last claim through the table's
+ * TTL on ExpiresAt.
+ */
+public class SpeakerLabelRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeakerLabelRegistry.class);
+    private static final String FIRST_SPEAKER = "spk_0";
+    private static final String SECOND_SPEAKER = "spk_1";
+    private static final long CLAIM_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final Table table;
+
+    /**
+     * @param dynamoDB client the claims are written with
+     */
+    public SpeakerLabelRegistry(DynamoDB dynamoDB) {
+        this.table = Validate.notNull(dynamoDB).getTable(TABLE_SPEAKER_LABEL);
+    }
+
+    /**
+     * @param transactionId transaction of the call
+     * @param streamArn     KVS stream of the leg, or any id the leg keeps while it is transcribed
+     * @return speaker label of the leg, null if it couldn't be claimed, e.g. because DynamoDB is unavailable, in which
+     * case it should be claimed again later
+     */
+    public String claim(String transactionId, String streamArn) {
+        Validate.notNull(transactionId);
+        Validate.notNull(streamArn);
+
+        String speaker;
+        try {
+            table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey(TRANSACTION_ID, transactionId)
+                    .withUpdateExpression("SET #stream = :stream, #expires = :expires")
+                    .withConditionExpression("attribute_not_exists(#stream) OR #stream = :stream")
+                    .withNameMap(new NameMap().with("#stream", FIRST_SPEAKER_STREAM_ARN).with("#expires", EXPIRES_AT))
+                    .withValueMap(new ValueMap()
+                            .withString(":stream", streamArn)
+                            .withLong(":expires", Instant.now().getEpochSecond() + CLAIM_TTL_SECONDS)));
+            speaker = FIRST_SPEAKER;
+        } catch (ConditionalCheckFailedException e) {
+            speaker = SECOND_SPEAKER;
+        } catch (RuntimeException e) {
+            logger.error("Failed to claim a speaker label for stream {} of {}", streamArn, transactionId, e);
+            return null;
+        }
+
+        logger.info("Speaker label {} claimed for stream {} of {}", speaker, streamArn, transactionId);
+        return speaker;
+    }
+}
@@ -0,0 +1,208 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.streamingeventmodel.StreamingStatusDetail;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.apache.commons.lang3.Validate;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Encodes the transcript of a call into the payload of web socket frames.
+ *
+ * The TEXT format is a human readable line per segment, segments of one frame separated by new lines:
+ * <pre>
+ * [1.230, 2.500] (partial) Caller(+15555550100) - ...
+ * </pre>
+ * The JSON format is one object per frame:
+ * <pre>
+ * {"version":1,"type":"transcript","callId":"...","streamArn":"...","segments":[{"id":"...","speaker":"caller",
+ *   "number":"+15555550100","startTime":1.23,"endTime":2.5,"partial":false,"transcript":"..."}]}
+ * {"version":1,"type":"end","callId":"...","streamArn":"..."}
+ * </pre>
+ *
+ * An encoder builds every frame in the same buffers, so it is not thread safe and a frame it returns is only valid
+ * until it encodes the next one.
+ */
+public class WebSocketFrameEncoder {
+
+    /**
+     * Payload format of the frames.
+     */
+    public enum Format {
+        TEXT,
+        JSON;
+
+        /**
+         * @param value format name, in any case
+         */
+        public static Format fromValue(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    static final int SCHEMA_VERSION = 1;
+    private static final int INITIAL_FRAME_BYTES = 1024;
+
+    private final Format format;
+    private final StreamingStatusDetail detail;
+    private final String speaker;
+    private final String speakerNumber;
+    private final StringBuilder text = new StringBuilder(INITIAL_FRAME_BYTES);
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer frame = ByteBuffer.allocate(INITIAL_FRAME_BYTES);
+
+    /**
+     * @param format payload format of the frames
+     * @param detail streaming event of the call leg transcribed
+     */
+    public WebSocketFrameEncoder(Format format, StreamingStatusDetail detail) {
+        this.format = Validate.notNull(format);
+        this.detail = Validate.notNull(detail);
+        boolean isCaller = detail.getIsCaller() == Boolean.TRUE;
+        this.speaker = isCaller ? "caller" : "callee";
+        this.speakerNumber = isCaller ? detail.getFromNumber() : detail.getToNumber();
+    }
+
+    /**
+     * @param results results to send in one frame, in order
+     * @return payload of the frame, valid until the next frame is encoded
+     */
+    public ByteBuffer encode(Collection<Result> results) {
+        text.setLength(0);
+        if (format == Format.JSON) {
+            appendJsonHeader("transcript");
+            text.append(",\"segments\":[");
+            boolean first = true;
+            for (Result result : results) {
+                if (!first) {
+                    text.append(',');
+                }
+                appendJsonSegment(result);
+                first = false;
+            }
+            text.append("]}");
+        } else {
+            boolean first = true;
+            for (Result result : results) {
+                if (!first) {
+                    text.append('\n');
+                }
+                appendTextSegment(result);
+                first = false;
+            }
+        }
+        return toFrame();
+    }
+
+    /**
+     * @return payload of the frame telling the client that the transcription ended, valid until the next frame is
+     * encoded
+     */
+    public ByteBuffer encodeEnd() {
+        text.setLength(0);
+        if (format == Format.JSON) {
+            appendJsonHeader("end");
+            text.append('}');
+        } else {
+            text.append("=== Transcription Ended for call ").append(detail.getCallId())
+                    .append(" in stream ").append(detail.getStreamArn()).append(" ===");
+        }
+        return toFrame();
+    }
+
+    private void appendTextSegment(Result result) {
+        text.append('[');
+        appendSeconds(result.startTime());
+        text.append(", ");
+        appendSeconds(result.endTime());
+        text.append(']');
+        if (Boolean.TRUE.equals(result.isPartial())) {
+            text.append(" (partial)");
+        }
+        text.append(' ').append(detail.getIsCaller() == Boolean.TRUE ? "Caller(" : "Callee(").append(speakerNumber)
+                .append(") - ").append(transcriptOf(result));
+    }
+
+    private void appendJsonHeader(String type) {
+        text.append("{\"version\":").append(SCHEMA_VERSION).append(",\"type\":\"").append(type).append('"');
+        text.append(",\"callId\":");
+        appendJsonString(detail.getCallId());
+        text.append(",\"streamArn\":");
+        appendJsonString(detail.getStreamArn());
+    }
+
+    private void appendJsonSegment(Result result) {
+        text.append("{\"id\":");
+        appendJsonString(result.resultId());
+        text.append(",\"speaker\":\"").append(speaker).append('"');
+        text.append(",\"number\":");
+        appendJsonString(speakerNumber);
+        text.append(",\"startTime\":").append(result.startTime());
+        text.append(",\"endTime\":").append(result.endTime());
+        text.append(",\"partial\":").append(Boolean.TRUE.equals(result.isPartial()));
+        text.append(",\"transcript\":");
+        appendJsonString(transcriptOf(result));
+        text.append('}');
+    }
+
+    private void appendJsonString(String value) {
+        if (value == null) {
+            text.append("null");
+            return;
+        }
+        text.append('"');
+        JsonStringEncoder.getInstance().quoteAsString(value, text);
+        text.append('"');
+    }
+
+    /**
+     * Append seconds with three decimals, like 12.340, without a formatter.
+     */
+    private void appendSeconds(Double seconds) {
+        if (seconds == null) {
+            text.append("null");
+            return;
+        }
+        long millis = Math.round(seconds * 1000);
+        long fraction = millis % 1000;
+        text.append(millis / 1000).append('.');
+        if (fraction < 100) {
+            text.append('0');
+        }
+        if (fraction < 10) {
+            text.append('0');
+        }
+        text.append(fraction);
+    }
+
+    private static String transcriptOf(Result result) {
+        return result.alternatives().isEmpty() ? "" : result.alternatives().get(0).transcript();
+    }
+
+    /**
+     * Encode the text built into the frame buffer, growing it when the text doesn't fit.
+     */
+    private ByteBuffer toFrame() {
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            frame.clear();
+            utf8.reset();
+            CoderResult result = utf8.encode(chars, frame, true);
+            if (!result.isOverflow()) {
+                result = utf8.flush(frame);
+            }
+            if (!result.isOverflow()) {
+                frame.flip();
+                return frame;
+            }
+            frame = ByteBuffer.allocate(frame.capacity() * 2);
+            chars.rewind();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiAsyncClient;
+import software.amazon.awssdk.services.apigatewaymanagementapi.model.PostToConnectionRequest;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts web socket frames through the API Gateway Management API, for all calls of the process.
+ *
+ * Posts are sent by one asynchronous client on the Netty HTTP client, so no thread waits for a post to be answered
+ * and its connection pool is shared by all calls. At most the maximum number of posts are in flight at once, the
+ * others wait in order to be sent as earlier ones complete. Every post returns a future completed once API Gateway
+ * answered, or completed exceptionally with the cause of the failure, e.g. a GoneException if the client has
+ * disconnected. Failed posts are counted and exported as the {@code WebSocketPostFailed} metric every 10 seconds.
+ */
+public class WebSocketPostClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketPostClient.class);
+    private static final String TRANSCRIBE_API_GATEWAY_APIID = System.getenv("TRANSCRIBE_API_GATEWAY_APIID");
+    private static final String TRANSCRIBE_API_GATEWAY_STAGE = System.getenv("TRANSCRIBE_API_GATEWAY_STAGE");
+    private static final String AWS_REGION = System.getenv("AWS_REGION");
+    private static final String WEBSOCKET_MAX_IN_FLIGHT_POSTS = System.getenv("WEBSOCKET_MAX_IN_FLIGHT_POSTS");
+    private static final int DEFAULT_MAX_IN_FLIGHT_POSTS = 200;
+    private static final long METRICS_INTERVAL_SECONDS = 10;
+
+    private static final ScheduledExecutorService metricsSampler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("websocket-post-metrics-%d").daemon(true).build());
+
+    private final ApiGatewayManagementApiAsyncClient apiGatewayClient;
+    private final Semaphore inFlightPermits;
+    private final MetricsUtil metricsUtil;
+    private final Queue<WaitingPost> waitingPosts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger senders = new AtomicInteger();
+    private final AtomicLong failedPosts = new AtomicLong();
+
+    /**
+     * @param apiGatewayClient client the frames are posted with
+     * @param maxInFlightPosts most posts sent and not answered yet
+     * @param metricsUtil
+     */
+    public WebSocketPostClient(ApiGatewayManagementApiAsyncClient apiGatewayClient, int maxInFlightPosts,
+                               MetricsUtil metricsUtil) {
+        Validate.isTrue(maxInFlightPosts > 0, "Max in flight posts must be positive");
+        this.apiGatewayClient = Validate.notNull(apiGatewayClient);
+        this.inFlightPermits = new Semaphore(maxInFlightPosts);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        metricsSampler.scheduleWithFixedDelay(this::recordMetrics, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return client posting to the stage TRANSCRIBE_API_GATEWAY_STAGE of the API TRANSCRIBE_API_GATEWAY_APIID, with
+     * at most WEBSOCKET_MAX_IN_FLIGHT_POSTS posts in flight
+     */
+    public static WebSocketPostClient fromEnvironment(AwsCredentialsProvider credentialsProvider,
+                                                      MetricsUtil metricsUtil) {
+        int maxInFlightPosts = WEBSOCKET_MAX_IN_FLIGHT_POSTS == null
+                ? DEFAULT_MAX_IN_FLIGHT_POSTS : Integer.parseInt(WEBSOCKET_MAX_IN_FLIGHT_POSTS);
+        ApiGatewayManagementApiAsyncClient apiGatewayClient = ApiGatewayManagementApiAsyncClient.builder()
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxInFlightPosts))
+                .credentialsProvider(credentialsProvider)
+                .endpointOverride(URI.create("https://" + TRANSCRIBE_API_GATEWAY_APIID + ".execute-api." + AWS_REGION
+                        + ".amazonaws.com/" + TRANSCRIBE_API_GATEWAY_STAGE))
+                .region(Region.of(AWS_REGION))
+                .build();
+        return new WebSocketPostClient(apiGatewayClient, maxInFlightPosts, metricsUtil);
+    }
+
+    /**
+     * Post a frame to a connection.
+     *
+     * @param connectionId web socket connection
+     * @param frame        payload of the frame, copied before this returns
+     * @return future completed once the frame is posted
+     */
+    public CompletableFuture<Void> post(String connectionId, ByteBuffer frame) {
+        WaitingPost post = new WaitingPost(PostToConnectionRequest.builder()
+                .connectionId(connectionId)
+                .data(SdkBytes.fromByteBuffer(frame))
+                .build());
+        waitingPosts.add(post);
+        sendWaitingPosts();
+        return post.posted;
+    }
+
+    /**
+     * Send waiting posts while permits are left. Only one thread sends at a time: a call while another thread, or a
+     * post completing immediately on this one, is sending makes that sender look at the queue once more instead of
+     * nesting.
+     */
+    private void sendWaitingPosts() {
+        if (senders.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!waitingPosts.isEmpty() && inFlightPermits.tryAcquire()) {
+                send(waitingPosts.poll());
+            }
+            missed = senders.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void send(WaitingPost post) {
+        CompletableFuture<?> response;
+        try {
+            response = apiGatewayClient.postToConnection(post.request);
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        // completed on the Netty event loop, which must not wait for CloudWatch
+        response.whenComplete((r, e) -> {
+            inFlightPermits.release();
+            if (e == null) {
+                post.posted.complete(null);
+            } else {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                failedPosts.incrementAndGet();
+                logger.debug("Post to connection {} failed", post.request.connectionId(), cause);
+                post.posted.completeExceptionally(cause);
+            }
+            sendWaitingPosts();
+        });
+    }
+
+    private void recordMetrics() {
+        long failed = failedPosts.getAndSet(0);
+        if (failed > 0) {
+            metricsUtil.recordMetric("WebSocketPostFailed", failed);
+        }
+    }
+
+    private static class WaitingPost {
+        private final PostToConnectionRequest request;
+        private final CompletableFuture<Void> posted = new CompletableFuture<>();
+
+        private WaitingPost(PostToConnectionRequest request) {
+            this.request = request;
+        }
+    }
+}
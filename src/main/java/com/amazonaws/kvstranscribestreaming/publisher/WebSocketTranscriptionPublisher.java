@@ -1,66 +1,98 @@
 package com.amazonaws.kvstranscribestreaming.publisher;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.apigatewaymanagementapi.AmazonApiGatewayManagementApi;
-import com.amazonaws.services.apigatewaymanagementapi.AmazonApiGatewayManagementApiClientBuilder;
-import com.amazonaws.services.apigatewaymanagementapi.model.GoneException;
-import com.amazonaws.services.apigatewaymanagementapi.model.PostToConnectionRequest;
-import com.amazonaws.services.apigatewaymanagementapi.model.PostToConnectionResult;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.kvstranscribestreaming.utils.LatencyTracker;
 import com.amazonaws.streamingeventmodel.StreamingStatusDetail;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.apigatewaymanagementapi.model.GoneException;
 import software.amazon.awssdk.services.transcribestreaming.model.Result;
 import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 
-import java.nio.charset.StandardCharsets;
-import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import static com.amazonaws.kvstranscribestreaming.constants.WebSocketMappingDDBConstants.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Implemention of publisher to transmit transcription from backend to client through API Gateway web socket.
  *
  * Steps:
- * 1. Get connection id from web socket mapping table to generate endpoint url. Publisher will keep trying to get connection id until it is
- * available in the table.
- * 2. POST transcription from AWS Transcribe to the endpoint.
+ * 1. Get connection id from web socket mapping table, through the {@link ConnectionIdCache} shared by all calls, to generate endpoint url.
+ * Publisher will keep trying to get connection id until it is available in the table, then keeps it until posting to
+ * it fails because the connection is gone.
+ * 2. POST transcription from AWS Transcribe to the endpoint, through the {@link WebSocketPostClient} shared by all calls.
+ *
+ * Segments are encoded by a {@link WebSocketFrameEncoder}, as text by default or as JSON. A segment is posted straight
+ * away unless the call posted a frame within the batch window, the {@link ConnectionRateLimiter} has no token left
+ * for the connection, or the call's previous frame is still being posted. It then waits, with the segments following
+ * it, to be posted in one frame once all of them allow it. A partial result waiting is replaced by the results
+ * following it with the same id. Posts never block the publishing thread, and the frames of a call are posted one
+ * after the other so that they arrive in order. The connection id is looked up before the call's lock is taken, so
+ * the flush thread shared by all calls never waits for a read of the mapping table.
  */
 public class WebSocketTranscriptionPublisher implements TranscriptionPublisher {
 
     private static final Logger logger = LoggerFactory.getLogger(WebSocketTranscriptionPublisher.class);
-    private static final String WEBSOCKET_MAPPING_TABLE_NAME = System.getenv("WEBSOCKET_MAPPING_TABLE_NAME");
-    private static final String TRANSCRIBE_API_GATEWAY_APIID = System.getenv("TRANSCRIBE_API_GATEWAY_APIID");
-    private static final String TRANSCRIBE_API_GATEWAY_STAGE = System.getenv("TRANSCRIBE_API_GATEWAY_STAGE");
-    private static final Regions REGION = Regions.fromName(System.getenv("AWS_REGION"));
-    private static final String API_GATEWAY_ENDPOINT = "https://" + TRANSCRIBE_API_GATEWAY_APIID + ".execute-api." + REGION.getName()
-            + ".amazonaws.com/" + TRANSCRIBE_API_GATEWAY_STAGE;
     private static final String WEB_SOCKET_PUBLISHER_PREFIX = "WebSocketPublisher:";
+    private static final boolean PUBLISH_PARTIAL_RESULTS = Boolean.parseBoolean(System.getenv("TRANSCRIBE_PARTIAL_RESULTS"));
+    private static final String WEBSOCKET_PAYLOAD_FORMAT = System.getenv("WEBSOCKET_PAYLOAD_FORMAT");
+    private static final String WEBSOCKET_BATCH_WINDOW_MS = System.getenv("WEBSOCKET_BATCH_WINDOW_MS");
+    private static final long DEFAULT_BATCH_WINDOW_MS = 50;
+    // keeps a frame well within the 32 KB API Gateway allows
+    private static final int MAX_SEGMENTS_PER_FRAME = 25;
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
 
-    private final DynamoDB dynamoDB;
-    private final AmazonApiGatewayManagementApi apigatewayClient;
-    private final AWSCredentialsProvider credentialsProvider;
+    private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("websocket-flush-%d").daemon(true).build());
+
+    private final ConnectionIdCache connectionIdCache;
+    private final ConnectionRateLimiter rateLimiter;
+    private final WebSocketPostClient postClient;
     private final StreamingStatusDetail detail;
+    private final LatencyTracker.CallLatency latency;
+    private final WebSocketFrameEncoder encoder;
+    private final long batchWindowNanos;
+    private final Map<String, Result> pending = new LinkedHashMap<>();
 
-    private String connectionId = null;
+    // read without the lock, written with it
+    private volatile String connectionId = null;
+    private String connectionNumber = null;
+    private long lastFrameNanos;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean postInFlight;
+    private CompletableFuture<Void> lastPost = CompletableFuture.completedFuture(null);
+    private boolean done;
 
-    public WebSocketTranscriptionPublisher(final DynamoDB dynamoDB,
+    /**
+     * @param connectionIdCache cache the connection ids are looked up in
+     * @param rateLimiter       limiter of the posts to each connection
+     * @param postClient        client the frames are posted with
+     * @param latency           latency the transcripts posted are recorded to, null to record none
+     */
+    public WebSocketTranscriptionPublisher(final ConnectionIdCache connectionIdCache,
+                                           final ConnectionRateLimiter rateLimiter,
+                                           final WebSocketPostClient postClient,
                                            final StreamingStatusDetail detail,
-                                           final AWSCredentialsProvider credentialsProvider
+                                           final LatencyTracker.CallLatency latency
     ) {
-        this.dynamoDB = dynamoDB;
+        this.connectionIdCache = connectionIdCache;
+        this.rateLimiter = rateLimiter;
+        this.postClient = postClient;
         this.detail = detail;
-        this.credentialsProvider = credentialsProvider;
-        AwsClientBuilder.EndpointConfiguration endpointConfiguration = new AwsClientBuilder.EndpointConfiguration(API_GATEWAY_ENDPOINT, REGION.getName());
-        this.apigatewayClient = AmazonApiGatewayManagementApiClientBuilder.standard()
-                .withCredentials(credentialsProvider)
-                .withEndpointConfiguration(endpointConfiguration)
-                .build();
+        this.latency = latency;
+        this.encoder = new WebSocketFrameEncoder(WEBSOCKET_PAYLOAD_FORMAT == null
+                ? WebSocketFrameEncoder.Format.TEXT : WebSocketFrameEncoder.Format.fromValue(WEBSOCKET_PAYLOAD_FORMAT), detail);
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(WEBSOCKET_BATCH_WINDOW_MS == null
+                ? DEFAULT_BATCH_WINDOW_MS : Long.parseLong(WEBSOCKET_BATCH_WINDOW_MS));
+        this.lastFrameNanos = System.nanoTime() - batchWindowNanos;
     }
 
     /**
@@ -71,22 +103,28 @@ public class WebSocketTranscriptionPublisher implements TranscriptionPublisher {
         List<Result> results = event.transcript().results();
         if (results.size() > 0) {
             Result result = results.get(0);
-            if (!result.isPartial()) {
+            if (!result.isPartial() || PUBLISH_PARTIAL_RESULTS) {
                 try {
-                    logger.info("{} transcription event is {}", WEB_SOCKET_PUBLISHER_PREFIX, event.toString());
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("{} transcription event is {}", WEB_SOCKET_PUBLISHER_PREFIX, event.toString());
+                    }
 
+                    // looked up before taking the lock, which the flush thread shared by all calls waits for
                     if(getConnectionId() == null) {
                         logger.info("{} connection id is null. Waiting for updating connection Id", WEB_SOCKET_PUBLISHER_PREFIX);
                         return;
                     }
-                    PostToConnectionRequest request = new PostToConnectionRequest().withConnectionId(this.connectionId).withData(StandardCharsets.UTF_8.encode(buildTranscription(result)));
-                    PostToConnectionResult postResult = apigatewayClient.postToConnection(request);
-                    logger.info("{} connection id is {}, post to connection result is {}", WEB_SOCKET_PUBLISHER_PREFIX, this.connectionId, postResult.toString());
-
-                    // No need to handle http response.
-                } catch(GoneException e) {
-                    logger.error("{} the connection with the provided id no longer exists. Refreshing connection id, message: {}", WEB_SOCKET_PUBLISHER_PREFIX, e.getMessage(), e);
-                    this.connectionId = null;
+                    synchronized (this) {
+                        // a later result with the same id replaces one still waiting, but goes out in its place
+                        pending.put(result.resultId(), result);
+                        if (scheduledFlush == null) {
+                            flush(pending.size() >= MAX_SEGMENTS_PER_FRAME);
+                        } else if (pending.size() >= MAX_SEGMENTS_PER_FRAME) {
+                            scheduledFlush.cancel(false);
+                            scheduledFlush = null;
+                            flush(true);
+                        }
+                    }
                 } catch (Exception e) {
                     logger.error("{} publish encountered exception, error message: {}", WEB_SOCKET_PUBLISHER_PREFIX, e.getMessage(), e);
                 }
@@ -95,76 +133,172 @@ public class WebSocketTranscriptionPublisher implements TranscriptionPublisher {
     }
 
     /**
-     * Publish done signal to client by posting to an established web socket connection.
+     * Publish done signal to client by posting to an established web socket connection, and wait for the call's
+     * frames to be posted.
      */
     @Override
     public void publishDone() {
-        if(getConnectionId() == null) {
-            logger.info("{} failed to get the connection id ", WEB_SOCKET_PUBLISHER_PREFIX);
-            return;
+        CompletableFuture<Void> posted;
+        // looked up before taking the lock, as when publishing
+        getConnectionId();
+        synchronized (this) {
+            done = true;
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            if(this.connectionId == null) {
+                logger.info("{} failed to get the connection id ", WEB_SOCKET_PUBLISHER_PREFIX);
+                pending.clear();
+                posted = lastPost;
+            } else {
+                // the end of the call doesn't wait for the batch window or the rate limit
+                posted = lastPost.thenCompose(v -> postRemaining());
+            }
         }
 
         try {
-            String endedMsg = String.format("=== Transcription Ended for call %s in stream %s ===", this.detail.getCallId(), this.detail.getStreamArn());
-            PostToConnectionRequest postRequest = new PostToConnectionRequest().withConnectionId(this.connectionId).withData(StandardCharsets.UTF_8.encode(endedMsg));
-            PostToConnectionResult postResult = apigatewayClient.postToConnection(postRequest);
-
-            logger.info("{} post to connection result is {}", WEB_SOCKET_PUBLISHER_PREFIX, postResult.toString());
-        } catch (Exception e) {
+            posted.get(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
             // Don't have to handle any exception since this is the last POST that is sent to the endpoint.
             logger.error("{} publish done encountered exception, error message: {}", WEB_SOCKET_PUBLISHER_PREFIX, e.getMessage(), e);
         }
+
+        if (latency != null) {
+            latency.close();
+        }
     }
 
-    private String getConnectionId() {
-        if(this.connectionId == null) {
-            GetItemSpec fromNumberSpec = new GetItemSpec()
-                    .withPrimaryKey(NUMBER, detail.getFromNumber())
-                    .withConsistentRead(true)
-                    .withProjectionExpression(CONNECTION_ID);
-
-            GetItemSpec toNumberSpec = new GetItemSpec()
-                    .withPrimaryKey(NUMBER, detail.getToNumber())
-                    .withConsistentRead(true)
-                    .withProjectionExpression(CONNECTION_ID);
-
-            Item fromNumberItem = getDDBClient().getTable(WEBSOCKET_MAPPING_TABLE_NAME).getItem(fromNumberSpec),
-                    toNumberItem = getDDBClient().getTable(WEBSOCKET_MAPPING_TABLE_NAME).getItem(toNumberSpec);
-
-            if (fromNumberItem != null && fromNumberItem.hasAttribute(CONNECTION_ID)) {
-                this.connectionId = (String) fromNumberItem.get(CONNECTION_ID);
-                logger.info("{} connection is associated with from number {} and id {}, starting transmission", WEB_SOCKET_PUBLISHER_PREFIX, detail.getFromNumber(), this.connectionId);
-                return this.connectionId;
-            }
+    /**
+     * Post the waiting segments in one frame if the batch window, the rate limit and the previous post allow it,
+     * else schedule this again for when they do. Called with the lock held and no flush scheduled.
+     *
+     * @param ignoreWindow whether to post without waiting for the end of the batch window
+     */
+    private void flush(boolean ignoreWindow) {
+        if (pending.isEmpty() || this.connectionId == null) {
+            pending.clear();
+            return;
+        }
+        if (postInFlight) {
+            // posted once the previous frame is
+            return;
+        }
+
+        long delayNanos = ignoreWindow ? 0 : lastFrameNanos + batchWindowNanos - System.nanoTime();
+        if (delayNanos <= 0) {
+            delayNanos = rateLimiter.tryAcquire(this.connectionId);
+        }
+        if (delayNanos > 0) {
+            scheduledFlush = flushScheduler.schedule(this::scheduledFlush, delayNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+        postPending();
+    }
+
+    private synchronized void scheduledFlush() {
+        scheduledFlush = null;
+        if (!done) {
+            flush(pending.size() >= MAX_SEGMENTS_PER_FRAME);
+        }
+    }
+
+    /**
+     * Post the waiting segments in one frame. Called with the lock held and no post in flight.
+     *
+     * @return future completed once the frame is posted or failed
+     */
+    private CompletableFuture<Void> postPending() {
+        List<Result> frameResults = new ArrayList<>(pending.values());
+        String postedConnectionId = this.connectionId;
+        String postedNumber = this.connectionNumber;
+        pending.clear();
+        lastFrameNanos = System.nanoTime();
+        postInFlight = true;
 
-            if (toNumberItem != null && toNumberItem.hasAttribute(CONNECTION_ID)) {
-                this.connectionId = (String) toNumberItem.get(CONNECTION_ID);
-                logger.info("{} connection is associated with to number {} and id {}, starting transmission", WEB_SOCKET_PUBLISHER_PREFIX, detail.getToNumber(), this.connectionId);
-                return this.connectionId;
+        // never completed on a thread holding the lock of another call's publisher
+        lastPost = postClient.post(postedConnectionId, encoder.encode(frameResults))
+                .handleAsync((v, e) -> {
+                    onPosted(frameResults, postedConnectionId, postedNumber, e);
+                    return null;
+                }, flushScheduler);
+        return lastPost;
+    }
+
+    private synchronized void onPosted(List<Result> frameResults, String postedConnectionId, String postedNumber,
+                                       Throwable e) {
+        postInFlight = false;
+        if (e == null) {
+            if (latency != null) {
+                for (Result result : frameResults) {
+                    latency.recordPublished(result);
+                }
             }
+            logger.info("{} connection id is {}, posted {} segments", WEB_SOCKET_PUBLISHER_PREFIX, postedConnectionId, frameResults.size());
+        } else if (e instanceof GoneException) {
+            logger.error("{} the connection with the provided id no longer exists. Refreshing connection id, message: {}", WEB_SOCKET_PUBLISHER_PREFIX, e.getMessage(), e);
+            connectionIdCache.invalidate(postedNumber, postedConnectionId);
+            if (postedConnectionId.equals(this.connectionId)) {
+                this.connectionId = null;
+            }
+        } else {
+            logger.error("{} publish encountered exception, error message: {}", WEB_SOCKET_PUBLISHER_PREFIX, e.getMessage(), e);
+        }
 
-            logger.info("{} cannot get connection id associated with number {} or number {} in dynamodb table. ", WEB_SOCKET_PUBLISHER_PREFIX, detail.getFromNumber(), detail.getToNumber());
+        if (!done && scheduledFlush == null) {
+            flush(pending.size() >= MAX_SEGMENTS_PER_FRAME);
         }
+    }
 
-        return this.connectionId;
+    /**
+     * Post the segments still waiting, then the end of the transcription.
+     */
+    private synchronized CompletableFuture<Void> postRemaining() {
+        CompletableFuture<Void> remaining = pending.isEmpty() || this.connectionId == null
+                ? CompletableFuture.completedFuture(null) : postPending();
+        return remaining.thenCompose(v -> postEnd());
     }
 
-    private DynamoDB getDDBClient() {
-        return this.dynamoDB;
+    private synchronized CompletableFuture<Void> postEnd() {
+        if (this.connectionId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String postedConnectionId = this.connectionId;
+        return postClient.post(postedConnectionId, encoder.encodeEnd())
+                .thenRun(() -> logger.info("{} posted end of transcription to connection id {}", WEB_SOCKET_PUBLISHER_PREFIX, postedConnectionId));
     }
 
-    private String buildTranscription(Result result) {
-        NumberFormat nf = NumberFormat.getInstance();
-        nf.setMinimumFractionDigits(3);
-        nf.setMaximumFractionDigits(3);
-
-        String callerLabel = String.format("Caller(%s)", detail.getFromNumber()), calleeLabel = String.format("Callee(%s)", detail.getToNumber());
-        return String.format("Thread %s %d: [%s, %s] %s - %s",
-                Thread.currentThread().getName(),
-                System.currentTimeMillis(),
-                nf.format(result.startTime()),
-                nf.format(result.endTime()),
-                this.detail.getIsCaller() == Boolean.TRUE ? callerLabel : calleeLabel,
-                result.alternatives().get(0).transcript());
+    /**
+     * Called without the lock: a lookup missing the cache reads the mapping table.
+     *
+     * @return connection id of the call, looked up in the cache only until one is found and again once it is gone
+     */
+    private String getConnectionId() {
+        String current = this.connectionId;
+        if (current != null) {
+            return current;
+        }
+
+        String number = detail.getFromNumber();
+        String id = connectionIdCache.getConnectionId(number);
+        if (id == null) {
+            number = detail.getToNumber();
+            id = connectionIdCache.getConnectionId(number);
+        }
+
+        if (id == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (this.connectionId == null) {
+                logger.info("{} connection is associated with number {} and id {}, starting transmission", WEB_SOCKET_PUBLISHER_PREFIX, number, id);
+                this.connectionId = id;
+                this.connectionNumber = number;
+            }
+            return this.connectionId;
+        }
     }
 }
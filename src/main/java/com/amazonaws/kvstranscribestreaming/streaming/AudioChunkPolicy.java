@@ -0,0 +1,107 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how audio frames are grouped into the chunks sent to Transcribe as AudioEvents.
+ *
+ * In frame mode a chunk is a fixed number of MKV frames, so its duration depends on how the producer framed the
+ * stream. In duration mode a chunk holds a fixed amount of audio computed from the sample rate and sample width,
+ * splitting frames across chunks where needed. Either mode can flush a partially filled chunk once it has been held
+ * for longer than a maximum hold time.
+ */
+public final class AudioChunkPolicy {
+
+    public static final int DEFAULT_CHUNK_SIZE_IN_FRAMES = 4;
+    private static final int PCM_BYTES_PER_SAMPLE = 2;
+
+    private static final String AUDIO_CHUNK_DURATION_MS = System.getenv("AUDIO_CHUNK_DURATION_MS");
+    private static final String AUDIO_CHUNK_MAX_HOLD_MS = System.getenv("AUDIO_CHUNK_MAX_HOLD_MS");
+
+    private final int maxFrames;
+    private final int targetBytes;
+    private final long maxHoldNanos;
+
+    private AudioChunkPolicy(int maxFrames, int targetBytes, long maxHoldMillis) {
+        this.maxFrames = maxFrames;
+        this.targetBytes = targetBytes;
+        this.maxHoldNanos = TimeUnit.MILLISECONDS.toNanos(maxHoldMillis);
+    }
+
+    /**
+     * @param maxFrames number of MKV frames per chunk
+     * @return policy grouping a fixed number of frames in every chunk
+     */
+    public static AudioChunkPolicy frames(int maxFrames) {
+        Validate.isTrue(maxFrames > 0, "Chunk size in frames must be positive");
+        return new AudioChunkPolicy(maxFrames, 0, 0);
+    }
+
+    /**
+     * @param durationMillis  amount of audio per chunk
+     * @param sampleRate      sample rate of the audio in Hertz
+     * @param bytesPerSample  sample width in bytes
+     * @param maxHoldMillis   flush a partial chunk once its first bytes have been held this long, 0 to disable
+     * @return policy producing chunks of a fixed duration
+     */
+    public static AudioChunkPolicy duration(int durationMillis, int sampleRate, int bytesPerSample, long maxHoldMillis) {
+        Validate.isTrue(durationMillis > 0, "Chunk duration must be positive");
+        Validate.isTrue(maxHoldMillis >= 0, "Max hold time must not be negative");
+        int targetBytes = (int) ((long) durationMillis * sampleRate / 1000) * bytesPerSample;
+        Validate.isTrue(targetBytes > 0, "Chunk duration is shorter than one sample");
+        return new AudioChunkPolicy(Integer.MAX_VALUE, targetBytes, maxHoldMillis);
+    }
+
+    /**
+     * Build the policy from the AUDIO_CHUNK_DURATION_MS and AUDIO_CHUNK_MAX_HOLD_MS environment variables. Without a
+     * chunk duration the stream is chunked by {@link #DEFAULT_CHUNK_SIZE_IN_FRAMES} frames as before.
+     *
+     * @param sampleRate sample rate of the 16 bit PCM audio in Hertz
+     */
+    public static AudioChunkPolicy fromEnvironment(int sampleRate) {
+        long maxHoldMillis = AUDIO_CHUNK_MAX_HOLD_MS == null ? 0 : Long.parseLong(AUDIO_CHUNK_MAX_HOLD_MS);
+        if (AUDIO_CHUNK_DURATION_MS == null || Integer.parseInt(AUDIO_CHUNK_DURATION_MS) <= 0) {
+            AudioChunkPolicy framePolicy = frames(DEFAULT_CHUNK_SIZE_IN_FRAMES);
+            return maxHoldMillis > 0
+                    ? new AudioChunkPolicy(framePolicy.maxFrames, 0, maxHoldMillis)
+                    : framePolicy;
+        }
+        return duration(Integer.parseInt(AUDIO_CHUNK_DURATION_MS), sampleRate, PCM_BYTES_PER_SAMPLE, maxHoldMillis);
+    }
+
+    /**
+     * @return maximum number of frames read into one chunk
+     */
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * @return bytes per chunk in duration mode, 0 in frame mode
+     */
+    public int getTargetBytes() {
+        return targetBytes;
+    }
+
+    /**
+     * @return nanoseconds after which a partial chunk is flushed, 0 if partial chunks are never flushed early
+     */
+    public long getMaxHoldNanos() {
+        return maxHoldNanos;
+    }
+
+    public boolean isDurationBased() {
+        return targetBytes > 0;
+    }
+
+    @Override
+    public String toString() {
+        return isDurationBased()
+                ? String.format("AudioChunkPolicy(targetBytes=%d, maxHoldMillis=%d)", targetBytes,
+                        TimeUnit.NANOSECONDS.toMillis(maxHoldNanos))
+                : String.format("AudioChunkPolicy(maxFrames=%d, maxHoldMillis=%d)", maxFrames,
+                        TimeUnit.NANOSECONDS.toMillis(maxHoldNanos));
+    }
+}
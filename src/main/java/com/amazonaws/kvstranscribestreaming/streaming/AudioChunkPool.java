@@ -0,0 +1,68 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Slab pool of fixed size heap buffers used to assemble audio chunks read from KVS. A streaming session borrows one
+ * buffer for its whole lifetime, fills it in place for every chunk and gives it back when the session ends, so the
+ * steady state of a worker allocates no chunk buffers at all.
+ *
+ * Buffers are heap backed on purpose: the recording sink writes straight from the backing array.
+ */
+public class AudioChunkPool {
+
+    public static final int DEFAULT_CHUNK_CAPACITY = 32 * 1024;
+    private static final int DEFAULT_MAX_IDLE_CHUNKS = 256;
+
+    private static final AudioChunkPool DEFAULT_POOL = new AudioChunkPool(DEFAULT_CHUNK_CAPACITY, DEFAULT_MAX_IDLE_CHUNKS);
+
+    private final int chunkCapacity;
+    private final BlockingQueue<ByteBuffer> idleChunks;
+
+    /**
+     * @param chunkCapacity size in bytes of every buffer handed out by this pool
+     * @param maxIdleChunks number of released buffers kept for reuse; any extra buffers are left to the GC
+     */
+    public AudioChunkPool(int chunkCapacity, int maxIdleChunks) {
+        Validate.isTrue(chunkCapacity > 0, "Chunk capacity must be positive");
+        Validate.isTrue(maxIdleChunks > 0, "Max idle chunks must be positive");
+        this.chunkCapacity = chunkCapacity;
+        this.idleChunks = new ArrayBlockingQueue<>(maxIdleChunks);
+    }
+
+    /**
+     * @return the process wide pool shared by all streaming sessions
+     */
+    public static AudioChunkPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * Borrow a cleared buffer, allocating a new one only if no released buffer is available.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer chunk = idleChunks.poll();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocate(chunkCapacity);
+        }
+        chunk.clear();
+        return chunk;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()}. The caller must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer chunk) {
+        if (chunk != null && chunk.capacity() == chunkCapacity) {
+            idleChunks.offer(chunk);
+        }
+    }
+
+    public int getChunkCapacity() {
+        return chunkCapacity;
+    }
+}
@@ -0,0 +1,126 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Assembles audio chunks for one stream according to an {@link AudioChunkPolicy}. The chunk is built in place in a
+ * buffer borrowed from an {@link AudioChunkPool}; in duration mode the bytes of a frame that don't fit in the current
+ * chunk are kept at the end of the buffer and moved to the front of the next one. A frame is only read from the source
+ * once it is known to fit in the space left in the buffer, otherwise it starts the next chunk.
+ *
+ * The max hold time is checked every time a frame has been read. Frames of a live stream arrive in real time, so
+ * this bounds how long the first bytes of a chunk wait before being sent.
+ *
+ * Not thread safe, a chunker must only be used by one thread at a time.
+ */
+public class AudioChunker implements AutoCloseable {
+
+    private final AudioChunkPolicy policy;
+    private final AudioChunkPool pool;
+    private ByteBuffer chunk;
+
+    // bytes read from the source that belong to the next chunk, stored right after the current chunk's limit
+    private int carryOffset;
+    private int carryLength;
+    private long carryReadNanos;
+
+    public AudioChunker(AudioChunkPolicy policy, AudioChunkPool pool) {
+        this.policy = Validate.notNull(policy);
+        this.pool = Validate.notNull(pool);
+        Validate.isTrue(policy.getTargetBytes() * 2 <= pool.getChunkCapacity(),
+                "Chunk duration too long for the pooled chunk buffers");
+        this.chunk = pool.acquire();
+    }
+
+    /**
+     * Read the next chunk from the source. On return the chunk is positioned at 0 with its limit set to the chunk size.
+     *
+     * @param source frames are read from this source
+     * @return number of bytes in the chunk, 0 once the source has no more audio
+     * @throws MkvElementVisitException if the underlying stream can't be parsed
+     */
+    public int fill(AudioFrameSource source) throws MkvElementVisitException {
+        Validate.validState(chunk != null, "Chunker is closed");
+
+        // move the bytes carried over from the previous chunk to the front of the buffer
+        chunk.limit(carryOffset + carryLength);
+        chunk.position(carryOffset);
+        chunk.compact();
+
+        long holdStartNanos = carryLength > 0 ? carryReadNanos : 0;
+        int targetBytes = policy.isDurationBased() ? policy.getTargetBytes() : Integer.MAX_VALUE;
+
+        for (int frames = 0; frames < policy.getMaxFrames() && chunk.position() < targetBytes; frames++) {
+            int frameSize = source.peekAudioFrameSize();
+            if (frameSize == 0) {
+                break;
+            }
+            if (frameSize > chunk.remaining()) {
+                // the frame starts the next chunk
+                Validate.validState(chunk.position() > 0, "Audio frame of %d bytes does not fit in a chunk buffer",
+                        frameSize);
+                break;
+            }
+            source.readAudioFrame(chunk);
+
+            long now = System.nanoTime();
+            if (holdStartNanos == 0) {
+                holdStartNanos = now;
+            }
+            carryReadNanos = now;
+            if (policy.getMaxHoldNanos() > 0 && now - holdStartNanos >= policy.getMaxHoldNanos()) {
+                break;
+            }
+        }
+
+        int filled = chunk.position();
+        int chunkSize = Math.min(filled, targetBytes);
+        carryOffset = chunkSize;
+        carryLength = filled - chunkSize;
+
+        chunk.limit(chunkSize);
+        chunk.position(0);
+        return chunkSize;
+    }
+
+    /**
+     * Turn the audio carried over for the next chunk into a chunk of its own, for a chunker that stops reading before
+     * the stream ends, e.g. when another chunker takes the stream over. On return the chunk is positioned at 0 with its
+     * limit set to the chunk size.
+     *
+     * @return number of bytes in the chunk, 0 if no audio was carried over
+     */
+    public int flush() {
+        Validate.validState(chunk != null, "Chunker is closed");
+
+        chunk.limit(carryOffset + carryLength);
+        chunk.position(carryOffset);
+        chunk.compact();
+        chunk.flip();
+        carryOffset = 0;
+        carryLength = 0;
+        return chunk.remaining();
+    }
+
+    /**
+     * @return the chunk read by the last call to {@link #fill(AudioFrameSource)} or {@link #flush()}
+     */
+    public ByteBuffer getChunk() {
+        return chunk;
+    }
+
+    /**
+     * Give the chunk buffer back to the pool. Any audio carried over for the next chunk is dropped, see
+     * {@link #flush()}.
+     */
+    @Override
+    public void close() {
+        if (chunk != null) {
+            pool.release(chunk);
+            chunk = null;
+        }
+    }
+}
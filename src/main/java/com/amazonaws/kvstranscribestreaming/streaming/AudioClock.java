@@ -0,0 +1,141 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Maps the audio of a call onto the producer timestamps of the KVS fragments it is read from.
+ *
+ * Reads go through the clock, which counts the bytes read so far: the byte offset in the call, as used by the
+ * {@link AudioReplayBuffer}. Whenever a frame comes from a new fragment, the offset it was read at is anchored to the
+ * fragment's producer timestamp, and offsets are mapped from the latest anchor. How far the audio read is behind the
+ * live edge is sampled every 10 seconds, off the threads reading, as the AudioBehindLive metric with the call's
+ * TransactionId dimension, until the clock is closed.
+ *
+ * Reads must come from one thread at a time, mapping may be done from any thread.
+ */
+public class AudioClock implements AudioFrameSource, AutoCloseable {
+
+    private static final long SAMPLE_INTERVAL_SECONDS = 10;
+
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("audio-clock-sampler-%d").daemon(true).build());
+
+    private final String callId;
+    private final AudioFrameSource source;
+    private final LongSupplier producerTimestampMillis;
+    private final int bytesPerSecond;
+    private final MetricsUtil metricsUtil;
+    private final ScheduledFuture<?> sampling;
+
+    // written by the reading thread, read by the sampler
+    private volatile long bytesRead;
+    private long anchorTimestampMillis = -1;
+    private long anchorOffsetBytes;
+
+    /**
+     * @param callId                  transaction id of the call, the dimension of its metric
+     * @param source                  source the audio is read from
+     * @param producerTimestampMillis producer timestamp of the fragment the last frame was read from, -1 if none was
+     *                                read yet
+     * @param bytesPerSecond          bytes per second of the audio
+     * @param metricsUtil
+     */
+    public AudioClock(String callId, AudioFrameSource source, LongSupplier producerTimestampMillis,
+                      int bytesPerSecond, MetricsUtil metricsUtil) {
+        Validate.isTrue(bytesPerSecond > 0, "Bytes per second must be positive");
+        this.callId = Validate.notNull(callId);
+        this.source = Validate.notNull(source);
+        this.producerTimestampMillis = Validate.notNull(producerTimestampMillis);
+        this.bytesPerSecond = bytesPerSecond;
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.sampling = sampler.scheduleWithFixedDelay(this::recordBehindLive, SAMPLE_INTERVAL_SECONDS,
+                SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a clock reading from the given KVS stream reader
+     */
+    public static AudioClock forReader(String callId, KVSAudioReader reader, int bytesPerSecond,
+                                       MetricsUtil metricsUtil) {
+        return new AudioClock(callId, reader, reader::getCurrentFragmentProducerTimestampMillis, bytesPerSecond,
+                metricsUtil);
+    }
+
+    @Override
+    public int readAudioFrame(ByteBuffer audioBuffer) throws MkvElementVisitException {
+        int frameSize = source.readAudioFrame(audioBuffer);
+        if (frameSize > 0) {
+            long timestampMillis = producerTimestampMillis.getAsLong();
+            if (timestampMillis >= 0 && timestampMillis != anchorTimestampMillis) {
+                anchor(timestampMillis, bytesRead);
+            }
+            bytesRead += frameSize;
+        }
+        return frameSize;
+    }
+
+    @Override
+    public int peekAudioFrameSize() throws MkvElementVisitException {
+        return source.peekAudioFrameSize();
+    }
+
+    /**
+     * @param callOffsetBytes byte offset in the call
+     * @return producer timestamp of the audio at the offset, -1 before the first frame was read
+     */
+    public synchronized long getProducerTimeMillis(long callOffsetBytes) {
+        if (anchorTimestampMillis < 0) {
+            return -1;
+        }
+        return anchorTimestampMillis + (callOffsetBytes - anchorOffsetBytes) * 1000 / bytesPerSecond;
+    }
+
+    /**
+     * @param callSeconds time on the call timeline, as in the results mapped by the session timeline
+     * @return producer timestamp of the audio at the time, -1 before the first frame was read
+     */
+    public long getProducerTimeMillis(double callSeconds) {
+        return getProducerTimeMillis((long) (callSeconds * bytesPerSecond));
+    }
+
+    /**
+     * @return milliseconds between the producer timestamp of the audio at the offset and now, -1 before the first
+     * frame was read
+     */
+    public long getBehindLiveMillis(long callOffsetBytes) {
+        long producerTimeMillis = getProducerTimeMillis(callOffsetBytes);
+        return producerTimeMillis < 0 ? -1 : Math.max(0, System.currentTimeMillis() - producerTimeMillis);
+    }
+
+    /**
+     * Stop sampling how far the call is behind the live edge.
+     */
+    @Override
+    public void close() {
+        sampling.cancel(false);
+    }
+
+    private void recordBehindLive() {
+        long behindLiveMillis = getBehindLiveMillis(bytesRead);
+        if (behindLiveMillis >= 0) {
+            metricsUtil.recordMetric("AudioBehindLive", behindLiveMillis / 1000.0, StandardUnit.Seconds,
+                    "TransactionId", callId);
+        }
+    }
+
+    private synchronized void anchor(long timestampMillis, long offsetBytes) {
+        anchorTimestampMillis = timestampMillis;
+        anchorOffsetBytes = offsetBytes;
+    }
+}
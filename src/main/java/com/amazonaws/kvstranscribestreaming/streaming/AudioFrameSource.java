@@ -0,0 +1,31 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw audio frames, typically backed by a KVS stream.
+ *
+ * Frames can't be split by the source, so a reader filling a buffer of limited size looks at the size of the next
+ * frame first and only reads it once it fits.
+ */
+public interface AudioFrameSource {
+
+    /**
+     * Read the next audio frame into the provided buffer. The frame must fit in the space left in the buffer.
+     *
+     * @param audioBuffer buffer the frame payload is written to, starting at its current position
+     * @return number of bytes written, 0 once the source has no more audio
+     * @throws MkvElementVisitException if the underlying stream can't be parsed
+     */
+    int readAudioFrame(ByteBuffer audioBuffer) throws MkvElementVisitException;
+
+    /**
+     * Size of the frame the next call to {@link #readAudioFrame(ByteBuffer)} reads, without reading it.
+     *
+     * @return number of bytes of the next frame, 0 once the source has no more audio
+     * @throws MkvElementVisitException if the underlying stream can't be parsed
+     */
+    int peekAudioFrameSize() throws MkvElementVisitException;
+}
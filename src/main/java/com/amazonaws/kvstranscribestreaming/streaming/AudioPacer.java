@@ -0,0 +1,127 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the audio of one call sent to Transcribe against the wall clock.
+ *
+ * A call picked up late, or a session replaying buffered audio, starts behind the live edge, and GetMedia delivers
+ * the backlog as fast as the network allows. Rather than pushing it at Transcribe as fast as it is accepted, audio is
+ * sent at the catch up rate, a multiple of real time, until it is within the live tolerance of the live edge, and then
+ * at real time. Sending may run ahead of the pace by the lead, which absorbs the bursts in which fragments arrive.
+ *
+ * How far behind the live edge the audio is comes from the call's {@link AudioClock}. Until the first frame is read
+ * the audio is assumed to be behind.
+ */
+public class AudioPacer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioPacer.class);
+    private static final String AUDIO_CATCH_UP_RATE = System.getenv("AUDIO_CATCH_UP_RATE");
+    private static final String AUDIO_LIVE_TOLERANCE_MS = System.getenv("AUDIO_LIVE_TOLERANCE_MS");
+    private static final String AUDIO_PACING_LEAD_MS = System.getenv("AUDIO_PACING_LEAD_MS");
+    private static final double DEFAULT_CATCH_UP_RATE = 2;
+    private static final long DEFAULT_LIVE_TOLERANCE_MS = 3000;
+    private static final long DEFAULT_PACING_LEAD_MS = 2000;
+
+    private static final ScheduledExecutorService pacingScheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("audio-pacer-%d").daemon(true).build());
+
+    private final String callId;
+    private final AudioClock audioClock;
+    private final double catchUpRate;
+    private final long liveToleranceMillis;
+    private final long leadNanos;
+    private final int bytesPerSecond;
+
+    // wall time at which the audio sent so far has played out at the pace it was sent at
+    private long scheduleNanos = System.nanoTime();
+    private boolean live;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param callId              call the audio belongs to, for logging
+     * @param audioClock          clock the call's audio is read through
+     * @param catchUpRate         multiple of real time audio is sent at while behind the live edge
+     * @param liveToleranceMillis how far behind the live edge audio still counts as live
+     * @param leadMillis          how far sending may run ahead of the pace
+     * @param bytesPerSecond      bytes per second of the audio
+     */
+    public AudioPacer(String callId, AudioClock audioClock, double catchUpRate, long liveToleranceMillis,
+                      long leadMillis, int bytesPerSecond) {
+        Validate.isTrue(catchUpRate >= 1, "Catch up rate must be at least real time");
+        Validate.isTrue(liveToleranceMillis >= 0, "Live tolerance must not be negative");
+        Validate.isTrue(leadMillis >= 0, "Pacing lead must not be negative");
+        Validate.isTrue(bytesPerSecond > 0, "Bytes per second must be positive");
+        this.callId = Validate.notNull(callId);
+        this.audioClock = Validate.notNull(audioClock);
+        this.catchUpRate = catchUpRate;
+        this.liveToleranceMillis = liveToleranceMillis;
+        this.leadNanos = TimeUnit.MILLISECONDS.toNanos(leadMillis);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Build a pacer from the AUDIO_CATCH_UP_RATE, AUDIO_LIVE_TOLERANCE_MS and AUDIO_PACING_LEAD_MS environment
+     * variables.
+     *
+     * @return a new pacer, or null if AUDIO_CATCH_UP_RATE is 0, which disables pacing
+     */
+    public static AudioPacer fromEnvironment(String callId, AudioClock audioClock, int bytesPerSecond) {
+        double catchUpRate = AUDIO_CATCH_UP_RATE == null
+                ? DEFAULT_CATCH_UP_RATE : Double.parseDouble(AUDIO_CATCH_UP_RATE);
+        if (catchUpRate == 0) {
+            return null;
+        }
+        return new AudioPacer(callId, audioClock, catchUpRate,
+                AUDIO_LIVE_TOLERANCE_MS == null ? DEFAULT_LIVE_TOLERANCE_MS : Long.parseLong(AUDIO_LIVE_TOLERANCE_MS),
+                AUDIO_PACING_LEAD_MS == null ? DEFAULT_PACING_LEAD_MS : Long.parseLong(AUDIO_PACING_LEAD_MS),
+                bytesPerSecond);
+    }
+
+    /**
+     * @return nanoseconds to wait before the next chunk may be sent, 0 if it may be sent now
+     */
+    public synchronized long getDelayNanos() {
+        return Math.max(0, scheduleNanos - leadNanos - System.nanoTime());
+    }
+
+    /**
+     * Run a task once the given delay has passed.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        pacingScheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Advance the pace past a chunk sent, at real time if it is live and at the catch up rate otherwise.
+     *
+     * @param callOffsetBytes byte offset of the chunk in the call
+     * @param length          size of the chunk in bytes
+     */
+    public synchronized void onAudioSent(long callOffsetBytes, int length) {
+        long behindLiveMillis = audioClock.getBehindLiveMillis(callOffsetBytes + length);
+        boolean nowLive = behindLiveMillis >= 0 && behindLiveMillis <= liveToleranceMillis;
+        if (nowLive != live) {
+            live = nowLive;
+            if (live) {
+                logger.info("[{}] Audio caught up with the live edge after {} ms", callId,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            } else {
+                logger.info("[{}] Audio fell {} ms behind the live edge, catching up at {} times real time", callId,
+                        behindLiveMillis, catchUpRate);
+            }
+        }
+
+        double rate = live ? 1 : catchUpRate;
+        long durationNanos = (long) (TimeUnit.SECONDS.toNanos(1) * ((double) length / bytesPerSecond) / rate);
+        // time spent without audio to send isn't banked beyond the lead
+        scheduleNanos = Math.max(scheduleNanos, System.nanoTime()) + durationNanos;
+    }
+}
@@ -0,0 +1,94 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread pool shared by all calls to pump audio from KVS into their Transcribe sessions.
+ *
+ * Pumping reads from the stream and blocks until audio arrives, so a call occupies a pool thread while its
+ * subscription has demand. Calls are therefore admitted with {@link #tryAdmitCall()} up to a maximum number of
+ * calls, and the pool has enough threads for every drain those calls can have in flight: the one reading the stream,
+ * plus those of the sessions run side by side while a session is rotated or retried. Drain tasks are handed straight
+ * to a thread and never queued, so no call waits for another call's audio to arrive. Threads that are idle for a
+ * minute are released. Admitted calls, pool size and active threads are sampled as metrics.
+ *
+ * Subscriptions make sure they have at most one drain task in flight, so tasks of the same subscription never run
+ * concurrently.
+ */
+public class AudioPumpExecutor implements Executor {
+
+    // a rotated session, its successor and a retry of the successor
+    private static final int MAX_DRAINS_PER_CALL = 3;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+    private static final long METRICS_INTERVAL_SECONDS = 10;
+
+    private final int maxCalls;
+    private final Semaphore callSlots;
+    private final ThreadPoolExecutor pool;
+    private final MetricsUtil metricsUtil;
+    private final ScheduledExecutorService metricsSampler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("audio-pump-metrics-%d").daemon(true).build());
+
+    /**
+     * @param maxCalls    maximum number of calls pumping audio at once, typically the worker's MAX_CONCURRENT_CALLS
+     * @param metricsUtil
+     */
+    public AudioPumpExecutor(int maxCalls, MetricsUtil metricsUtil) {
+        Validate.isTrue(maxCalls > 0, "Max calls must be positive");
+        this.maxCalls = maxCalls;
+        this.callSlots = new Semaphore(maxCalls);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.pool = new ThreadPoolExecutor(0, maxCalls * MAX_DRAINS_PER_CALL, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new BasicThreadFactory.Builder().namingPattern("audio-pump-%d").daemon(true).build());
+        metricsSampler.scheduleWithFixedDelay(this::recordMetrics, METRICS_INTERVAL_SECONDS,
+                METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Take a call slot before starting to pump a call's audio, and give it back with {@link #releaseCall()} once the
+     * call is done.
+     *
+     * @return false if the maximum number of calls are already pumping audio
+     */
+    public boolean tryAdmitCall() {
+        if (callSlots.tryAcquire()) {
+            return true;
+        }
+        metricsUtil.recordMetric("AudioPumpCallRejected", 1);
+        return false;
+    }
+
+    public void releaseCall() {
+        callSlots.release();
+    }
+
+    public int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if every thread is busy, which admitted calls can't
+     *                                                         cause
+     */
+    @Override
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    private void recordMetrics() {
+        metricsUtil.recordMetric("AudioPumpAdmittedCalls", maxCalls - callSlots.availablePermits());
+        metricsUtil.recordMetric("AudioPumpPoolSize", pool.getPoolSize());
+        metricsUtil.recordMetric("AudioPumpActiveThreads", pool.getActiveCount());
+    }
+}
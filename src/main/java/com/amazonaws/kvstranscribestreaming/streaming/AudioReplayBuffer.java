@@ -0,0 +1,114 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded off-heap ring of the most recent audio of one call, so audio already sent to a Transcribe session that
+ * failed can be sent again to the next one.
+ *
+ * Audio is addressed by its byte offset from the start of the call. Appending past the capacity drops the oldest
+ * bytes, so only offsets from {@link #getStartOffset()} to {@link #getEndOffset()} can be read. Readers keep their
+ * own offsets, so several of them can share the buffer with the writer.
+ */
+public class AudioReplayBuffer {
+
+    private static final String AUDIO_REPLAY_BUFFER_SECONDS = System.getenv("AUDIO_REPLAY_BUFFER_SECONDS");
+    private static final int DEFAULT_REPLAY_BUFFER_SECONDS = 30;
+
+    private final ByteBuffer ring;
+    private final int bytesPerSecond;
+    private long endOffset;
+
+    /**
+     * @param capacityBytes  maximum number of bytes kept, 0 to only keep track of the offsets
+     * @param bytesPerSecond bytes per second of the audio, used to convert offsets to time
+     */
+    public AudioReplayBuffer(int capacityBytes, int bytesPerSecond) {
+        Validate.isTrue(capacityBytes >= 0, "Replay buffer capacity must not be negative");
+        Validate.isTrue(bytesPerSecond > 0, "Bytes per second must be positive");
+        this.ring = ByteBuffer.allocateDirect(capacityBytes);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Size the buffer from the AUDIO_REPLAY_BUFFER_SECONDS environment variable, 30 seconds by default.
+     *
+     * @param bytesPerSecond bytes per second of the audio
+     * @return the buffer, keeping no audio if replay is disabled by setting the variable to 0
+     */
+    public static AudioReplayBuffer fromEnvironment(int bytesPerSecond) {
+        int seconds = AUDIO_REPLAY_BUFFER_SECONDS == null
+                ? DEFAULT_REPLAY_BUFFER_SECONDS : Integer.parseInt(AUDIO_REPLAY_BUFFER_SECONDS);
+        return new AudioReplayBuffer(Math.max(seconds, 0) * bytesPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Append the remaining bytes of the chunk, leaving its position untouched.
+     */
+    public synchronized void append(ByteBuffer chunk) {
+        ByteBuffer source = chunk.duplicate();
+        int capacity = ring.capacity();
+        if (capacity == 0) {
+            endOffset += source.remaining();
+            return;
+        }
+        if (source.remaining() > capacity) {
+            // only the tail fits
+            endOffset += source.remaining() - capacity;
+            source.position(source.limit() - capacity);
+        }
+
+        while (source.hasRemaining()) {
+            int ringPosition = (int) (endOffset % capacity);
+            int length = Math.min(source.remaining(), capacity - ringPosition);
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + length);
+            ring.limit(ringPosition + length).position(ringPosition);
+            ring.put(slice);
+            source.position(source.position() + length);
+            endOffset += length;
+        }
+    }
+
+    /**
+     * Copy the audio starting at the given offset into the destination, as much as is buffered and fits.
+     *
+     * @param offset byte offset from the start of the call, not before {@link #getStartOffset()}
+     * @param dst    bytes are copied at its position, which is advanced
+     * @return number of bytes copied, 0 once the offset reaches the end of the buffered audio
+     */
+    public synchronized int read(long offset, ByteBuffer dst) {
+        Validate.isTrue(offset >= getStartOffset(), "Audio at offset %d is no longer buffered", offset);
+        int capacity = ring.capacity();
+        int total = (int) Math.min(dst.remaining(), endOffset - offset);
+        int copied = 0;
+        while (copied < total) {
+            int ringPosition = (int) ((offset + copied) % capacity);
+            int length = Math.min(total - copied, capacity - ringPosition);
+            ring.limit(ringPosition + length).position(ringPosition);
+            dst.put(ring);
+            copied += length;
+        }
+        return total;
+    }
+
+    /**
+     * @return offset of the oldest byte still buffered
+     */
+    public synchronized long getStartOffset() {
+        return Math.max(0, endOffset - ring.capacity());
+    }
+
+    /**
+     * @return offset right after the last byte appended, i.e. the number of bytes appended so far
+     */
+    public synchronized long getEndOffset() {
+        return endOffset;
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,304 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.ebml.ParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTag;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recorded KVS stream from an MKV file, e.g. one saved from the output of GetMedia, so the ingest and
+ * transcription path can be load tested without Kinesis Video Streams. Every stream ARN replays the same recording,
+ * which is read into memory once and shared by all concurrent replays.
+ *
+ * Media is replayed from the requested fragment number like GetMedia does, either paced at the rate the audio was
+ * recorded at or as fast as it is consumed. Optionally a share of the replays fail with an IOException at a random
+ * offset to exercise the resume path.
+ */
+public class FileReplayMediaSource implements KVSMediaSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileReplayMediaSource.class);
+    // 8 kHz 16 bit mono, used when the recording has a single fragment to derive a rate from
+    private static final int DEFAULT_AUDIO_BYTES_PER_SECOND = 16_000;
+    // sent without pacing so the parser can start on the EBML header and track info right away
+    private static final int PACING_BURST_BYTES = 4 * 1024;
+
+    public enum Pacing {
+        /** Deliver media at the rate it was recorded at, like a live call */
+        REAL_TIME,
+        /** Deliver media as fast as it is read */
+        MAX_SPEED
+    }
+
+    private final byte[] recording;
+    private final Pacing pacing;
+    private final double faultProbability;
+    private final Map<String, Integer> fragmentOffsets = new LinkedHashMap<>();
+    private final String transactionId;
+    private final double bytesPerSecond;
+
+    /**
+     * @param recordingFile    MKV file in the format returned by GetMedia
+     * @param pacing           how fast media is delivered
+     * @param faultProbability share of the media streams that fail at a random offset, 0 to never fail
+     * @throws IOException if the file can't be read
+     */
+    public FileReplayMediaSource(Path recordingFile, Pacing pacing, double faultProbability) throws IOException {
+        Validate.isTrue(faultProbability >= 0 && faultProbability <= 1, "Fault probability must be between 0 and 1");
+        this.recording = Files.readAllBytes(recordingFile);
+        this.pacing = Validate.notNull(pacing);
+        this.faultProbability = faultProbability;
+
+        RecordingScan scan = new RecordingScan();
+        try {
+            scan.run();
+        } catch (MkvElementVisitException e) {
+            throw new IOException("Failed to parse recording " + recordingFile, e);
+        }
+        Validate.isTrue(!fragmentOffsets.isEmpty(), "Recording %s has no KVS fragments", recordingFile);
+        this.transactionId = scan.transactionId;
+        this.bytesPerSecond = scan.bytesPerSecond();
+
+        logger.info("Replaying {} ({} bytes, {} fragments, transaction id {}) at {} bytes/s, pacing {}",
+                recordingFile, recording.length, fragmentOffsets.size(), transactionId, Math.round(bytesPerSecond),
+                pacing);
+    }
+
+    @Override
+    public InputStream getMedia(String streamArn, String startFragmentNumber) {
+        Integer offset = startFragmentNumber == null ? Integer.valueOf(0) : fragmentOffsets.get(startFragmentNumber);
+        if (offset == null) {
+            throw new IllegalArgumentException("Fragment " + startFragmentNumber + " is not in the recording");
+        }
+
+        int failAt = faultProbability > 0 && ThreadLocalRandom.current().nextDouble() < faultProbability
+                ? offset + ThreadLocalRandom.current().nextInt(recording.length - offset) : -1;
+        return new ReplayInputStream(offset, failAt);
+    }
+
+    /**
+     * @return number of the first fragment of the recording
+     */
+    public String getFirstFragmentNumber() {
+        return fragmentOffsets.keySet().iterator().next();
+    }
+
+    /**
+     * @return value of the first TransactionId tag of the recording, null if it has none
+     */
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Serves the recording from an offset, pacing reads and failing at the configured offset.
+     */
+    private class ReplayInputStream extends InputStream {
+        private final int startOffset;
+        private final int failAt;
+        private final long startNanos = System.nanoTime();
+        private int position;
+
+        private ReplayInputStream(int startOffset, int failAt) {
+            this.startOffset = startOffset;
+            this.failAt = failAt;
+            this.position = startOffset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= recording.length) {
+                return -1;
+            }
+            if (position == failAt) {
+                throw new IOException("Injected fault at offset " + failAt);
+            }
+
+            int n = Math.min(len, recording.length - position);
+            if (failAt > position) {
+                n = Math.min(n, failAt - position);
+            }
+            if (pacing == Pacing.REAL_TIME) {
+                n = awaitAllowance(n);
+            }
+            System.arraycopy(recording, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Only bytes that are already due count as available, otherwise a BufferedInputStream on top would keep
+         * reading, and waiting, until its buffer is full.
+         */
+        @Override
+        public int available() {
+            int remaining = recording.length - position;
+            return pacing == Pacing.REAL_TIME ? (int) Math.max(0, Math.min(remaining, allowance())) : remaining;
+        }
+
+        /**
+         * Block until at least one byte is due and return how many of the requested bytes may be read.
+         */
+        private int awaitAllowance(int len) throws InterruptedIOException {
+            while (true) {
+                long allowance = allowance();
+                if (allowance > 0) {
+                    return (int) Math.min(len, allowance);
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(Math.max(1, (long) (-allowance * 1000 / bytesPerSecond)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while pacing replay");
+                }
+            }
+        }
+
+        private long allowance() {
+            double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+            return PACING_BURST_BYTES + (long) (elapsedSeconds * bytesPerSecond) - (position - startOffset);
+        }
+    }
+
+    /**
+     * Walks the recording once to find where every fragment starts, the call's transaction id and the rate at which
+     * media was produced.
+     */
+    private class RecordingScan {
+        private String transactionId;
+        private long firstProducerMillis = -1;
+        private long lastProducerMillis = -1;
+        private int lastFragmentOffset;
+        private long audioBytes;
+
+        private void run() throws MkvElementVisitException {
+            CountingByteSource byteSource = new CountingByteSource(
+                    new InputStreamParserByteSource(new ByteArrayInputStream(recording)));
+            StreamingMkvReader reader = StreamingMkvReader.createDefault(byteSource);
+            FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(
+                    Optional.of(new FragmentMetadataVisitor.MkvTagProcessor() {
+                        @Override
+                        public void process(MkvTag tag, Optional<FragmentMetadata> fragment) {
+                            if (transactionId == null && "TransactionId".equals(tag.getTagName())) {
+                                transactionId = tag.getTagValue();
+                            }
+                        }
+                    }));
+
+            int segmentOffset = -1;
+            FragmentMetadata lastFragment = null;
+            while (reader.mightHaveNext()) {
+                Optional<MkvElement> element = reader.nextIfAvailable();
+                if (!element.isPresent()) {
+                    continue;
+                }
+                element.get().accept(fragmentVisitor);
+
+                if (element.get() instanceof MkvStartMasterElement
+                        && MkvTypeInfos.EBML.equals(element.get().getElementMetaData().getTypeInfo())) {
+                    // every GetMedia fragment starts with its own EBML header
+                    segmentOffset = (int) byteSource.getBytesRead()
+                            - ((MkvStartMasterElement) element.get()).getIdAndSizeRawBytesLength();
+                } else if (element.get() instanceof MkvDataElement
+                        && MkvTypeInfos.SIMPLEBLOCK.equals(element.get().getElementMetaData().getTypeInfo())) {
+                    audioBytes += ((MkvDataElement) element.get()).getDataSize();
+                }
+
+                Optional<FragmentMetadata> fragment = fragmentVisitor.getCurrentFragmentMetadata();
+                if (fragment.isPresent() && fragment.get() != lastFragment) {
+                    lastFragment = fragment.get();
+                    fragmentOffsets.putIfAbsent(lastFragment.getFragmentNumberString(), Math.max(segmentOffset, 0));
+                    lastFragmentOffset = Math.max(segmentOffset, 0);
+                    lastProducerMillis = lastFragment.getProducerSideTimestampMillis();
+                    if (firstProducerMillis < 0) {
+                        firstProducerMillis = lastProducerMillis;
+                    }
+                }
+            }
+        }
+
+        private double bytesPerSecond() {
+            if (lastProducerMillis > firstProducerMillis) {
+                return lastFragmentOffset * 1000.0 / (lastProducerMillis - firstProducerMillis);
+            }
+            // a single fragment: scale the nominal audio rate by the container overhead
+            return audioBytes == 0 ? DEFAULT_AUDIO_BYTES_PER_SECOND
+                    : DEFAULT_AUDIO_BYTES_PER_SECOND * (double) recording.length / audioBytes;
+        }
+    }
+
+    /**
+     * Counts the bytes the parser consumed so element offsets in the recording can be worked out.
+     */
+    private static class CountingByteSource implements ParserByteSource {
+        private final ParserByteSource delegate;
+        private long bytesRead;
+
+        private CountingByteSource(ParserByteSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int readByte() {
+            int b = delegate.readByte();
+            if (b != -1) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int readBytes(ByteBuffer dest, int numBytes) {
+            int n = delegate.readBytes(dest, numBytes);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return delegate.available();
+        }
+
+        @Override
+        public boolean eof() {
+            return delegate.eof();
+        }
+
+        private long getBytesRead() {
+            return bytesRead;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kvstranscribestreaming.utils.KVSUtils;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Reads the audio of one call from a KVS stream and survives transient failures of the media connection.
+ *
+ * The reader keeps a checkpoint made of the number of the fragment being read and how many of its frames were
+ * already handed out. When reading fails with a network or read error, the media is opened again starting at that
+ * fragment and the frames that were already delivered are skipped, so the consumer, typically a Transcribe session,
+ * sees one continuous stream of audio. A stream that ends without an error is treated as the end of the call.
+ *
+ * Not thread safe, a reader must only be used by one thread at a time.
+ */
+public class KVSAudioReader implements AudioFrameSource, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSAudioReader.class);
+    private static final String KVS_MAX_RESUME_ATTEMPTS = System.getenv("KVS_MAX_RESUME_ATTEMPTS");
+    private static final int DEFAULT_MAX_RESUME_ATTEMPTS = 5;
+    private static final long RESUME_BACKOFF_MILLIS = 200;
+
+    private final KVSMediaSource mediaSource;
+    private final String streamArn;
+    private final String startFragmentNumber;
+    private final KVSTransactionIdTagProcessor tagProcessor;
+    private final MetricsUtil metricsUtil;
+    private final int maxResumeAttempts;
+
+    private InputStream mediaStream;
+    private StreamingMkvReader streamingMkvReader;
+    private FragmentMetadataVisitor fragmentVisitor;
+
+    // checkpoint
+    private FragmentMetadata currentFragment;
+    private String currentFragmentNumber;
+    private long currentFragmentProducerTimestampMillis = -1;
+    private int frameIndexInFragment;
+    private int framesDeliveredInFragment;
+    private int consecutiveResumeAttempts;
+
+    // frame read from the stream and counted as delivered, handed out by the next readAudioFrame
+    private MkvDataElement nextFrame;
+
+    /**
+     * @param mediaSource         where the stream's media is read from
+     * @param streamArn           ARN of the KVS stream
+     * @param startFragmentNumber fragment the call starts at
+     * @param tagProcessor        stops reading once the call's transaction id no longer matches
+     * @param metricsUtil
+     */
+    public KVSAudioReader(KVSMediaSource mediaSource, String streamArn, String startFragmentNumber,
+                          KVSTransactionIdTagProcessor tagProcessor, MetricsUtil metricsUtil) {
+        this.mediaSource = Validate.notNull(mediaSource);
+        this.streamArn = Validate.notNull(streamArn);
+        this.startFragmentNumber = startFragmentNumber;
+        this.tagProcessor = Validate.notNull(tagProcessor);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.maxResumeAttempts = KVS_MAX_RESUME_ATTEMPTS == null
+                ? DEFAULT_MAX_RESUME_ATTEMPTS : Integer.parseInt(KVS_MAX_RESUME_ATTEMPTS);
+
+        open(startFragmentNumber);
+    }
+
+    @Override
+    public int readAudioFrame(ByteBuffer audioBuffer) throws MkvElementVisitException {
+        MkvDataElement frame = nextFrame();
+        if (frame == null) {
+            return 0;
+        }
+        int bytesRead = KVSUtils.copyFramePayload(frame, audioBuffer);
+        nextFrame = null;
+        return bytesRead;
+    }
+
+    @Override
+    public int peekAudioFrameSize() throws MkvElementVisitException {
+        MkvDataElement frame = nextFrame();
+        return frame == null ? 0 : KVSUtils.framePayloadLength(frame);
+    }
+
+    /**
+     * @return number of the fragment frames are currently read from, null before the first frame
+     */
+    public String getCurrentFragmentNumber() {
+        return currentFragmentNumber;
+    }
+
+    /**
+     * @return producer timestamp of the fragment frames are currently read from, -1 before the first frame
+     */
+    public long getCurrentFragmentProducerTimestampMillis() {
+        return currentFragmentProducerTimestampMillis;
+    }
+
+    public String getStreamArn() {
+        return streamArn;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mediaStream.close();
+    }
+
+    /**
+     * Read up to the next frame the consumer doesn't have yet, resuming the stream if reading it fails. The frame is
+     * held until it is read: the parser only reuses its buffers once the stream is read again.
+     *
+     * @return the next frame to deliver, null once the stream has ended
+     */
+    private MkvDataElement nextFrame() throws MkvElementVisitException {
+        while (nextFrame == null) {
+            try {
+                MkvDataElement frame = KVSUtils.nextAudioFrame(streamingMkvReader, fragmentVisitor, tagProcessor);
+                if (frame == null) {
+                    return null;
+                }
+
+                if (isAlreadyDelivered()) {
+                    // replayed after a resume, the consumer has this frame already
+                    continue;
+                }
+                consecutiveResumeAttempts = 0;
+                nextFrame = frame;
+            } catch (MkvElementVisitException | RuntimeException e) {
+                if (!isTransient(e) || consecutiveResumeAttempts >= maxResumeAttempts) {
+                    throw e;
+                }
+                resume(e);
+            }
+        }
+        return nextFrame;
+    }
+
+    /**
+     * Advance the checkpoint past the frame just read from the stream.
+     *
+     * @return true if the frame was handed out before the last resume
+     */
+    private boolean isAlreadyDelivered() {
+        Optional<FragmentMetadata> fragment = fragmentVisitor.getCurrentFragmentMetadata();
+        if (fragment.isPresent() && fragment.get() != currentFragment) {
+            currentFragment = fragment.get();
+            String fragmentNumber = currentFragment.getFragmentNumberString();
+            if (!fragmentNumber.equals(currentFragmentNumber)) {
+                currentFragmentNumber = fragmentNumber;
+                currentFragmentProducerTimestampMillis = currentFragment.getProducerSideTimestampMillis();
+                framesDeliveredInFragment = 0;
+            }
+            frameIndexInFragment = 0;
+        }
+
+        int frameIndex = frameIndexInFragment++;
+        if (frameIndex < framesDeliveredInFragment) {
+            return true;
+        }
+        framesDeliveredInFragment = frameIndex + 1;
+        return false;
+    }
+
+    private void resume(Exception cause) {
+        consecutiveResumeAttempts++;
+        String resumeFragmentNumber = currentFragmentNumber != null ? currentFragmentNumber : startFragmentNumber;
+        logger.warn("Reading stream {} failed, resuming at fragment {} after {} frames (attempt {} of {})",
+                streamArn, resumeFragmentNumber, framesDeliveredInFragment, consecutiveResumeAttempts,
+                maxResumeAttempts, cause);
+        metricsUtil.recordMetric("KVSGetMediaResumed", 1);
+
+        try {
+            mediaStream.close();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Failed to close the broken media stream of {}", streamArn, e);
+        }
+        mediaSource.onMediaError(streamArn);
+
+        try {
+            Thread.sleep(RESUME_BACKOFF_MILLIS * consecutiveResumeAttempts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resuming stream " + streamArn, e);
+        }
+
+        frameIndexInFragment = 0;
+        open(resumeFragmentNumber);
+    }
+
+    private void open(String fragmentNumber) {
+        mediaStream = mediaSource.getMedia(streamArn, fragmentNumber);
+        streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(mediaStream));
+        fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+        currentFragment = null;
+    }
+
+    /**
+     * Network and read errors are worth reopening the stream for; anything else, e.g. a malformed stream, is not.
+     */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException || t instanceof AmazonClientException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
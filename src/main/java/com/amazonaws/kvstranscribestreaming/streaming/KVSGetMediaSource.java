@@ -0,0 +1,30 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kvstranscribestreaming.utils.KVSClientCache;
+import com.amazonaws.kvstranscribestreaming.utils.KVSUtils;
+import org.apache.commons.lang3.Validate;
+
+import java.io.InputStream;
+
+/**
+ * Reads media from Kinesis Video Streams with the GetMedia API.
+ */
+public class KVSGetMediaSource implements KVSMediaSource {
+
+    private final KVSClientCache kvsClientCache;
+
+    public KVSGetMediaSource(KVSClientCache kvsClientCache) {
+        this.kvsClientCache = Validate.notNull(kvsClientCache);
+    }
+
+    @Override
+    public InputStream getMedia(String streamArn, String startFragmentNumber) {
+        return KVSUtils.getInputStreamFromKVS(streamArn, startFragmentNumber, kvsClientCache);
+    }
+
+    @Override
+    public void onMediaError(String streamArn) {
+        // the endpoint may have moved, look it up again on the next GetMedia
+        kvsClientCache.invalidate(streamArn);
+    }
+}
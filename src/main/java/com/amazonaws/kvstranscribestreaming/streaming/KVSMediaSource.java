@@ -0,0 +1,34 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import java.io.InputStream;
+
+/**
+ * Source of the MKV media of a KVS stream, in the format returned by the KVS GetMedia API.
+ */
+public interface KVSMediaSource {
+
+    /**
+     * Open the media of a stream.
+     *
+     * @param streamArn           ARN of the KVS stream
+     * @param startFragmentNumber fragment number to start from, or null to start from the earliest fragment
+     * @return the MKV payload; the caller closes it
+     */
+    InputStream getMedia(String streamArn, String startFragmentNumber);
+
+    /**
+     * Called when reading media previously returned for the stream failed, before it is opened again.
+     *
+     * @param streamArn ARN of the KVS stream
+     */
+    default void onMediaError(String streamArn) {
+    }
+
+    /**
+     * @param transactionId transaction id of the call
+     * @return transaction id the TransactionId tags of the call's media carry, the call's own for KVS streams
+     */
+    default String getMediaTransactionId(String transactionId) {
+        return transactionId;
+    }
+}
@@ -0,0 +1,255 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads ahead of the consumer of an InputStream. A dedicated thread copies the source, typically a GetMedia
+ * connection, into a bounded off-heap ring buffer and the consumer reads from memory, so a slow network read doesn't
+ * stall the consumer as long as enough data is buffered, and a slow consumer doesn't stop the socket from being read.
+ *
+ * A read error of the source is reported to the consumer once the bytes read before it have been consumed. Buffer
+ * occupancy and the time either side spent waiting on the other are recorded as metrics when the stream is closed.
+ */
+public class PrefetchingInputStream extends InputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchingInputStream.class);
+    private static final ThreadFactory PREFETCH_THREAD_FACTORY = new BasicThreadFactory.Builder()
+            .namingPattern("kvs-prefetch-%d").daemon(true).build();
+    private static final int SOURCE_READ_SIZE = 8 * 1024;
+
+    private final InputStream source;
+    private final MetricsUtil metricsUtil;
+    private final ByteBuffer ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // guarded by lock
+    private int readIndex;
+    private int count;
+    private boolean sourceDone;
+    private IOException sourceError;
+    private boolean closed;
+
+    // statistics, guarded by lock
+    private int maxCount;
+    private long occupancySum;
+    private long occupancySamples;
+    private long consumerStallNanos;
+    private long producerStallNanos;
+
+    /**
+     * @param source          stream to read ahead of; closed when this stream is closed
+     * @param bufferSizeBytes maximum number of bytes read ahead
+     * @param metricsUtil
+     */
+    public PrefetchingInputStream(InputStream source, int bufferSizeBytes, MetricsUtil metricsUtil) {
+        Validate.isTrue(bufferSizeBytes > 0, "Prefetch buffer size must be positive");
+        this.source = Validate.notNull(source);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.ring = ByteBuffer.allocateDirect(bufferSizeBytes);
+        PREFETCH_THREAD_FACTORY.newThread(this::prefetch).start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Validate.notNull(b);
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        lock.lock();
+        try {
+            if (count == 0 && !sourceDone && !closed) {
+                long stallStart = System.nanoTime();
+                while (count == 0 && !sourceDone && !closed) {
+                    notEmpty.await();
+                }
+                consumerStallNanos += System.nanoTime() - stallStart;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            occupancySum += count;
+            occupancySamples++;
+
+            if (count == 0) {
+                if (sourceError != null) {
+                    throw sourceError;
+                }
+                return -1;
+            }
+
+            int n = Math.min(len, count);
+            int first = Math.min(n, ring.capacity() - readIndex);
+            ring.position(readIndex);
+            ring.get(b, off, first);
+            if (n > first) {
+                ring.position(0);
+                ring.get(b, off + first, n - first);
+            }
+            readIndex = (readIndex + n) % ring.capacity();
+            count -= n;
+            notFull.signal();
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for prefetched media");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes read ahead and waiting in memory
+     */
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop reading ahead, close the source and record the buffer statistics.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            // unblocks the prefetch thread if it is waiting on the network
+            source.close();
+        } finally {
+            recordStatistics();
+        }
+    }
+
+    private void prefetch() {
+        byte[] chunk = new byte[SOURCE_READ_SIZE];
+        try {
+            while (true) {
+                int n = source.read(chunk, 0, chunk.length);
+                if (n == -1 || !put(chunk, n)) {
+                    break;
+                }
+            }
+            finish(null);
+        } catch (IOException e) {
+            finish(e);
+        } catch (RuntimeException e) {
+            finish(new IOException("Reading media failed", e));
+        } catch (InterruptedException e) {
+            finish(new InterruptedIOException("Interrupted while reading media"));
+        }
+    }
+
+    /**
+     * @return false if the stream was closed while waiting for space
+     */
+    private boolean put(byte[] chunk, int length) throws InterruptedException {
+        int offset = 0;
+        lock.lock();
+        try {
+            while (offset < length) {
+                if (count == ring.capacity() && !closed) {
+                    long stallStart = System.nanoTime();
+                    while (count == ring.capacity() && !closed) {
+                        notFull.await();
+                    }
+                    producerStallNanos += System.nanoTime() - stallStart;
+                }
+                if (closed) {
+                    return false;
+                }
+
+                int writeIndex = (readIndex + count) % ring.capacity();
+                int n = Math.min(length - offset,
+                        Math.min(ring.capacity() - count, ring.capacity() - writeIndex));
+                ring.position(writeIndex);
+                ring.put(chunk, offset, n);
+                offset += n;
+                count += n;
+                maxCount = Math.max(maxCount, count);
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(IOException error) {
+        lock.lock();
+        try {
+            if (error != null && !closed) {
+                sourceError = error;
+            }
+            sourceDone = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordStatistics() {
+        double maxOccupancy;
+        double averageOccupancy;
+        long consumerStallMillis;
+        long producerStallMillis;
+        lock.lock();
+        try {
+            maxOccupancy = 100.0 * maxCount / ring.capacity();
+            averageOccupancy = occupancySamples == 0 ? 0 : 100.0 * occupancySum / occupancySamples / ring.capacity();
+            consumerStallMillis = TimeUnit.NANOSECONDS.toMillis(consumerStallNanos);
+            producerStallMillis = TimeUnit.NANOSECONDS.toMillis(producerStallNanos);
+        } finally {
+            lock.unlock();
+        }
+
+        logger.info("Prefetch buffer: average occupancy {}%, max occupancy {}%, consumer waited {} ms, "
+                        + "reader waited {} ms", Math.round(averageOccupancy), Math.round(maxOccupancy),
+                consumerStallMillis, producerStallMillis);
+        metricsUtil.recordMetric("KVSPrefetchAverageOccupancy", averageOccupancy, StandardUnit.Percent);
+        metricsUtil.recordMetric("KVSPrefetchMaxOccupancy", maxOccupancy, StandardUnit.Percent);
+        metricsUtil.recordMetric("KVSPrefetchConsumerStallTime", consumerStallMillis, StandardUnit.Milliseconds);
+        metricsUtil.recordMetric("KVSPrefetchProducerStallTime", producerStallMillis, StandardUnit.Milliseconds);
+    }
+}
@@ -0,0 +1,49 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+
+import java.io.InputStream;
+
+/**
+ * Decorates a {@link KVSMediaSource} so that every media stream it opens is read ahead by a
+ * {@link PrefetchingInputStream}.
+ */
+public class PrefetchingMediaSource implements KVSMediaSource {
+
+    private static final String KVS_PREFETCH_BUFFER_KB = System.getenv("KVS_PREFETCH_BUFFER_KB");
+    // a few seconds of 8 kHz audio including the MKV framing
+    private static final int DEFAULT_PREFETCH_BUFFER_KB = 256;
+
+    private final KVSMediaSource delegate;
+    private final int bufferSizeBytes;
+    private final MetricsUtil metricsUtil;
+
+    public PrefetchingMediaSource(KVSMediaSource delegate, int bufferSizeBytes, MetricsUtil metricsUtil) {
+        Validate.isTrue(bufferSizeBytes > 0, "Prefetch buffer size must be positive");
+        this.delegate = Validate.notNull(delegate);
+        this.bufferSizeBytes = bufferSizeBytes;
+        this.metricsUtil = Validate.notNull(metricsUtil);
+    }
+
+    /**
+     * Wrap the source with a read ahead buffer of KVS_PREFETCH_BUFFER_KB kilobytes, 256 by default. Setting the
+     * variable to 0 turns read ahead off and returns the source unchanged.
+     */
+    public static KVSMediaSource fromEnvironment(KVSMediaSource delegate, MetricsUtil metricsUtil) {
+        int bufferSizeKB = KVS_PREFETCH_BUFFER_KB == null
+                ? DEFAULT_PREFETCH_BUFFER_KB : Integer.parseInt(KVS_PREFETCH_BUFFER_KB);
+        return bufferSizeKB > 0 ? new PrefetchingMediaSource(delegate, bufferSizeKB * 1024, metricsUtil) : delegate;
+    }
+
+    @Override
+    public InputStream getMedia(String streamArn, String startFragmentNumber) {
+        return new PrefetchingInputStream(delegate.getMedia(streamArn, startFragmentNumber), bufferSizeBytes,
+                metricsUtil);
+    }
+
+    @Override
+    public void onMediaError(String streamArn) {
+        delegate.onMediaError(streamArn);
+    }
+}
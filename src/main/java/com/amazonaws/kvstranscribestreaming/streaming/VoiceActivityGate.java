@@ -0,0 +1,132 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which chunks of 16 bit little endian PCM audio are worth sending to Transcribe, so that the long silences
+ * of a call leg (hold, the other party talking) are not streamed.
+ *
+ * A chunk is speech if its mean energy is above the silence threshold, or above a quarter of it with a zero crossing
+ * rate typical of unvoiced consonants. Chunks are sent while there is speech and for a hangover time after it, so
+ * trailing words aren't cut. Silent chunks are dropped, except one every keepalive interval so that the Transcribe
+ * session doesn't time out for lack of audio. The analysis reads the chunk in place and allocates nothing.
+ *
+ * Not thread safe, a gate keeps the state of one audio stream.
+ */
+public class VoiceActivityGate {
+
+    private static final String VAD_ENABLED = System.getenv("VAD_ENABLED");
+    private static final String VAD_SILENCE_THRESHOLD_DBFS = System.getenv("VAD_SILENCE_THRESHOLD_DBFS");
+    private static final String VAD_HANGOVER_MS = System.getenv("VAD_HANGOVER_MS");
+    private static final String VAD_KEEPALIVE_MS = System.getenv("VAD_KEEPALIVE_MS");
+    private static final double DEFAULT_SILENCE_THRESHOLD_DBFS = -50;
+    private static final int DEFAULT_HANGOVER_MS = 600;
+    private static final int DEFAULT_KEEPALIVE_MS = 5000;
+    private static final double UNVOICED_MIN_ZERO_CROSSING_RATE = 0.3;
+    private static final int PCM_BYTES_PER_SAMPLE = 2;
+    private static final double FULL_SCALE = 32768;
+
+    private final double silenceEnergy;
+    private final long hangoverBytes;
+    private final long keepaliveBytes;
+    private final int bytesPerSecond;
+    private final MetricsUtil metricsUtil;
+
+    private long hangoverRemaining;
+    private long silenceSinceLastSent;
+    private long suppressedBytes;
+
+    /**
+     * @param silenceThresholdDbfs mean level, in dB relative to full scale, below which a chunk is silence
+     * @param hangoverMillis       audio sent after the last speech
+     * @param keepaliveMillis      longest stretch of audio not sent
+     * @param bytesPerSecond       bytes per second of the audio
+     * @param metricsUtil
+     */
+    public VoiceActivityGate(double silenceThresholdDbfs, int hangoverMillis, int keepaliveMillis, int bytesPerSecond,
+                             MetricsUtil metricsUtil) {
+        Validate.isTrue(hangoverMillis >= 0, "Hangover must not be negative");
+        Validate.isTrue(keepaliveMillis > 0, "Keepalive interval must be positive");
+        double amplitude = FULL_SCALE * Math.pow(10, silenceThresholdDbfs / 20);
+        this.silenceEnergy = amplitude * amplitude;
+        this.hangoverBytes = (long) hangoverMillis * bytesPerSecond / 1000;
+        this.keepaliveBytes = (long) keepaliveMillis * bytesPerSecond / 1000;
+        this.bytesPerSecond = bytesPerSecond;
+        this.metricsUtil = Validate.notNull(metricsUtil);
+    }
+
+    /**
+     * Build a gate from the VAD_* environment variables.
+     *
+     * @return a new gate, or null unless VAD_ENABLED is true
+     */
+    public static VoiceActivityGate fromEnvironment(int bytesPerSecond, MetricsUtil metricsUtil) {
+        if (!Boolean.parseBoolean(VAD_ENABLED)) {
+            return null;
+        }
+        return new VoiceActivityGate(
+                VAD_SILENCE_THRESHOLD_DBFS == null
+                        ? DEFAULT_SILENCE_THRESHOLD_DBFS : Double.parseDouble(VAD_SILENCE_THRESHOLD_DBFS),
+                VAD_HANGOVER_MS == null ? DEFAULT_HANGOVER_MS : Integer.parseInt(VAD_HANGOVER_MS),
+                VAD_KEEPALIVE_MS == null ? DEFAULT_KEEPALIVE_MS : Integer.parseInt(VAD_KEEPALIVE_MS),
+                bytesPerSecond, metricsUtil);
+    }
+
+    /**
+     * @param chunk audio from its position to its limit, left untouched
+     * @return true if the chunk should be sent
+     */
+    public boolean shouldSend(ByteBuffer chunk) {
+        int length = chunk.remaining();
+        if (isSpeech(chunk)) {
+            hangoverRemaining = hangoverBytes;
+        } else if (hangoverRemaining > 0) {
+            hangoverRemaining -= length;
+        } else if (silenceSinceLastSent + length < keepaliveBytes) {
+            silenceSinceLastSent += length;
+            suppressedBytes += length;
+            return false;
+        }
+        silenceSinceLastSent = 0;
+        return true;
+    }
+
+    /**
+     * Record how much audio was not sent.
+     */
+    public void close() {
+        metricsUtil.recordMetric("TranscribeAudioSuppressed", suppressedBytes * 1000 / bytesPerSecond,
+                StandardUnit.Milliseconds);
+    }
+
+    private boolean isSpeech(ByteBuffer chunk) {
+        int start = chunk.position();
+        int samples = chunk.remaining() / PCM_BYTES_PER_SAMPLE;
+        if (samples == 0) {
+            return false;
+        }
+
+        double energy = 0;
+        int zeroCrossings = 0;
+        int previous = 0;
+        for (int i = 0; i < samples; i++) {
+            int offset = start + i * PCM_BYTES_PER_SAMPLE;
+            int sample = (short) ((chunk.get(offset) & 0xff) | (chunk.get(offset + 1) << 8));
+            energy += (double) sample * sample;
+            if (i > 0 && (sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+        energy /= samples;
+
+        if (energy >= silenceEnergy) {
+            return true;
+        }
+        return energy >= silenceEnergy / 4 && (double) zeroCrossings / samples >= UNVOICED_MIN_ZERO_CROSSING_RATE;
+    }
+}
@@ -0,0 +1,115 @@
+package com.amazonaws.kvstranscribestreaming.transcribe;
+
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioFrameSource;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPacer;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioReplayBuffer;
+import com.amazonaws.kvstranscribestreaming.streaming.VoiceActivityGate;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * KVSAudioStreamPublisher implements audio stream publisher. It emits audio
+ * events from a KVS stream asynchronously on the given executor, typically the shared audio pump.
+ *
+ * Every retry or rotation of the Transcribe session subscribes again. The previous subscription is then ended
+ * and hands the stream over to the new one, which first replays the buffered audio from the end of the last
+ * final result, or from the start of the overlap window if that is earlier, so nothing said around the switch is
+ * lost. Results transcribed twice are deduplicated by the session timeline.
+ *
+ * The sessions overlap by replay rather than by sending the live audio to both for the length of the overlap: the
+ * old session is ended as soon as the chunk it is reading has been sent, and the new one gets the last overlap
+ * window of audio again from the replay buffer. A call thus never streams to two sessions at once, which would count
+ * twice against the account's concurrent stream quota.
+ *
+ * With a voice activity gate, silences are not sent to Transcribe; the session timeline maps result times across them.
+ * Audio behind the live edge, a late start or a replay, is sent at the catch up rate of the call's pacer.
+ */
+public class KVSAudioStreamPublisher implements Publisher<AudioStream> {
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSAudioStreamPublisher.class);
+
+    private final AudioFrameSource frameSource;
+    private final String callId;
+    private final OutputStream outputStream;
+    private final boolean shouldWriteToOutputStream;
+    private final AudioChunkPolicy chunkPolicy;
+    private final Executor executor;
+    private final AudioReplayBuffer replayBuffer;
+    private final SessionTimeline sessionTimeline;
+    private final AudioPacer pacer;
+    private final long sessionOverlapBytes;
+    private final Supplier<VoiceActivityGate> gateFactory;
+    private final MetricsUtil metricsUtil;
+    private KVSByteToAudioEventSubscription currentSubscription;
+
+    /**
+     * @param executor            executor the subscriptions drain the stream on
+     * @param replayBuffer        buffer of the call's recent audio, replayed to a new session
+     * @param sessionTimeline     timeline of the call's sessions
+     * @param pacer               pacer of the call's audio, null to send audio as fast as it is requested
+     * @param sessionOverlapBytes audio sent again to a new session even if it has final results already
+     * @param gateFactory         creates the gate of every session, which returns null to send all audio
+     * @param metricsUtil
+     */
+    public KVSAudioStreamPublisher(AudioFrameSource frameSource, String callId, OutputStream outputStream,
+                                   boolean shouldWriteToOutputStream, AudioChunkPolicy chunkPolicy, Executor executor,
+                                   AudioReplayBuffer replayBuffer, SessionTimeline sessionTimeline, AudioPacer pacer,
+                                   long sessionOverlapBytes, Supplier<VoiceActivityGate> gateFactory,
+                                   MetricsUtil metricsUtil) {
+        this.frameSource = Validate.notNull(frameSource);
+        this.callId = Validate.notNull(callId);
+        this.outputStream = Validate.notNull(outputStream);
+        this.shouldWriteToOutputStream = shouldWriteToOutputStream;
+        this.chunkPolicy = Validate.notNull(chunkPolicy);
+        this.executor = Validate.notNull(executor);
+        this.replayBuffer = Validate.notNull(replayBuffer);
+        this.sessionTimeline = Validate.notNull(sessionTimeline);
+        this.pacer = pacer;
+        this.sessionOverlapBytes = sessionOverlapBytes;
+        this.gateFactory = Validate.notNull(gateFactory);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+    }
+
+    @Override
+    public synchronized void subscribe(Subscriber<? super AudioStream> s) {
+        Validate.notNull(s, "Subscriber must not be null");
+        int bytesPerSecond = replayBuffer.getBytesPerSecond();
+        KVSByteToAudioEventSubscription previous = currentSubscription;
+        long replayFromOffset = -1;
+        if (previous != null) {
+            long stableOffset = sessionTimeline.getStableOffsetBytes();
+            long endOffset = replayBuffer.getEndOffset();
+            long overlapOffset = Math.max(0, endOffset - sessionOverlapBytes);
+            long wantedOffset = Math.min(stableOffset, overlapOffset);
+            replayFromOffset = Math.min(Math.max(wantedOffset, replayBuffer.getStartOffset()), endOffset);
+            if (replayFromOffset > wantedOffset) {
+                logger.warn("[{}] {} ms of audio since the last final result are no longer buffered and are lost",
+                        callId, (replayFromOffset - wantedOffset) * 1000 / bytesPerSecond);
+            }
+            long replayMillis = (endOffset - replayFromOffset) * 1000 / bytesPerSecond;
+            logger.info("[{}] Replaying {} ms of audio to the new Transcribe session", callId, replayMillis);
+            metricsUtil.recordMetric("TranscribeAudioReplayed", replayMillis, StandardUnit.Milliseconds);
+        }
+
+        KVSByteToAudioEventSubscription subscription = new KVSByteToAudioEventSubscription(s, frameSource, callId,
+                outputStream, shouldWriteToOutputStream, chunkPolicy, executor, replayBuffer,
+                replayFromOffset, previous == null, sessionTimeline.startAudio(), gateFactory.get(), pacer);
+        currentSubscription = subscription;
+        s.onSubscribe(subscription);
+        subscription.start();
+        if (previous != null) {
+            previous.handOff(subscription);
+        }
+    }
+}
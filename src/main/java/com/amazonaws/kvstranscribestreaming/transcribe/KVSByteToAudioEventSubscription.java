@@ -1,98 +1,461 @@
 package com.amazonaws.kvstranscribestreaming.transcribe;
 
-import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
-import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
-import com.amazonaws.kvstranscribestreaming.utils.KVSUtils;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPool;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunker;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioFrameSource;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPacer;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioPumpExecutor;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioReplayBuffer;
+import com.amazonaws.kvstranscribestreaming.streaming.VoiceActivityGate;
+import com.amazonaws.kvstranscribestreaming.utils.AudioUtils;
 import org.apache.commons.lang3.Validate;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
 import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This Subscription converts audio bytes received from the KVS stream into
- * AudioEvents that can be sent to the Transcribe service. It implements a
- * simple demand system that will read chunks of bytes from a KVS stream using
- * the KVS parser library
+ * AudioEvents that can be sent to the Transcribe service. It implements the
+ * Reactive Streams demand system, reading chunks of bytes from an {@link AudioFrameSource},
+ * typically a {@link com.amazonaws.kvstranscribestreaming.streaming.KVSAudioReader}
+ *
+ * Chunks are assembled according to an {@link AudioChunkPolicy} in a single buffer borrowed
+ * from the {@link AudioChunkPool} for the lifetime of the subscription. The only copy of the audio made here is the one into the
+ * AudioEvent's SdkBytes; the recording file is written straight from the pooled buffer.
+ *
+ * All reading and signalling happens in a drain loop run on the {@link AudioPumpExecutor} shared by all calls. A
+ * work in progress counter makes sure at most one drain runs per subscription: demand from any number of
+ * {@link #request(long)} calls, including reentrant ones from onNext, is added up and served by the drain already
+ * running, and nothing is read from the stream while there is no demand. The first drain only runs once the
+ * subscriber's onSubscribe has returned and {@link #start()} is called. Cancellation is handled by the drain too,
+ * so the frame source and the pooled buffer are only ever touched by one thread at a time.
+ *
+ * With an {@link AudioReplayBuffer} every chunk read from the stream is also appended to it, and a subscription made
+ * for a retried Transcribe session first sends the buffered audio from the given replay offset before it goes on
+ * with the stream. Replayed audio is not written to the recording again.
+ *
+ * Only one subscription of a call reads the stream at a time. A subscription for a new session that does not own the
+ * stream yet keeps sending the audio its predecessor appends to the replay buffer, woken up by the predecessor for
+ * every chunk it appends, and takes the stream over once the predecessor is done with it: when it is cancelled,
+ * fails, or completes after {@link #handOff} was called, which is how a rotated session is ended. Audio the
+ * predecessor's chunker read from the stream for its next chunk is appended to the replay buffer, and recorded, before
+ * the stream is handed over, so the successor goes on exactly where the predecessor stopped.
+ *
+ * With a {@link VoiceActivityGate} the chunks it finds silent are not sent, though still recorded. Every chunk sent
+ * is reported to the {@link SessionTimeline.Session} with its offset in the call, so that result times can be mapped
+ * back onto the call across the gaps.
+ *
+ * With an {@link AudioPacer} the drain stops reading while sending is ahead of the pace, and a drain is scheduled for
+ * when the next chunk is due, so a paced call does not hold a pump thread while it waits.
  */
 public class KVSByteToAudioEventSubscription implements Subscription {
 
-    private static final int CHUNK_SIZE_IN_KB = 4;
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
-    private AtomicLong demand = new AtomicLong(0);
-    private final Subscriber<? super AudioStream> subscriber;
-    private final StreamingMkvReader streamingMkvReader;
+    private static final Logger logger = LoggerFactory.getLogger(KVSByteToAudioEventSubscription.class);
+    private final Executor executor;
+    private final AtomicLong demand = new AtomicLong(0);
+    // held at 1 until start() so that nothing is signalled before onSubscribe returned, rule 1.3
+    private final AtomicInteger wip = new AtomicInteger(1);
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+    private boolean done;
+    // dropped once terminated, rule 3.13
+    private Subscriber<? super AudioStream> subscriber;
     private String callId;
     private OutputStream outputStream;
-    private final KVSTransactionIdTagProcessor tagProcessor;
-    private final FragmentMetadataVisitor fragmentVisitor;
     private final boolean shouldWriteToOutputStream;
+    private final AudioFrameSource frameSource;
+    private AudioChunker audioChunker;
+    private final AudioReplayBuffer replayBuffer;
+    private final int replayChunkBytes;
+    // offset of the next replayed byte, -1 once the buffered audio has been sent and chunks come from the stream
+    private long replayOffset;
+    private volatile boolean ownsSource;
+    private volatile boolean sourceReleased;
+    private volatile boolean handOffRequested;
+    private final AtomicReference<KVSByteToAudioEventSubscription> successor = new AtomicReference<>();
+    private final SessionTimeline.Session session;
+    private final VoiceActivityGate gate;
+    private final AudioPacer pacer;
+    private final AtomicBoolean pacedDrainScheduled = new AtomicBoolean();
 
-    public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, StreamingMkvReader streamingMkvReader,
-                                           String callId, OutputStream outputStream, KVSTransactionIdTagProcessor tagProcessor,
-                                           FragmentMetadataVisitor fragmentVisitor, boolean shouldWriteToOutputStream) {
+    public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, AudioFrameSource frameSource,
+                                           String callId, OutputStream outputStream, boolean shouldWriteToOutputStream,
+                                           AudioChunkPolicy chunkPolicy, Executor executor) {
+        this(s, frameSource, callId, outputStream, shouldWriteToOutputStream, chunkPolicy, executor, null, -1, true,
+                null, null, null);
+    }
+
+    /**
+     * @param replayBuffer     buffer the audio read from the stream is appended to, null to keep no audio
+     * @param replayFromOffset offset in the replay buffer of the first audio to send, -1 to start with the stream
+     * @param ownsSource       false if another subscription reads the stream until it hands it over to this one
+     * @param session          session the audio sent is reported to, null to report nothing
+     * @param gate             gate dropping silent chunks, null to send all audio
+     * @param pacer            pacer of the call's audio, null to send audio as fast as it is requested
+     */
+    public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, AudioFrameSource frameSource,
+                                           String callId, OutputStream outputStream, boolean shouldWriteToOutputStream,
+                                           AudioChunkPolicy chunkPolicy, Executor executor,
+                                           AudioReplayBuffer replayBuffer, long replayFromOffset, boolean ownsSource,
+                                           SessionTimeline.Session session, VoiceActivityGate gate,
+                                           AudioPacer pacer) {
+        Validate.isTrue(replayFromOffset < 0 || replayBuffer != null, "Replaying needs a replay buffer");
+        Validate.isTrue(ownsSource || replayFromOffset >= 0, "Waiting for the stream needs a replay offset");
+        Validate.isTrue(session == null || replayBuffer != null, "Reporting audio offsets needs a replay buffer");
+        Validate.isTrue(pacer == null || replayBuffer != null, "Pacing audio needs a replay buffer");
         this.subscriber = Validate.notNull(s);
-        this.streamingMkvReader = Validate.notNull(streamingMkvReader);
+        this.frameSource = Validate.notNull(frameSource);
         this.callId = Validate.notNull(callId);
         this.outputStream = Validate.notNull(outputStream);
-        this.tagProcessor = Validate.notNull(tagProcessor);
-        this.fragmentVisitor = Validate.notNull(fragmentVisitor);
         this.shouldWriteToOutputStream = shouldWriteToOutputStream;
+        this.audioChunker = new AudioChunker(Validate.notNull(chunkPolicy), AudioChunkPool.getDefault());
+        this.executor = Validate.notNull(executor);
+        this.replayBuffer = replayBuffer;
+        // replay in 100 ms chunks
+        this.replayChunkBytes = replayBuffer == null ? 0
+                : Math.min(replayBuffer.getBytesPerSecond() / 10, audioChunker.getChunk().capacity());
+        this.replayOffset = replayFromOffset;
+        this.ownsSource = ownsSource;
+        this.session = session;
+        this.gate = gate;
+        this.pacer = pacer;
+    }
+
+    /**
+     * Let the drain run, once onSubscribe has returned. Demand and cancellation signalled from onSubscribe are served
+     * from here.
+     */
+    public void start() {
+        if (wip.decrementAndGet() != 0) {
+            scheduleDrain();
+        }
     }
 
     @Override
     public void request(long n) {
         if (n <= 0) {
-            subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+            // Rule 3.9: signal onError and stop, the error is sent by the drain so it is not concurrent with onNext
+            if (invalidRequest == null) {
+                invalidRequest = new IllegalArgumentException(
+                        "Demand must be positive, got " + n + " for call " + callId);
+            }
+            drain();
+            return;
+        }
+
+        addDemand(n);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        // The drain releases the chunk, once one in progress is done with it
+        drain();
+    }
+
+    /**
+     * Complete this subscription as soon as the chunk being read is sent, and hand the stream over to the given
+     * subscription once done with it.
+     */
+    public void handOff(KVSByteToAudioEventSubscription next) {
+        successor.set(Validate.notNull(next));
+        handOffRequested = true;
+        if (sourceReleased) {
+            passSourceOn();
+        } else {
+            drain();
         }
+    }
 
-        demand.getAndAdd(n);
-        // We need to invoke this in a separate thread because the call to
-        // subscriber.onNext(...) is recursive
-        executor.submit(() -> {
+    private void acquireSource() {
+        ownsSource = true;
+        if (sourceReleased) {
+            // terminated while waiting, pass it straight on
+            passSourceOn();
+        } else {
+            drain();
+        }
+    }
+
+    private void releaseSource() {
+        sourceReleased = true;
+        passSourceOn();
+    }
+
+    private void passSourceOn() {
+        if (ownsSource) {
+            KVSByteToAudioEventSubscription next = successor.getAndSet(null);
+            if (next != null) {
+                next.acquireSource();
+            }
+        }
+    }
+
+    /**
+     * Add to the outstanding demand, capped at Long.MAX_VALUE which means unbounded (rule 3.17).
+     */
+    private void addDemand(long n) {
+        long current;
+        long next;
+        do {
+            current = demand.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+            next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+        } while (!demand.compareAndSet(current, next));
+    }
+
+    private void drain() {
+        // Only the caller that moves the counter off zero schedules a drain, the others leave their work to it
+        if (wip.getAndIncrement() == 0) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        try {
+            executor.execute(this::drainLoop);
+        } catch (RuntimeException e) {
+            // The executor rejected the drain, nothing else will ever run it
+            cancelled = true;
+            releaseAudioChunk();
+            signalError(e);
+        }
+    }
+
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            if (terminateIfNeeded()) {
+                return;
+            }
+
+            long requested = demand.get();
+            long emitted = 0;
             try {
-                while (demand.get() > 0) {
-                    ByteBuffer audioBuffer = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor,
-                            tagProcessor, CHUNK_SIZE_IN_KB);
+                while (emitted != requested) {
+                    if (terminateIfNeeded()) {
+                        return;
+                    }
 
-                    if (audioBuffer.remaining() > 0) {
+                    if (pacer != null && waitForPace()) {
+                        break;
+                    }
 
-                        AudioEvent audioEvent = audioEventFromBuffer(audioBuffer);
-                        subscriber.onNext(audioEvent);
+                    boolean replayed = replayOffset >= 0;
+                    long chunkOffset;
+                    int chunkSize = replayed ? readReplayedChunk() : 0;
+                    if (chunkSize == 0) {
+                        if (replayOffset >= 0) {
+                            // caught up with the predecessor, wait until it hands the stream over
+                            break;
+                        }
+                        replayed = false;
+                        chunkOffset = replayBuffer == null ? -1 : replayBuffer.getEndOffset();
+                        chunkSize = readChunk();
+                    } else {
+                        // the replay offset may have been moved up to the start of the buffer
+                        chunkOffset = replayOffset - chunkSize;
+                    }
+                    if (chunkSize <= 0) {
+                        complete();
+                        return;
+                    }
 
-                        if (shouldWriteToOutputStream) {
-                            // Write audioBytes to a temporary file as they are received from the stream
-                            byte[] audioBytes = new byte[audioBuffer.remaining()];
-                            audioBuffer.get(audioBytes);
-                            outputStream.write(audioBytes);
+                    ByteBuffer audioChunk = audioChunker.getChunk();
+                    boolean send = gate == null || gate.shouldSend(audioChunk);
+                    if (send) {
+                        if (session != null) {
+                            session.audioSent(chunkOffset, chunkSize);
                         }
+                        if (pacer != null) {
+                            pacer.onAudioSent(chunkOffset, chunkSize);
+                        }
+                        subscriber.onNext(audioEventFromBuffer(audioChunk));
+                    }
 
-                    } else {
-                        subscriber.onComplete();
-                        break;
+                    if (shouldWriteToOutputStream && !replayed) {
+                        // Write audioBytes to a temporary file as they are received from the stream
+                        AudioUtils.writeAudioChunk(outputStream, audioChunk);
+                    }
+                    if (send) {
+                        emitted++;
                     }
-                    demand.getAndDecrement();
                 }
             } catch (Exception e) {
-                subscriber.onError(e);
+                releaseAudioChunk();
+                signalError(e);
+                releaseSource();
+                return;
             }
-        });
+
+            if (requested != Long.MAX_VALUE) {
+                demand.addAndGet(-emitted);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
     }
 
-    @Override
-    public void cancel() {
-        executor.shutdown();
+    /**
+     * @return true if the next chunk isn't due yet, after scheduling a drain for when it is
+     */
+    private boolean waitForPace() {
+        long delayNanos = pacer.getDelayNanos();
+        if (delayNanos == 0) {
+            return false;
+        }
+        if (pacedDrainScheduled.compareAndSet(false, true)) {
+            pacer.schedule(() -> {
+                pacedDrainScheduled.set(false);
+                drain();
+            }, delayNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Read the next chunk of buffered audio into the chunk buffer. The chunker has not read anything yet while
+     * replaying, so its buffer is free.
+     *
+     * @return size of the chunk, 0 once all buffered audio has been sent
+     */
+    private int readReplayedChunk() {
+        // checked before reading, a predecessor appends all its audio before it hands the stream over
+        boolean owner = ownsSource;
+        // audio may have been dropped from the buffer since the replay offset was chosen
+        replayOffset = Math.max(replayOffset, replayBuffer.getStartOffset());
+        ByteBuffer chunk = audioChunker.getChunk();
+        chunk.clear();
+        chunk.limit(replayChunkBytes);
+        int chunkSize = replayBuffer.read(replayOffset, chunk);
+        chunk.flip();
+        if (chunkSize == 0) {
+            if (owner) {
+                replayOffset = -1;
+            }
+        } else {
+            replayOffset += chunkSize;
+        }
+        return chunkSize;
+    }
+
+    private int readChunk() throws MkvElementVisitException {
+        int chunkSize = audioChunker.fill(frameSource);
+        if (chunkSize > 0 && replayBuffer != null) {
+            replayBuffer.append(audioChunker.getChunk());
+            // a successor that caught up with the replay buffer waits for this chunk
+            KVSByteToAudioEventSubscription next = successor.get();
+            if (next != null) {
+                next.drain();
+            }
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Keep the audio read from the stream for the chunk after the last one, which would otherwise be lost with the
+     * chunker, in the replay buffer and the recording. The successor taking the stream over replays it from there.
+     */
+    private void flushCarriedAudio() {
+        int chunkSize = audioChunker.flush();
+        if (chunkSize == 0) {
+            return;
+        }
+        ByteBuffer audioChunk = audioChunker.getChunk();
+        if (replayBuffer != null) {
+            replayBuffer.append(audioChunk);
+        }
+        if (shouldWriteToOutputStream) {
+            try {
+                AudioUtils.writeAudioChunk(outputStream, audioChunk);
+            } catch (IOException e) {
+                logger.warn("[{}] Failed to record the last {} bytes read by a Transcribe session", callId,
+                        chunkSize, e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the subscription was cancelled, failed a demand check or already terminated, after releasing
+     * its chunk and sending the error if there is one
+     */
+    private boolean terminateIfNeeded() {
+        if (done) {
+            return true;
+        }
+        Throwable error = invalidRequest;
+        if (error != null) {
+            cancelled = true;
+            releaseAudioChunk();
+            signalError(error);
+            releaseSource();
+            return true;
+        }
+        if (cancelled) {
+            releaseAudioChunk();
+            done = true;
+            subscriber = null;
+            releaseSource();
+            return true;
+        }
+        if (handOffRequested) {
+            complete();
+            return true;
+        }
+        return false;
+    }
+
+    private void complete() {
+        releaseAudioChunk();
+        done = true;
+        subscriber.onComplete();
+        subscriber = null;
+        releaseSource();
+    }
+
+    private void signalError(Throwable t) {
+        if (!done) {
+            done = true;
+            subscriber.onError(t);
+            subscriber = null;
+        }
+    }
+
+    private void releaseAudioChunk() {
+        if (audioChunker != null) {
+            if (ownsSource) {
+                flushCarriedAudio();
+            }
+            audioChunker.close();
+            audioChunker = null;
+            if (gate != null) {
+                gate.close();
+            }
+        }
     }
 
     private AudioEvent audioEventFromBuffer(ByteBuffer bb) {
+        // SdkBytes takes its own copy of the remaining bytes and leaves the buffer position untouched
         return AudioEvent.builder().audioChunk(SdkBytes.fromByteBuffer(bb)).build();
     }
 }
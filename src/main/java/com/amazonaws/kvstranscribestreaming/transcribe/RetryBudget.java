@@ -0,0 +1,85 @@
+package com.amazonaws.kvstranscribestreaming.transcribe;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the Transcribe session retries of a whole worker, so that a regional outage doesn't turn every call into a
+ * retry loop hammering the service.
+ *
+ * Every session started earns a fraction of a retry and every retry spends one, on top of a small number of retries
+ * per second that are always allowed. Earned retries are capped at ten seconds worth of the per second allowance
+ * plus the ratio of a hundred sessions, so a long quiet period doesn't bank an unbounded burst.
+ */
+public class RetryBudget {
+
+    private static final String TRANSCRIBE_RETRY_BUDGET_PERCENT = System.getenv("TRANSCRIBE_RETRY_BUDGET_PERCENT");
+    private static final String TRANSCRIBE_MIN_RETRIES_PER_SECOND = System.getenv("TRANSCRIBE_MIN_RETRIES_PER_SECOND");
+    private static final int DEFAULT_RETRY_BUDGET_PERCENT = 20;
+    private static final int DEFAULT_MIN_RETRIES_PER_SECOND = 5;
+    private static final int RESERVE_SECONDS = 10;
+    private static final int RESERVE_SESSIONS = 100;
+
+    private static final RetryBudget DEFAULT_BUDGET = new RetryBudget(
+            (TRANSCRIBE_RETRY_BUDGET_PERCENT == null
+                    ? DEFAULT_RETRY_BUDGET_PERCENT : Integer.parseInt(TRANSCRIBE_RETRY_BUDGET_PERCENT)) / 100.0,
+            TRANSCRIBE_MIN_RETRIES_PER_SECOND == null
+                    ? DEFAULT_MIN_RETRIES_PER_SECOND : Integer.parseInt(TRANSCRIBE_MIN_RETRIES_PER_SECOND));
+
+    private final double retryRatio;
+    private final double minRetriesPerSecond;
+    private final double maxBalance;
+    private double balance;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param retryRatio          retries earned by every session started
+     * @param minRetriesPerSecond retries allowed per second regardless of the number of sessions
+     */
+    public RetryBudget(double retryRatio, int minRetriesPerSecond) {
+        Validate.isTrue(retryRatio >= 0, "Retry ratio must not be negative");
+        Validate.isTrue(minRetriesPerSecond >= 0, "Min retries per second must not be negative");
+        this.retryRatio = retryRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = Math.max(1, minRetriesPerSecond * RESERVE_SECONDS + retryRatio * RESERVE_SESSIONS);
+        this.balance = maxBalance;
+    }
+
+    /**
+     * @return the budget shared by all calls of the process, configured by the TRANSCRIBE_RETRY_BUDGET_PERCENT and
+     * TRANSCRIBE_MIN_RETRIES_PER_SECOND environment variables
+     */
+    public static RetryBudget getDefault() {
+        return DEFAULT_BUDGET;
+    }
+
+    /**
+     * Record that a session was started.
+     */
+    public synchronized void onSessionStarted() {
+        refill();
+        balance = Math.min(maxBalance, balance + retryRatio);
+    }
+
+    /**
+     * Spend a retry if the budget allows it.
+     *
+     * @return true if the retry can be made
+     */
+    public synchronized boolean tryAcquireRetry() {
+        refill();
+        if (balance < 1) {
+            return false;
+        }
+        balance--;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (double) (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1);
+        lastRefillNanos = now;
+        balance = Math.min(maxBalance, balance + seconds * minRetriesPerSecond);
+    }
+}
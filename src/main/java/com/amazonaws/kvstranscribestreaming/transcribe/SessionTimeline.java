@@ -0,0 +1,217 @@
+package com.amazonaws.kvstranscribestreaming.transcribe;
+
+import org.apache.commons.lang3.Validate;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the result times of the successive Transcribe sessions of one call onto the call's timeline.
+ *
+ * Every session starts its result times at zero, while its audio starts at some offset into the call: zero for the
+ * first session, earlier than the end of the audio already sent for a session started by a retry or a rotation.
+ * Audio may also be skipped within a session, e.g. silences dropped by voice activity detection, so a session's
+ * audio is a series of segments of the call. {@link #newSession()} is called when a session is started and
+ * {@link #startAudio()} once its audio starts; the audio source then reports every chunk it sends with
+ * {@link Session#audioSent(long, int)}, and the {@link Session} maps the times of its results, and of their items,
+ * from its own audio onto the call.
+ *
+ * Sessions overlap: the audio a new session starts with was already sent to the previous one, and a rotated session
+ * keeps returning results after its successor started. Results are therefore deduplicated by time: a result ending
+ * before the end of the last final result published is dropped, one straddling it keeps only its items after it.
+ * Partial results are cut the same way, but only final results move the cutoff. The end of the last final result is
+ * also where the audio of the next session has to start.
+ */
+public class SessionTimeline {
+
+    private static final int PCM_BYTES_PER_SAMPLE = 2;
+
+    private final int bytesPerSecond;
+    private volatile Session currentSession;
+    private double lastFinalEndSeconds;
+
+    /**
+     * @param bytesPerSecond bytes per second of the 16 bit PCM audio sent to Transcribe
+     */
+    public SessionTimeline(int bytesPerSecond) {
+        Validate.isTrue(bytesPerSecond > 0, "Bytes per second must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return a new session, which gets the audio of the next {@link #startAudio()}
+     */
+    public Session newSession() {
+        Session session = new Session();
+        currentSession = session;
+        return session;
+    }
+
+    /**
+     * @return the latest session, whose audio is starting
+     */
+    public Session startAudio() {
+        Session session = currentSession;
+        return session == null ? newSession() : session;
+    }
+
+    /**
+     * @return byte offset, on a sample boundary, at which the last final result of the call ended
+     */
+    public synchronized long getStableOffsetBytes() {
+        long offset = (long) (lastFinalEndSeconds * bytesPerSecond);
+        return offset - offset % PCM_BYTES_PER_SAMPLE;
+    }
+
+    private synchronized Result dedupe(Result result) {
+        if (result.endTime() == null) {
+            return result;
+        }
+
+        double boundary = lastFinalEndSeconds;
+        if (result.endTime() <= boundary) {
+            return null;
+        }
+        if (!Boolean.TRUE.equals(result.isPartial())) {
+            lastFinalEndSeconds = result.endTime();
+        }
+        return result.startTime() != null && result.startTime() < boundary ? trim(result, boundary) : result;
+    }
+
+    /**
+     * @return the result with only the items starting at or after the boundary, null if none does
+     */
+    private static Result trim(Result result, double boundary) {
+        List<Alternative> alternatives = new ArrayList<>(result.alternatives().size());
+        for (Alternative alternative : result.alternatives()) {
+            List<Item> items = new ArrayList<>(alternative.items().size());
+            StringBuilder transcript = new StringBuilder();
+            for (Item item : alternative.items()) {
+                if (item.startTime() == null || item.startTime() < boundary) {
+                    continue;
+                }
+                if (transcript.length() > 0 && item.type() != ItemType.PUNCTUATION) {
+                    transcript.append(' ');
+                }
+                transcript.append(item.content());
+                items.add(item);
+            }
+            if (!items.isEmpty()) {
+                alternatives.add(alternative.toBuilder().items(items).transcript(transcript.toString()).build());
+            }
+        }
+
+        if (alternatives.isEmpty()) {
+            return null;
+        }
+        return result.toBuilder()
+                .startTime(alternatives.get(0).items().get(0).startTime())
+                .alternatives(alternatives)
+                .build();
+    }
+
+    /**
+     * One Transcribe session of the call.
+     */
+    public class Session {
+
+        // segment i maps the session audio from sessionStarts[i] onwards to the call audio from callStarts[i]
+        private long[] sessionStarts = new long[8];
+        private long[] callStarts = new long[8];
+        private int segments;
+        private long sentBytes;
+        private long lastCallEnd = -1;
+
+        /**
+         * Record a chunk of audio sent to the session.
+         *
+         * @param callOffsetBytes byte offset of the chunk in the call
+         * @param length          size of the chunk in bytes
+         */
+        public synchronized void audioSent(long callOffsetBytes, int length) {
+            if (callOffsetBytes != lastCallEnd) {
+                if (segments == sessionStarts.length) {
+                    sessionStarts = Arrays.copyOf(sessionStarts, segments * 2);
+                    callStarts = Arrays.copyOf(callStarts, segments * 2);
+                }
+                sessionStarts[segments] = sentBytes;
+                callStarts[segments] = callOffsetBytes;
+                segments++;
+            }
+            sentBytes += length;
+            lastCallEnd = callOffsetBytes + length;
+        }
+
+        /**
+         * @return the event with its result and item times on the call timeline, without the results covering
+         * final results already published by an overlapping session
+         */
+        public TranscriptEvent remap(TranscriptEvent event) {
+            List<Result> results = event.transcript().results();
+            List<Result> remapped = new ArrayList<>(results.size());
+            boolean changed = false;
+            for (Result result : results) {
+                Result callResult = dedupe(isIdentity() ? result : toCall(result));
+                if (callResult != null) {
+                    remapped.add(callResult);
+                }
+                changed |= callResult != result;
+            }
+
+            if (!changed) {
+                return event;
+            }
+            return event.toBuilder()
+                    .transcript(event.transcript().toBuilder().results(remapped).build())
+                    .build();
+        }
+
+        private synchronized boolean isIdentity() {
+            return segments == 0 || (segments == 1 && callStarts[0] == 0);
+        }
+
+        private Result toCall(Result result) {
+            List<Alternative> alternatives = new ArrayList<>(result.alternatives().size());
+            for (Alternative alternative : result.alternatives()) {
+                List<Item> items = new ArrayList<>(alternative.items().size());
+                for (Item item : alternative.items()) {
+                    items.add(item.toBuilder()
+                            .startTime(toCall(item.startTime()))
+                            .endTime(toCall(item.endTime()))
+                            .build());
+                }
+                alternatives.add(alternative.toBuilder().items(items).build());
+            }
+            return result.toBuilder()
+                    .startTime(toCall(result.startTime()))
+                    .endTime(toCall(result.endTime()))
+                    .alternatives(alternatives)
+                    .build();
+        }
+
+        private synchronized Double toCall(Double sessionSeconds) {
+            if (sessionSeconds == null || segments == 0) {
+                return sessionSeconds;
+            }
+            double sessionBytes = sessionSeconds * bytesPerSecond;
+            // last segment starting at or before the time
+            int low = 0;
+            int high = segments - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (sessionStarts[mid] <= sessionBytes) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return (callStarts[low] + sessionBytes - sessionStarts[low]) / bytesPerSecond;
+        }
+    }
+}
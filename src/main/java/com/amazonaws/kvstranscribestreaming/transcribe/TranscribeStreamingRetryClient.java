@@ -2,43 +2,96 @@ package com.amazonaws.kvstranscribestreaming.transcribe;
 
 import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.signer.EventStreamAws4Signer;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.nio.netty.Http2Configuration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.core.client.config.SdkAdvancedClientOption;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.transcribestreaming.TranscribeStreamingAsyncClient;
 import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
 import software.amazon.awssdk.services.transcribestreaming.model.BadRequestException;
+import software.amazon.awssdk.services.transcribestreaming.model.ConflictException;
+import software.amazon.awssdk.services.transcribestreaming.model.InternalFailureException;
+import software.amazon.awssdk.services.transcribestreaming.model.LimitExceededException;
+import software.amazon.awssdk.services.transcribestreaming.model.ServiceUnavailableException;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponseHandler;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Build a client wrapper around the Amazon Transcribe client to retry
  * on an exception that can be retried.
+ *
+ * Retries back off exponentially with decorrelated jitter, each delay drawn between the base sleep time and three
+ * times the previous delay, capped at the max sleep time. They are scheduled on a scheduler shared by all clients
+ * instead of sleeping on the SDK thread that completed the failed session, and are limited by a {@link RetryBudget}
+ * shared by all calls of the worker. Metrics are recorded from that scheduler too.
+ *
+ * The client is meant to be shared by all calls of the process: its Netty event loop and HTTP/2 connections are then
+ * reused, and every session is a new stream on an open connection instead of a new TLS handshake. The connection pool
+ * is sized by the TRANSCRIBE_MAX_CONCURRENT_STREAMS and TRANSCRIBE_MAX_STREAMS_PER_CONNECTION environment
+ * variables.
+ *
+ * Transcribe limits the duration of a session, so a long call rotates sessions: shortly before the limit a successor
+ * session is started with the same publisher, which must then end the previous session's audio once it has handed
+ * its stream over. Results of the previous session are still delivered until it ends, but only the successor's
+ * outcome completes the call. With a {@link SessionTimeline} the results of every session are mapped onto the call
+ * timeline and deduplicated where sessions overlap.
  */
 public class TranscribeStreamingRetryClient implements AutoCloseable {
 
     private static final int DEFAULT_MAX_RETRIES = 10;
     private static final int DEFAULT_MAX_SLEEP_TIME_MILLS = 100;
+    private static final int DEFAULT_MAX_BACKOFF_TIME_MILLS = 10_000;
+    private static final String TRANSCRIBE_MAX_CONCURRENT_STREAMS = System.getenv("TRANSCRIBE_MAX_CONCURRENT_STREAMS");
+    private static final String TRANSCRIBE_MAX_STREAMS_PER_CONNECTION = System.getenv("TRANSCRIBE_MAX_STREAMS_PER_CONNECTION");
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 256;
+    private static final int DEFAULT_MAX_STREAMS_PER_CONNECTION = 32;
+    private static final Duration CONNECTION_HEALTH_CHECK_PING_PERIOD = Duration.ofSeconds(5);
+    private static final String TRANSCRIBE_SESSION_ROTATION_MINUTES = System.getenv("TRANSCRIBE_SESSION_ROTATION_MINUTES");
+    // sessions are limited to four hours
+    private static final int DEFAULT_SESSION_ROTATION_MINUTES = 235;
     private static final Logger log = LoggerFactory.getLogger(TranscribeStreamingRetryClient.class);
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("transcribe-retry-%d").daemon(true).build());
 
     private final TranscribeStreamingAsyncClient client;
     private final MetricsUtil metricsUtil;
 
-    List<Class<?>> nonRetriableExceptions = Arrays.asList(BadRequestException.class);
+    List<Class<?>> nonRetriableExceptions = Arrays.asList(BadRequestException.class, ConflictException.class);
+    List<Class<?>> retriableExceptions = Arrays.asList(LimitExceededException.class, InternalFailureException.class,
+            ServiceUnavailableException.class, SdkClientException.class, IOException.class);
     private int maxRetries = DEFAULT_MAX_RETRIES;
     private int sleepTime = DEFAULT_MAX_SLEEP_TIME_MILLS;
+    private int maxSleepTime = DEFAULT_MAX_BACKOFF_TIME_MILLS;
+    private RetryBudget retryBudget = RetryBudget.getDefault();
+    private long sessionRotationMillis = TimeUnit.MINUTES.toMillis(TRANSCRIBE_SESSION_ROTATION_MINUTES == null
+            ? DEFAULT_SESSION_ROTATION_MINUTES : Long.parseLong(TRANSCRIBE_SESSION_ROTATION_MINUTES));
 
     /**
      * Create a TranscribeStreamingRetryClient with given credential and configuration
@@ -52,6 +105,16 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     public TranscribeStreamingRetryClient(AwsCredentialsProvider creds,
                                           String endpoint, Regions region, MetricsUtil metricsUtil) throws URISyntaxException {
         this(TranscribeStreamingAsyncClient.builder()
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .protocol(Protocol.HTTP2)
+                        .maxConcurrency(TRANSCRIBE_MAX_CONCURRENT_STREAMS == null
+                                ? DEFAULT_MAX_CONCURRENT_STREAMS : Integer.parseInt(TRANSCRIBE_MAX_CONCURRENT_STREAMS))
+                        .http2Configuration(Http2Configuration.builder()
+                                .maxStreams(TRANSCRIBE_MAX_STREAMS_PER_CONNECTION == null
+                                        ? DEFAULT_MAX_STREAMS_PER_CONNECTION
+                                        : Long.parseLong(TRANSCRIBE_MAX_STREAMS_PER_CONNECTION))
+                                .healthCheckPingPeriod(CONNECTION_HEALTH_CHECK_PING_PERIOD)
+                                .build()))
                 .credentialsProvider(creds)
                 .overrideConfiguration(
                         c -> c.putAdvancedOption(SdkAdvancedClientOption.SIGNER, EventStreamAws4Signer.create()))
@@ -93,14 +156,14 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     /**
      * Get sleep time
      *
-     * @return sleep time between retries
+     * @return base sleep time between retries
      */
     public int getSleepTime() {
         return sleepTime;
     }
 
     /**
-     * Set sleep time between retries
+     * Set base sleep time between retries, the shortest delay before a retry
      *
      * @param sleepTime sleep time
      */
@@ -108,6 +171,52 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
         this.sleepTime = sleepTime;
     }
 
+    /**
+     * Get max sleep time
+     *
+     * @return longest sleep time between retries
+     */
+    public int getMaxSleepTime() {
+        return maxSleepTime;
+    }
+
+    /**
+     * Set the longest sleep time between retries
+     *
+     * @param maxSleepTime max sleep time
+     */
+    public void setMaxSleepTime(int maxSleepTime) {
+        this.maxSleepTime = maxSleepTime;
+    }
+
+    /**
+     * Set the budget retries are taken from, shared by all calls of the process by default
+     *
+     * @param retryBudget retry budget
+     */
+    public void setRetryBudget(RetryBudget retryBudget) {
+        this.retryBudget = Validate.notNull(retryBudget);
+    }
+
+    /**
+     * Get session rotation time
+     *
+     * @return time after which a session is replaced by a new one, 0 if sessions are never rotated
+     */
+    public long getSessionRotationMillis() {
+        return sessionRotationMillis;
+    }
+
+    /**
+     * Set the time after which a session is replaced by a new one, 235 minutes or the
+     * TRANSCRIBE_SESSION_ROTATION_MINUTES environment variable by default
+     *
+     * @param sessionRotationMillis session rotation time, 0 to never rotate sessions
+     */
+    public void setSessionRotationMillis(long sessionRotationMillis) {
+        this.sessionRotationMillis = sessionRotationMillis;
+    }
+
     /**
      * Initiate a Stream Transcription with retry.
      *
@@ -120,6 +229,23 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     public CompletableFuture<Void> startStreamTranscription(final StartStreamTranscriptionRequest request,
                                                             final Publisher<AudioStream> publisher,
                                                             final StreamTranscriptionBehavior responseHandler) {
+        return startStreamTranscription(request, publisher, responseHandler, null);
+    }
+
+    /**
+     * Initiate a Stream Transcription with retry, mapping the results of all sessions onto the call timeline.
+     *
+     * @param request         StartStreamTranscriptionRequest to use to start transcription
+     * @param publisher       The source audio stream as Publisher, which records where the audio of every session
+     *                        starts in the timeline
+     * @param responseHandler StreamTranscriptionBehavior object that defines how the response needs to be handled.
+     * @param sessionTimeline timeline of the call, null to pass results on as returned by every session
+     * @return Completable future to handle stream response.
+     */
+    public CompletableFuture<Void> startStreamTranscription(final StartStreamTranscriptionRequest request,
+                                                            final Publisher<AudioStream> publisher,
+                                                            final StreamTranscriptionBehavior responseHandler,
+                                                            final SessionTimeline sessionTimeline) {
 
         Validate.notNull(request);
         Validate.notNull(publisher);
@@ -127,7 +253,8 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
 
         CompletableFuture<Void> finalFuture = new CompletableFuture<>();
 
-        recursiveStartStream(rebuildRequestWithSession(request), publisher, responseHandler, finalFuture, 0);
+        recursiveStartStream(new StreamingCall(request, publisher, responseHandler, finalFuture, sessionTimeline),
+                0, sleepTime);
 
         return finalFuture;
     }
@@ -135,53 +262,103 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     /**
      * Recursively call startStreamTranscription() to be called till the request is completed or till we run out of retries.
      *
-     * @param request         StartStreamTranscriptionRequest
-     * @param publisher       The source audio stream as Publisher
-     * @param responseHandler StreamTranscriptionBehavior object that defines how the response needs to be handled.
-     * @param finalFuture     final future to finish on completing the chained futures.
+     * @param call            The call being transcribed
      * @param retryAttempt    Current attempt number
+     * @param lastSleepTime   Sleep time before the current attempt, the base sleep time for the first one
      */
-    private void recursiveStartStream(final StartStreamTranscriptionRequest request,
-            final Publisher<AudioStream> publisher,
-            final StreamTranscriptionBehavior responseHandler,
-            final CompletableFuture<Void> finalFuture,
-            final int retryAttempt) {
-        CompletableFuture<Void> result = client.startStreamTranscription(request, publisher,
-                getResponseHandler(responseHandler));
+    private void recursiveStartStream(final StreamingCall call,
+            final int retryAttempt,
+            final long lastSleepTime) {
+        retryBudget.onSessionStarted();
+        long sessionStartNanos = System.nanoTime();
+        SessionTimeline.Session session = call.sessionTimeline == null ? null : call.sessionTimeline.newSession();
+        // every session gets its own id, a rotated session and its successor run side by side
+        CompletableFuture<Void> result = client.startStreamTranscription(rebuildRequestWithSession(call.request),
+                call.publisher,
+                getResponseHandler(call.responseHandler, sessionStartNanos, session));
+        call.activeSession.set(result);
+
+        ScheduledFuture<?> rotation = sessionRotationMillis <= 0 ? null : retryScheduler.schedule(
+                () -> rotateSession(call, result), sessionRotationMillis, TimeUnit.MILLISECONDS);
+
         result.whenComplete((r, e) -> {
+            if (rotation != null) {
+                rotation.cancel(false);
+            }
+            if (call.activeSession.get() != result) {
+                log.info("Rotated Transcribe session ended", e);
+                return;
+            }
+
             if (e != null) {
                 log.debug("Error occured:", e);
 
-                if (retryAttempt <= maxRetries && isExceptionRetriable(e)) {
-                    log.debug("Retriable error occurred and will be retried.");
-                    log.debug("Sleeping for sometime before retrying...");
+                boolean retriable = isExceptionRetriable(e);
+                if (retryAttempt < maxRetries && retriable && retryBudget.tryAcquireRetry()) {
+                    long nextSleepTime = nextSleepTime(lastSleepTime);
+                    log.warn("Retriable error {}, making retry attempt {} in {} ms", e, retryAttempt + 1, nextSleepTime);
+                    recordMetric("TranscribeRetryAttempt", retryAttempt + 1, StandardUnit.Count);
+                    recordMetric("TranscribeRetryDelay", nextSleepTime, StandardUnit.Milliseconds);
                     try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException e1) {
-                        log.debug("Unable to sleep. Failed with exception: ", e);
-                        e1.printStackTrace();
+                        retryScheduler.schedule(() -> recursiveStartStream(call, retryAttempt + 1, nextSleepTime),
+                                nextSleepTime, TimeUnit.MILLISECONDS);
+                    } catch (RuntimeException scheduleException) {
+                        failStream(call.responseHandler, call.finalFuture, scheduleException);
                     }
-                    log.debug("Making retry attempt: " + (retryAttempt + 1));
-                    recursiveStartStream(request, publisher, responseHandler, finalFuture, retryAttempt + 1);
                 } else {
-                    metricsUtil.recordMetric("TranscribeStreamError", 1);
-                    log.error("Encountered unretriable exception or ran out of retries. ");
-                    responseHandler.onError(e);
-                    finalFuture.completeExceptionally(e);
+                    if (retriable && retryAttempt < maxRetries) {
+                        recordMetric("TranscribeRetryBudgetExhausted", 1, StandardUnit.Count);
+                        log.error("Retry budget exhausted, not retrying.");
+                    } else {
+                        log.error("Encountered unretriable exception or ran out of retries. ");
+                    }
+                    failStream(call.responseHandler, call.finalFuture, e);
                 }
             } else {
-                metricsUtil.recordMetric("TranscribeStreamSuccess", 1);
-                responseHandler.onComplete();
-                finalFuture.complete(null);
+                recordMetric("TranscribeStreamSuccess", 1, StandardUnit.Count);
+                call.responseHandler.onComplete();
+                call.finalFuture.complete(null);
             }
         });
     }
 
+    /**
+     * Start the successor of a session that is about to reach its maximum duration, unless the session already ended.
+     */
+    private void rotateSession(StreamingCall call, CompletableFuture<Void> session) {
+        if (call.activeSession.get() != session || session.isDone()) {
+            return;
+        }
+        log.info("Rotating Transcribe session after {} ms", sessionRotationMillis);
+        recordMetric("TranscribeSessionRotated", 1, StandardUnit.Count);
+        recursiveStartStream(call, 0, sleepTime);
+    }
+
+    private void failStream(StreamTranscriptionBehavior responseHandler, CompletableFuture<Void> finalFuture,
+                            Throwable e) {
+        recordMetric("TranscribeStreamError", 1, StandardUnit.Count);
+        responseHandler.onError(e);
+        finalFuture.completeExceptionally(e);
+    }
+
+    /**
+     * Record a metric from the retry scheduler. Sessions complete on the SDK's event loop, which must not wait for a
+     * CloudWatch round trip.
+     */
+    private void recordMetric(String metricName, double value, StandardUnit unit) {
+        retryScheduler.execute(() -> metricsUtil.recordMetric(metricName, value, unit));
+    }
+
+    /**
+     * Decorrelated jitter: a random delay between the base sleep time and three times the previous delay.
+     */
+    private long nextSleepTime(long lastSleepTime) {
+        long upperBound = Math.min(maxSleepTime, Math.max(sleepTime, lastSleepTime) * 3);
+        return upperBound <= sleepTime ? sleepTime : ThreadLocalRandom.current().nextLong(sleepTime, upperBound + 1);
+    }
+
     private StartStreamTranscriptionRequest rebuildRequestWithSession(StartStreamTranscriptionRequest request) {
-        return StartStreamTranscriptionRequest.builder()
-                .languageCode(request.languageCode())
-                .mediaEncoding(request.mediaEncoding())
-                .mediaSampleRateHertz(request.mediaSampleRateHertz())
+        return request.toBuilder()
                 .sessionId(UUID.randomUUID().toString())
                 .build();
     }
@@ -191,9 +368,14 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
      * Output is printed to standard output
      */
     private StartStreamTranscriptionResponseHandler getResponseHandler(
-            StreamTranscriptionBehavior transcriptionBehavior) {
+            StreamTranscriptionBehavior transcriptionBehavior, long sessionStartNanos,
+            SessionTimeline.Session session) {
         final StartStreamTranscriptionResponseHandler build = StartStreamTranscriptionResponseHandler.builder()
                 .onResponse(r -> {
+                    // time to get a connection, open the stream and get the initial response
+                    recordMetric("TranscribeSessionSetupTime",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sessionStartNanos),
+                            StandardUnit.Milliseconds);
                     transcriptionBehavior.onResponse(r);
                 })
                 .onError(e -> {
@@ -204,7 +386,8 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
                 })
                 .subscriber(event -> {
                     try {
-                        transcriptionBehavior.onStream(event);
+                        transcriptionBehavior.onStream(session != null && event instanceof TranscriptEvent
+                                ? session.remap((TranscriptEvent) event) : event);
                     }
                     // We swallow any exception occurred while processing the TranscriptEvent and continue transcribing
                     // Transcribe errors will however cause the future to complete exceptionally and we'll retry (if applicable)
@@ -217,18 +400,62 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     }
 
     /**
-     * Check if the exception can be retried.
+     * Check if the exception can be retried. Failed requests and conflicts are not, throttling, service failures and
+     * connection problems are. Other service errors are retried if they are a throttling or server error.
      *
      * @param e Exception that occurred
      * @return True if the exception is retriable
      */
     private boolean isExceptionRetriable(Throwable e) {
-        e.printStackTrace();
+        // the SDK wraps the actual failure, e.g. in a CompletionException
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (isInstanceOfAny(cause, nonRetriableExceptions)) {
+                return false;
+            }
+            if (isInstanceOfAny(cause, retriableExceptions)) {
+                return true;
+            }
+            if (cause instanceof AwsServiceException) {
+                int statusCode = ((AwsServiceException) cause).statusCode();
+                return statusCode == 429 || statusCode >= 500;
+            }
+        }
+        return false;
+    }
 
-        return nonRetriableExceptions.contains(e.getClass());
+    private static boolean isInstanceOfAny(Throwable e, List<Class<?>> exceptionClasses) {
+        for (Class<?> exceptionClass : exceptionClasses) {
+            if (exceptionClass.isInstance(e)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void close() {
         this.client.close();
     }
+
+    /**
+     * State of one call transcribed over successive sessions.
+     */
+    private static class StreamingCall {
+        private final StartStreamTranscriptionRequest request;
+        private final Publisher<AudioStream> publisher;
+        private final StreamTranscriptionBehavior responseHandler;
+        private final CompletableFuture<Void> finalFuture;
+        private final SessionTimeline sessionTimeline;
+        // the session whose outcome completes the call, the latest one started
+        private final AtomicReference<CompletableFuture<Void>> activeSession = new AtomicReference<>();
+
+        private StreamingCall(StartStreamTranscriptionRequest request, Publisher<AudioStream> publisher,
+                              StreamTranscriptionBehavior responseHandler, CompletableFuture<Void> finalFuture,
+                              SessionTimeline sessionTimeline) {
+            this.request = request;
+            this.publisher = publisher;
+            this.responseHandler = responseHandler;
+            this.finalFuture = finalFuture;
+            this.sessionTimeline = sessionTimeline;
+        }
+    }
 }
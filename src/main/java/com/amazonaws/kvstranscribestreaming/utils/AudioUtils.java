@@ -18,6 +18,9 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
@@ -28,14 +31,27 @@ public final class AudioUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(AudioUtils.class);
 
+    /**
+     * Writes the remaining bytes of an audio chunk to the output stream without moving the chunk's position. Heap
+     * buffers are written straight from their backing array so no intermediate byte[] is needed.
+     */
+    public static void writeAudioChunk(OutputStream outputStream, ByteBuffer audioChunk) throws IOException {
+        if (audioChunk.hasArray()) {
+            outputStream.write(audioChunk.array(), audioChunk.arrayOffset() + audioChunk.position(), audioChunk.remaining());
+        } else {
+            Channels.newChannel(outputStream).write(audioChunk.duplicate());
+        }
+    }
+
     /**
      * Converts the given raw audio data into a wav file. Returns the wav file back.
      */
-    private static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
+    public static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
         File outputFile = new File(audioFilePath.replace(".raw", ".wav"));
-        AudioInputStream source = new AudioInputStream(Files.newInputStream(Paths.get(audioFilePath)),
-                new AudioFormat(8000, 16, 1, true, false), -1); // 8KHz, 16 bit, 1 channel, signed, little-endian
-        AudioSystem.write(source, AudioFileFormat.Type.WAVE, outputFile);
+        try (AudioInputStream source = new AudioInputStream(Files.newInputStream(Paths.get(audioFilePath)),
+                new AudioFormat(8000, 16, 1, true, false), -1)) { // 8KHz, 16 bit, 1 channel, signed, little-endian
+            AudioSystem.write(source, AudioFileFormat.Type.WAVE, outputFile);
+        }
         return outputFile;
     }
 
@@ -0,0 +1,121 @@
+package com.amazonaws.kvstranscribestreaming.utils;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide cache of the clients needed to read from KVS. GetMedia data endpoints are cached per stream ARN for a
+ * limited time and one AmazonKinesisVideoMedia client, with its connection pool, is shared by all streams served by
+ * the same endpoint. Callers invalidate a stream's endpoint when a request against it fails.
+ */
+public class KVSClientCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSClientCache.class);
+    private static final String KVS_ENDPOINT_CACHE_TTL_SECONDS = System.getenv("KVS_ENDPOINT_CACHE_TTL_SECONDS");
+    private static final String KVS_MEDIA_MAX_CONNECTIONS = System.getenv("KVS_MEDIA_MAX_CONNECTIONS");
+    private static final long DEFAULT_ENDPOINT_TTL_SECONDS = 300;
+    // every GetMedia call keeps its connection for the whole call, so size the pool for a busy worker
+    private static final int DEFAULT_MEDIA_MAX_CONNECTIONS = 500;
+
+    private final Regions region;
+    private final AWSCredentialsProvider credentialsProvider;
+    private final MetricsUtil metricsUtil;
+    private final long endpointTtlMillis;
+    private final int mediaMaxConnections;
+    private final AmazonKinesisVideo kinesisVideoClient;
+    private final ConcurrentMap<String, CachedEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AmazonKinesisVideoMedia> mediaClients = new ConcurrentHashMap<>();
+
+    public KVSClientCache(Regions region, AWSCredentialsProvider credentialsProvider, MetricsUtil metricsUtil) {
+        this.region = Validate.notNull(region);
+        this.credentialsProvider = Validate.notNull(credentialsProvider);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.endpointTtlMillis = TimeUnit.SECONDS.toMillis(KVS_ENDPOINT_CACHE_TTL_SECONDS == null
+                ? DEFAULT_ENDPOINT_TTL_SECONDS : Long.parseLong(KVS_ENDPOINT_CACHE_TTL_SECONDS));
+        this.mediaMaxConnections = KVS_MEDIA_MAX_CONNECTIONS == null
+                ? DEFAULT_MEDIA_MAX_CONNECTIONS : Integer.parseInt(KVS_MEDIA_MAX_CONNECTIONS);
+        this.kinesisVideoClient = AmazonKinesisVideoClientBuilder.standard()
+                .withRegion(region.getName())
+                .withCredentials(credentialsProvider)
+                .build();
+    }
+
+    /**
+     * @param streamArn KVS stream ARN
+     * @return GetMedia data endpoint of the stream, from the cache when it holds a fresh entry
+     */
+    public String getMediaEndpoint(String streamArn) {
+        long now = System.currentTimeMillis();
+        CachedEndpoint cached = endpoints.get(streamArn);
+        if (cached != null && cached.expiresAtMillis > now) {
+            metricsUtil.recordMetric("KVSEndpointCacheHit", 1);
+            return cached.endpoint;
+        }
+
+        metricsUtil.recordMetric("KVSEndpointCacheMiss", 1);
+        long start = System.nanoTime();
+        String endpoint = kinesisVideoClient.getDataEndpoint(new GetDataEndpointRequest()
+                .withAPIName(APIName.GET_MEDIA)
+                .withStreamARN(streamArn)).getDataEndpoint();
+        metricsUtil.recordMetric("KVSGetDataEndpointLatency",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), StandardUnit.Milliseconds);
+
+        endpoints.put(streamArn, new CachedEndpoint(endpoint, now + endpointTtlMillis));
+        return endpoint;
+    }
+
+    /**
+     * @param endpoint GetMedia data endpoint
+     * @return the media client shared by all streams served by this endpoint
+     */
+    public AmazonKinesisVideoMedia getMediaClient(String endpoint) {
+        return mediaClients.computeIfAbsent(endpoint, e -> {
+            logger.info("Creating KVS media client for endpoint {}", e);
+            return AmazonKinesisVideoMediaClientBuilder.standard()
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(e, region.getName()))
+                    .withCredentials(credentialsProvider)
+                    .withClientConfiguration(new ClientConfiguration().withMaxConnections(mediaMaxConnections))
+                    .build();
+        });
+    }
+
+    /**
+     * Drop the cached endpoint of a stream, e.g. after a request against it failed, so the next lookup asks KVS again.
+     */
+    public void invalidate(String streamArn) {
+        CachedEndpoint removed = endpoints.remove(streamArn);
+        if (removed != null) {
+            logger.info("Invalidated KVS endpoint {} for stream {}", removed.endpoint, streamArn);
+        }
+    }
+
+    public MetricsUtil getMetricsUtil() {
+        return metricsUtil;
+    }
+
+    private static final class CachedEndpoint {
+        private final String endpoint;
+        private final long expiresAtMillis;
+
+        private CachedEndpoint(String endpoint, long expiresAtMillis) {
+            this.endpoint = endpoint;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.amazonaws.kvstranscribestreaming.utils;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
@@ -11,13 +10,8 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kvstranscribestreaming.streaming.KVSTransactionIdTagProcessor;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
 import com.amazonaws.services.kinesisvideo.model.StartSelector;
@@ -27,10 +21,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class to interact with KVS streams
@@ -39,6 +35,9 @@ public final class KVSUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(KVSUtils.class);
 
+    // Flag bits of a SimpleBlock header that describe the lacing used inside the block
+    private static final int SIMPLEBLOCK_LACING_MASK = 0x06;
+
     /**
      * Fetches the next ByteBuffer of size 1024 bytes from the KVS stream by parsing the frame from the MkvElement
      * Each frame has a ByteBuffer having size 1024
@@ -62,10 +61,7 @@ public final class KVSUtils {
                     mkvElement.accept(fragmentVisitor);
 
                     if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
-                        MkvDataElement dataElement = (MkvDataElement) mkvElement;
-                        Frame frame = ((MkvValue<Frame>) dataElement.getValueCopy()).getVal();
-                        ByteBuffer audioBuffer = frame.getFrameData();
-                        return audioBuffer;
+                        return frameOf((MkvDataElement) mkvElement).getFrameData();
                     }
                 }
             }
@@ -74,6 +70,149 @@ public final class KVSUtils {
         return ByteBuffer.allocate(0);
     }
 
+    /**
+     * Reads the next audio frame from the KVS stream into the provided buffer. The frame payload is copied straight
+     * out of the parser's SimpleBlock data buffer, so unlike
+     * {@link #getByteBufferFromStream(StreamingMkvReader, FragmentMetadataVisitor, KVSTransactionIdTagProcessor)}
+     * no Frame or intermediate ByteBuffer is created per frame. The same audioBuffer can therefore be reused for
+     * the whole stream.
+     *
+     * @param streamingMkvReader
+     * @param fragmentVisitor
+     * @param tagProcessor
+     * @param audioBuffer buffer the frame payload is written to, starting at its current position
+     * @return number of bytes written to audioBuffer, 0 once the stream has ended or the transaction id changed
+     * @throws MkvElementVisitException
+     * @throws BufferOverflowException if the frame does not fit in the remaining space of audioBuffer
+     */
+    public static int readAudioFrame(StreamingMkvReader streamingMkvReader,
+                                     FragmentMetadataVisitor fragmentVisitor,
+                                     KVSTransactionIdTagProcessor tagProcessor,
+                                     ByteBuffer audioBuffer) throws MkvElementVisitException {
+
+        MkvDataElement simpleBlock = nextAudioFrame(streamingMkvReader, fragmentVisitor, tagProcessor);
+        return simpleBlock == null ? 0 : copyFramePayload(simpleBlock, audioBuffer);
+    }
+
+    /**
+     * Reads up to the next SimpleBlock holding audio, without copying it. The block's data is only valid until the
+     * stream is read again, so the caller can look at {@link #framePayloadLength(MkvDataElement)} before deciding
+     * where to copy the frame to.
+     *
+     * @param streamingMkvReader
+     * @param fragmentVisitor
+     * @param tagProcessor
+     * @return the next non empty SimpleBlock, null once the stream has ended or the transaction id changed
+     * @throws MkvElementVisitException
+     */
+    public static MkvDataElement nextAudioFrame(StreamingMkvReader streamingMkvReader,
+                                                FragmentMetadataVisitor fragmentVisitor,
+                                                KVSTransactionIdTagProcessor tagProcessor) throws MkvElementVisitException {
+        MkvDataElement simpleBlock;
+        while ((simpleBlock = nextSimpleBlock(streamingMkvReader, fragmentVisitor, tagProcessor)) != null) {
+            // An empty block would otherwise be mistaken for the end of the stream
+            if (framePayloadLength(simpleBlock) > 0) {
+                return simpleBlock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the next SimpleBlock of the stream, null once the stream has ended or the transaction id changed
+     */
+    private static MkvDataElement nextSimpleBlock(StreamingMkvReader streamingMkvReader,
+                                                  FragmentMetadataVisitor fragmentVisitor,
+                                                  KVSTransactionIdTagProcessor tagProcessor) throws MkvElementVisitException {
+        if (!tagProcessor.shouldStopProcessing()) {
+            while (streamingMkvReader.mightHaveNext()) {
+                Optional<MkvElement> mkvElementOptional = streamingMkvReader.nextIfAvailable();
+                if (mkvElementOptional.isPresent()) {
+
+                    MkvElement mkvElement = mkvElementOptional.get();
+                    mkvElement.accept(fragmentVisitor);
+
+                    if (MkvTypeInfos.SIMPLEBLOCK.equals(mkvElement.getElementMetaData().getTypeInfo())) {
+                        return (MkvDataElement) mkvElement;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies the frame data of a SimpleBlock into audioBuffer without materializing a Frame. Nothing is written if
+     * the frame does not fit.
+     *
+     * @param dataElement SimpleBlock element as returned by the StreamingMkvReader
+     * @param audioBuffer buffer the frame payload is written to, starting at its current position
+     * @return number of bytes written to audioBuffer
+     * @throws BufferOverflowException if the frame does not fit in the remaining space of audioBuffer
+     */
+    public static int copyFramePayload(MkvDataElement dataElement, ByteBuffer audioBuffer) {
+        ByteBuffer blockBuffer = dataElement.getDataBuffer();
+        int headerLength = headerLength(blockBuffer);
+
+        if (isLaced(blockBuffer, headerLength)) {
+            // Laced blocks are not produced for telephony audio; let the parser deal with them
+            ByteBuffer frameData = frameOf(dataElement).getFrameData();
+            int frameSize = frameData.remaining();
+            if (frameSize > audioBuffer.remaining()) {
+                throw new BufferOverflowException();
+            }
+            audioBuffer.put(frameData);
+            return frameSize;
+        }
+
+        int payloadLength = blockBuffer.limit() - headerLength;
+        if (payloadLength > audioBuffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        int blockPosition = blockBuffer.position();
+        blockBuffer.position(headerLength);
+        audioBuffer.put(blockBuffer);
+        blockBuffer.position(blockPosition);
+        return payloadLength;
+    }
+
+    /**
+     * @param dataElement SimpleBlock element as returned by the StreamingMkvReader
+     * @return number of bytes {@link #copyFramePayload(MkvDataElement, ByteBuffer)} writes for the block
+     */
+    public static int framePayloadLength(MkvDataElement dataElement) {
+        ByteBuffer blockBuffer = dataElement.getDataBuffer();
+        int headerLength = headerLength(blockBuffer);
+        return isLaced(blockBuffer, headerLength)
+                ? frameOf(dataElement).getFrameData().remaining()
+                : blockBuffer.limit() - headerLength;
+    }
+
+    /**
+     * The block starts with the track number as an EBML variable size integer, followed by a 16 bit timecode and a
+     * flags byte.
+     */
+    private static int headerLength(ByteBuffer blockBuffer) {
+        int trackNumberLength = Integer.numberOfLeadingZeros(blockBuffer.get(0) & 0xFF) - 23;
+        Validate.isTrue(trackNumberLength >= 1 && trackNumberLength <= 8, "Invalid SimpleBlock track number");
+        return trackNumberLength + 3;
+    }
+
+    private static boolean isLaced(ByteBuffer blockBuffer, int headerLength) {
+        int flags = blockBuffer.get(headerLength - 1) & 0xFF;
+        return (flags & SIMPLEBLOCK_LACING_MASK) != 0;
+    }
+
+    /**
+     * The parser only hands out the value of a SimpleBlock as an untyped MkvValue.
+     */
+    @SuppressWarnings("unchecked")
+    private static Frame frameOf(MkvDataElement dataElement) {
+        return ((MkvValue<Frame>) dataElement.getValueCopy()).getVal();
+    }
+
     /**
      * Fetches ByteBuffer of provided size from the KVS stream by repeatedly calling KVS
      * and concatenating the ByteBuffers to create a single chunk
@@ -84,7 +223,11 @@ public final class KVSUtils {
      * @param chunkSizeInKB
      * @return
      * @throws MkvElementVisitException
+     * @deprecated allocates a list and a new buffer for every chunk, read frames with
+     * {@link #readAudioFrame(StreamingMkvReader, FragmentMetadataVisitor, KVSTransactionIdTagProcessor, ByteBuffer)}
+     * into a reused chunk buffer instead
      */
+    @Deprecated
     public static ByteBuffer getByteBufferFromStream(StreamingMkvReader streamingMkvReader,
                                                      FragmentMetadataVisitor fragmentVisitor,
                                                      KVSTransactionIdTagProcessor tagProcessor,
@@ -122,33 +265,22 @@ public final class KVSUtils {
     }
 
     /**
-     * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and startFragmentNum
+     * Makes a GetMedia call to KVS and retrieves the InputStream corresponding to the given streamName and startFragmentNum.
+     * The data endpoint and the media client are taken from the provided cache; if the call fails the stream's cached
+     * endpoint is dropped and the call is retried once against a freshly resolved endpoint.
      *
      * @param streamArn
-     * @param region
      * @param startFragmentNum
-     * @param awsCredentialsProvider
+     * @param kvsClientCache
      * @return
      */
     public static InputStream getInputStreamFromKVS(String streamArn,
-                                                    Regions region,
                                                     String startFragmentNum,
-                                                    AWSCredentialsProvider awsCredentialsProvider) {
+                                                    KVSClientCache kvsClientCache) {
         Validate.notNull(streamArn);
-        Validate.notNull(region);
-        Validate.notNull(startFragmentNum);
-        Validate.notNull(awsCredentialsProvider);
-
-        AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) AmazonKinesisVideoClientBuilder.standard().build();
-
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName(APIName.GET_MEDIA)
-                .withStreamARN(streamArn)).getDataEndpoint();
+        Validate.notNull(kvsClientCache);
 
-        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(awsCredentialsProvider);
-        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
+        long start = System.nanoTime();
 
         StartSelector startSelector;
         if (startFragmentNum != null)
@@ -160,10 +292,21 @@ public final class KVSUtils {
             startSelector = new StartSelector().withStartSelectorType(StartSelectorType.EARLIEST);
         }
 
-
-        GetMediaResult getMediaResult = amazonKinesisVideoMedia.getMedia(new GetMediaRequest()
+        GetMediaRequest getMediaRequest = new GetMediaRequest()
                 .withStreamARN(streamArn)
-                .withStartSelector(startSelector));
+                .withStartSelector(startSelector);
+
+        GetMediaResult getMediaResult;
+        try {
+            getMediaResult = getMedia(kvsClientCache, getMediaRequest);
+        } catch (AmazonClientException e) {
+            logger.warn("GetMedia failed on stream {}, retrying with a fresh endpoint", streamArn, e);
+            kvsClientCache.invalidate(streamArn);
+            getMediaResult = getMedia(kvsClientCache, getMediaRequest);
+        }
+
+        kvsClientCache.getMetricsUtil().recordMetric("KVSGetMediaSetupLatency",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), StandardUnit.Milliseconds);
 
         logger.info("GetMedia called on stream {} response {} requestId {}", streamArn,
                 getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
@@ -171,4 +314,10 @@ public final class KVSUtils {
 
         return getMediaResult.getPayload();
     }
+
+    private static GetMediaResult getMedia(KVSClientCache kvsClientCache, GetMediaRequest getMediaRequest) {
+        String endPoint = kvsClientCache.getMediaEndpoint(getMediaRequest.getStreamARN());
+        AmazonKinesisVideoMedia amazonKinesisVideoMedia = kvsClientCache.getMediaClient(endPoint);
+        return amazonKinesisVideoMedia.getMedia(getMediaRequest);
+    }
 }
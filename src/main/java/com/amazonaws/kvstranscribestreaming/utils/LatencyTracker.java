@@ -0,0 +1,140 @@
+package com.amazonaws.kvstranscribestreaming.utils;
+
+import com.amazonaws.kvstranscribestreaming.streaming.AudioClock;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.HdrHistogram.SynchronizedHistogram;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how long after the words were spoken their transcript was published, in HDR histograms.
+ *
+ * The latency of a result is the time from the producer timestamp of the end of its speech, as mapped by the call's
+ * {@link AudioClock}, to the moment a publisher has published it. One tracker per publisher type is shared by all
+ * calls of the worker and exports the percentiles of the last interval every minute, as the metrics
+ * {@code <name>LatencyP50}, {@code P90}, {@code P99} and {@code Max}. Each call records to its own
+ * {@link CallLatency} too, which logs its percentiles and exports them as {@code <name>CallLatencyP50} and
+ * {@code P99} when the call ends.
+ *
+ * Other latencies of the worker, such as how long publishing takes, can be tracked with {@link #record(long)}.
+ */
+public class LatencyTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyTracker.class);
+    private static final long HIGHEST_TRACKABLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final long EXPORT_INTERVAL_SECONDS = 60;
+
+    private static final ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("latency-exporter-%d").daemon(true).build());
+
+    private final String name;
+    private final MetricsUtil metricsUtil;
+    private final Recorder workerRecorder = new Recorder(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+    private Histogram intervalHistogram;
+
+    /**
+     * @param name        prefix of the metric names, e.g. the publisher
+     * @param metricsUtil
+     */
+    public LatencyTracker(String name, MetricsUtil metricsUtil) {
+        this.name = Validate.notNull(name);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        exporter.scheduleWithFixedDelay(this::exportWorkerPercentiles, EXPORT_INTERVAL_SECONDS,
+                EXPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param callId     call the results belong to, for logging
+     * @param audioClock clock mapping the call's result times to producer timestamps
+     * @return the latency of a new call
+     */
+    public CallLatency forCall(String callId, AudioClock audioClock) {
+        return new CallLatency(callId, audioClock);
+    }
+
+    /**
+     * Record a latency of the worker.
+     */
+    public void record(long latencyMillis) {
+        workerRecorder.recordValue(clamp(latencyMillis));
+    }
+
+    private static long clamp(long latencyMillis) {
+        return Math.min(HIGHEST_TRACKABLE_MILLIS, Math.max(0, latencyMillis));
+    }
+
+    private synchronized void exportWorkerPercentiles() {
+        intervalHistogram = workerRecorder.getIntervalHistogram(intervalHistogram);
+        if (intervalHistogram.getTotalCount() == 0) {
+            return;
+        }
+        metricsUtil.recordMetric(name + "LatencyP50", intervalHistogram.getValueAtPercentile(50),
+                StandardUnit.Milliseconds);
+        metricsUtil.recordMetric(name + "LatencyP90", intervalHistogram.getValueAtPercentile(90),
+                StandardUnit.Milliseconds);
+        metricsUtil.recordMetric(name + "LatencyP99", intervalHistogram.getValueAtPercentile(99),
+                StandardUnit.Milliseconds);
+        metricsUtil.recordMetric(name + "LatencyMax", intervalHistogram.getMaxValue(), StandardUnit.Milliseconds);
+    }
+
+    /**
+     * Latency of the results of one call.
+     */
+    public class CallLatency {
+
+        private final String callId;
+        private final AudioClock audioClock;
+        private final Histogram histogram = new SynchronizedHistogram(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+
+        private CallLatency(String callId, AudioClock audioClock) {
+            this.callId = Validate.notNull(callId);
+            this.audioClock = Validate.notNull(audioClock);
+        }
+
+        /**
+         * Record that a result was just published.
+         *
+         * @param result result with times on the call timeline
+         */
+        public void recordPublished(Result result) {
+            if (result.endTime() == null) {
+                return;
+            }
+            long speechEndMillis = audioClock.getProducerTimeMillis(result.endTime());
+            if (speechEndMillis < 0) {
+                return;
+            }
+            // producer and worker clocks may disagree by a little
+            long latencyMillis = clamp(System.currentTimeMillis() - speechEndMillis);
+            histogram.recordValue(latencyMillis);
+            workerRecorder.recordValue(latencyMillis);
+        }
+
+        /**
+         * Log and export the percentiles of the call.
+         */
+        public void close() {
+            if (histogram.getTotalCount() == 0) {
+                return;
+            }
+            logger.info("[{}] {} latency from end of speech over {} results: p50 {} ms, p90 {} ms, p99 {} ms, "
+                            + "max {} ms", callId, name, histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99), histogram.getMaxValue());
+            metricsUtil.recordMetric(name + "CallLatencyP50", histogram.getValueAtPercentile(50),
+                    StandardUnit.Milliseconds);
+            metricsUtil.recordMetric(name + "CallLatencyP99", histogram.getValueAtPercentile(99),
+                    StandardUnit.Milliseconds);
+        }
+    }
+}
@@ -1,32 +1,121 @@
 package com.amazonaws.kvstranscribestreaming.utils;
 
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Records metrics to CloudWatch. By default every metric is published as it is recorded.
+ *
+ * With METRICS_BUFFERED=true metrics are instead buffered and published in batches by a background thread, so that
+ * recording a metric never blocks the caller on a CloudWatch round trip. Buffered metrics reach CloudWatch up to the
+ * publish interval late and are dropped when too many are waiting, so call {@link #flush()} before the process may be
+ * frozen or terminated, e.g. at the end of a Lambda invocation.
+ */
 public class MetricsUtil {
 
+    private static final Logger logger = LoggerFactory.getLogger(MetricsUtil.class);
     private static String NAMESPACE = "KVSTranscribeStreaming";
+    private static final String METRICS_BUFFERED = System.getenv("METRICS_BUFFERED");
+    private static final int MAX_DATUMS_PER_REQUEST = 20;
+    private static final int MAX_PENDING_DATUMS = 10_000;
+    private static final long PUBLISH_INTERVAL_SECONDS = 10;
+
     private final AmazonCloudWatch amazonCloudWatch;
+    private final BlockingQueue<MetricDatum> pendingMetrics;
 
+    /**
+     * Publishes synchronously unless the METRICS_BUFFERED environment variable is true.
+     */
     public MetricsUtil(AmazonCloudWatch amazonCloudWatch) {
+        this(amazonCloudWatch, Boolean.parseBoolean(METRICS_BUFFERED));
+    }
+
+    /**
+     * @param amazonCloudWatch
+     * @param buffered true to publish metrics in batches from a background thread, false to publish every metric as
+     *                 it is recorded
+     */
+    public MetricsUtil(AmazonCloudWatch amazonCloudWatch, boolean buffered) {
         this.amazonCloudWatch = amazonCloudWatch;
+        if (buffered) {
+            this.pendingMetrics = new LinkedBlockingQueue<>(MAX_PENDING_DATUMS);
+            ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(
+                    new BasicThreadFactory.Builder().namingPattern("metrics-publisher-%d").daemon(true).build());
+            publisher.scheduleWithFixedDelay(this::flush, PUBLISH_INTERVAL_SECONDS, PUBLISH_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "metrics-shutdown-flush"));
+        } else {
+            this.pendingMetrics = null;
+        }
     }
 
     public void recordMetric(final String metricName, long value) {
-        MetricDatum metricData = new MetricDatum().withMetricName(metricName)
+        recordMetric(metricName, value, StandardUnit.Count);
+    }
+
+    public void recordMetric(final String metricName, double value, StandardUnit unit) {
+        record(newDatum(metricName, value, unit));
+    }
+
+    /**
+     * Record a metric with a dimension, e.g. the call it was measured for.
+     */
+    public void recordMetric(final String metricName, double value, StandardUnit unit, String dimensionName,
+                             String dimensionValue) {
+        record(newDatum(metricName, value, unit)
+                .withDimensions(new Dimension().withName(dimensionName).withValue(dimensionValue)));
+    }
+
+    private static MetricDatum newDatum(String metricName, double value, StandardUnit unit) {
+        return new MetricDatum().withMetricName(metricName)
                 .withTimestamp(Date.from(Instant.now()))
-                .withUnit(StandardUnit.Count)
-                .withValue(Double.valueOf(value));
+                .withUnit(unit)
+                .withValue(value);
+    }
 
-        PutMetricDataRequest metricRequest = new PutMetricDataRequest()
-                .withNamespace(NAMESPACE)
-                .withMetricData(metricData);
+    private void record(MetricDatum metricData) {
+        if (pendingMetrics == null) {
+            amazonCloudWatch.putMetricData(new PutMetricDataRequest()
+                    .withNamespace(NAMESPACE)
+                    .withMetricData(metricData));
+        } else if (!pendingMetrics.offer(metricData)) {
+            logger.warn("Dropping metric {}, too many metrics waiting to be published", metricData.getMetricName());
+        }
+    }
 
-        amazonCloudWatch.putMetricData(metricRequest);
+    /**
+     * Publish all buffered metrics now. Nothing to do when metrics are published as they are recorded.
+     */
+    public synchronized void flush() {
+        if (pendingMetrics == null) {
+            return;
+        }
+        List<MetricDatum> batch = new ArrayList<>(MAX_DATUMS_PER_REQUEST);
+        while (pendingMetrics.drainTo(batch, MAX_DATUMS_PER_REQUEST) > 0) {
+            try {
+                amazonCloudWatch.putMetricData(new PutMetricDataRequest()
+                        .withNamespace(NAMESPACE)
+                        .withMetricData(batch));
+            } catch (Exception e) {
+                logger.error("Failed to publish {} metrics: ", batch.size(), e);
+            }
+            batch.clear();
+        }
     }
 }
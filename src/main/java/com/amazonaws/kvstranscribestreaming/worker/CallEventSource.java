@@ -0,0 +1,19 @@
+package com.amazonaws.kvstranscribestreaming.worker;
+
+import java.util.List;
+
+/**
+ * Source of the streaming status events, in the JSON format delivered by CloudWatch Events, that a
+ * {@link KVSTranscribeStreamingWorker} starts calls from.
+ */
+public interface CallEventSource {
+
+    /**
+     * Wait a limited time for events. Events returned are handed to the worker and won't be returned again.
+     *
+     * @param maxEvents maximum number of events to return
+     * @return event bodies, empty if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    List<String> receive(int maxEvents) throws InterruptedException;
+}
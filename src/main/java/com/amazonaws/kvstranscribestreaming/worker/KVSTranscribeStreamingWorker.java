@@ -0,0 +1,151 @@
+package com.amazonaws.kvstranscribestreaming.worker;
+
+import com.amazonaws.kvstranscribestreaming.handler.KVSTranscribeStreamingHandler;
+import com.amazonaws.kvstranscribestreaming.utils.MetricsUtil;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Long running worker that receives streaming status events itself and runs many calls concurrently in one JVM, up
+ * to a configurable cap. All calls share the handler's static AWS clients, caches and thread pools, so a call no
+ * longer pays for JVM startup and client creation, nor takes a whole container.
+ *
+ * The worker only receives as many events as it has free call slots, so events beyond the cap stay in the queue for
+ * other workers. On shutdown the receive loop is stopped and joined before calls stop being accepted, so events
+ * received by a poll in flight still start their calls.
+ */
+public class KVSTranscribeStreamingWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingWorker.class);
+    private static final String MAX_CONCURRENT_CALLS = System.getenv("MAX_CONCURRENT_CALLS");
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 50;
+
+    private final CallEventSource eventSource;
+    private final int maxConcurrentCalls;
+    private final Supplier<KVSTranscribeStreamingHandler> handlerFactory;
+    private final MetricsUtil metricsUtil;
+    private final Semaphore callSlots;
+    private final ExecutorService callExecutor = Executors.newCachedThreadPool(
+            new BasicThreadFactory.Builder().namingPattern("call-%d").build());
+    private volatile boolean running = true;
+    private volatile Thread receiveThread;
+
+    /**
+     * @param eventSource        where streaming status events are received from
+     * @param maxConcurrentCalls maximum number of calls run at the same time
+     * @param handlerFactory     creates the handler of every call
+     * @param metricsUtil
+     */
+    public KVSTranscribeStreamingWorker(CallEventSource eventSource, int maxConcurrentCalls,
+                                        Supplier<KVSTranscribeStreamingHandler> handlerFactory,
+                                        MetricsUtil metricsUtil) {
+        Validate.isTrue(maxConcurrentCalls > 0, "Max concurrent calls must be positive");
+        this.eventSource = Validate.notNull(eventSource);
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.handlerFactory = Validate.notNull(handlerFactory);
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.callSlots = new Semaphore(maxConcurrentCalls);
+    }
+
+    /**
+     * @return maximum number of calls run at once by a process, set by the MAX_CONCURRENT_CALLS environment variable
+     */
+    public static int maxConcurrentCallsFromEnvironment() {
+        return MAX_CONCURRENT_CALLS == null ? DEFAULT_MAX_CONCURRENT_CALLS : Integer.parseInt(MAX_CONCURRENT_CALLS);
+    }
+
+    /**
+     * Receive events and start their calls until {@link #shutdown(long, TimeUnit)} is called.
+     */
+    public void run() throws InterruptedException {
+        logger.info("Worker started, running up to {} concurrent calls", maxConcurrentCalls);
+        receiveThread = Thread.currentThread();
+        while (running) {
+            // wait for a free slot, then ask for as many events as there are free slots
+            try {
+                callSlots.acquire();
+            } catch (InterruptedException e) {
+                if (running) {
+                    throw e;
+                }
+                // interrupted by shutdown while all slots were busy, nothing was received
+                break;
+            }
+            int freeSlots = 1 + callSlots.drainPermits();
+
+            List<String> events;
+            try {
+                events = running ? eventSource.receive(freeSlots) : Collections.<String>emptyList();
+            } catch (RuntimeException e) {
+                logger.error("Failed to receive streaming events", e);
+                callSlots.release(freeSlots);
+                TimeUnit.SECONDS.sleep(1);
+                continue;
+            }
+
+            callSlots.release(freeSlots - events.size());
+            for (String event : events) {
+                startCall(event);
+            }
+        }
+        logger.info("Worker stopped receiving streaming events");
+    }
+
+    /**
+     * Stop receiving events and wait for the calls in progress to finish. A receive in flight is waited for and its
+     * events start their calls, as they are already taken off the queue.
+     *
+     * @return true if all calls finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        running = false;
+
+        Thread receiver = receiveThread;
+        if (receiver != null) {
+            receiver.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+            if (receiver.isAlive()) {
+                // still waiting for a free slot; a receive in flight ends within its wait time
+                receiver.interrupt();
+                receiver.join();
+            }
+        }
+
+        callExecutor.shutdown();
+        boolean finished = callExecutor.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (!finished) {
+            logger.warn("{} calls still running after shutdown timeout", maxConcurrentCalls - callSlots.availablePermits());
+        }
+        return finished;
+    }
+
+    private void startCall(String eventBody) {
+        int activeCalls = maxConcurrentCalls - callSlots.availablePermits();
+        metricsUtil.recordMetric("WorkerActiveCalls", activeCalls);
+        try {
+            callExecutor.execute(() -> {
+                try {
+                    handlerFactory.get().handleRequest(eventBody);
+                } catch (RuntimeException e) {
+                    logger.error("Call failed with: ", e);
+                } finally {
+                    callSlots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected once shutting down
+            callSlots.release();
+            logger.error("Failed to start call for event {}", eventBody, e);
+        }
+    }
+}
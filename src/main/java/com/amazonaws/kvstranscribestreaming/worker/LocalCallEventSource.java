@@ -0,0 +1,37 @@
+package com.amazonaws.kvstranscribestreaming.worker;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In process stand in for the SQS queue, e.g. to drive a worker from a test or a load generator.
+ */
+public class LocalCallEventSource implements CallEventSource {
+
+    private static final long RECEIVE_WAIT_MILLIS = 1000;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    /**
+     * @param eventBody streaming status event in JSON
+     */
+    public void submit(String eventBody) {
+        events.add(Validate.notNull(eventBody));
+    }
+
+    @Override
+    public List<String> receive(int maxEvents) throws InterruptedException {
+        List<String> received = new ArrayList<>(maxEvents);
+        String first = events.poll(RECEIVE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (first != null) {
+            received.add(first);
+            events.drainTo(received, maxEvents - 1);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,56 @@
+package com.amazonaws.kvstranscribestreaming.worker;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives streaming status events from the SQS queue CloudWatch Events deliver them to. Messages are long polled and
+ * deleted as soon as they are received, so like the RunTask based deployment a call is started at most once.
+ */
+public class SqsCallEventSource implements CallEventSource {
+
+    private static final Logger logger = LoggerFactory.getLogger(SqsCallEventSource.class);
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+    private static final int RECEIVE_WAIT_SECONDS = 20;
+
+    private final AmazonSQS sqsClient;
+    private final String queueUrl;
+
+    public SqsCallEventSource(AmazonSQS sqsClient, String queueUrl) {
+        this.sqsClient = Validate.notNull(sqsClient);
+        this.queueUrl = Validate.notNull(queueUrl);
+    }
+
+    @Override
+    public List<String> receive(int maxEvents) {
+        List<Message> messages = sqsClient.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(Math.min(maxEvents, MAX_MESSAGES_PER_RECEIVE))
+                .withWaitTimeSeconds(RECEIVE_WAIT_SECONDS)).getMessages();
+        if (messages.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<String> bodies = new ArrayList<>(messages.size());
+        List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            bodies.add(message.getBody());
+            deletes.add(new DeleteMessageBatchRequestEntry(message.getMessageId(), message.getReceiptHandle()));
+        }
+
+        DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(queueUrl, deletes);
+        if (!result.getFailed().isEmpty()) {
+            logger.warn("Failed to delete {} streaming event messages, they may be delivered again: {}",
+                    result.getFailed().size(), result.getFailed());
+        }
+        return bodies;
+    }
+}
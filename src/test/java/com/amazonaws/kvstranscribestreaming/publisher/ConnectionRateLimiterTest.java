@@ -0,0 +1,53 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConnectionRateLimiterTest {
+
+    @Test
+    public void allowsABurstThenOnePostPerInterval() {
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(1, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(limiter.tryAcquire("connection"), 0);
+        }
+        long waitNanos = limiter.tryAcquire("connection");
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.SECONDS.toNanos(1), "waited " + waitNanos + " ns");
+    }
+
+    @Test
+    public void connectionsHaveTheirOwnBuckets() {
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(1, 1);
+
+        assertEquals(limiter.tryAcquire("first"), 0);
+        assertTrue(limiter.tryAcquire("first") > 0);
+        assertEquals(limiter.tryAcquire("second"), 0);
+    }
+
+    @Test
+    public void tokensComeBackOverTime() throws Exception {
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(50, 1);
+
+        assertEquals(limiter.tryAcquire("connection"), 0);
+        long waitNanos = limiter.tryAcquire("connection");
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.MILLISECONDS.toNanos(20), "waited " + waitNanos + " ns");
+
+        TimeUnit.NANOSECONDS.sleep(waitNanos + TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(limiter.tryAcquire("connection"), 0);
+        assertTrue(limiter.tryAcquire("connection") > 0);
+    }
+
+    @Test
+    public void zeroRateDoesNotLimit() {
+        ConnectionRateLimiter limiter = new ConnectionRateLimiter(0, 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(limiter.tryAcquire("connection"), 0);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.kvstranscribestreaming.utils.TestMetricsUtil;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DynamoDBBatchWriterTest {
+
+    private static final String TABLE = "TranscriptSegment";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void writesFullBatchesAndCollapsesDuplicateKeys() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 200, 100,
+                new TestMetricsUtil());
+
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            written.add(writer.write(item("call", i, "v" + i)));
+        }
+        // same key as item 29, and 29.0 is the same number key as 29
+        written.add(writer.write(new Item().withPrimaryKey("PK", "call", "SK", 29.0).withString("Value", "last")));
+        awaitAll(written);
+
+        // the first batch is sent once full, the rest after the max delay
+        assertEquals(dynamoDB.batchSizes, Arrays.asList(25, 5));
+        Item last = dynamoDB.items.get(dynamoDB.items.size() - 1);
+        assertEquals(last.getString("Value"), "last");
+        assertEquals(writer.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void sendsAPartialBatchAfterTheMaxDelay() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 20, 100,
+                new TestMetricsUtil());
+
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            written.add(writer.write(item("call", i, "v")));
+        }
+
+        awaitAll(written);
+        assertEquals(dynamoDB.batchSizes, Arrays.asList(3));
+    }
+
+    @Test
+    public void queuesUnprocessedItemsAgain() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.unprocessedOnFirstWrite = 2;
+        // all items in the first batch
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 200, 100,
+                new TestMetricsUtil());
+
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            written.add(writer.write(item("call", i, "v" + i)));
+        }
+        awaitAll(written);
+
+        assertEquals(dynamoDB.items.size(), 5);
+        // the unprocessed items, the last two of the first batch, are the ones written again
+        assertEquals(dynamoDB.items.get(3).getString("Value"), "v3");
+        assertEquals(dynamoDB.items.get(4).getString("Value"), "v4");
+        assertEquals(writer.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void retriesABatchFailingWithAnErrorThatCanBeRetried() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        AmazonServiceException throttled = new AmazonServiceException("Simulated throttling");
+        throttled.setErrorCode("ProvisionedThroughputExceededException");
+        throttled.setStatusCode(400);
+        dynamoDB.failFirstWrite = throttled;
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 0, 100,
+                new TestMetricsUtil());
+
+        writer.write(item("call", 0, "v")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(dynamoDB.items.size(), 1);
+        assertEquals(writer.getDroppedCount(), 0);
+    }
+
+    @Test
+    public void dropsABatchFailingWithAnErrorThatCantBeRetriedAndCarriesOn() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.failFirstWrite = new AmazonServiceException("Simulated validation error");
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 0, 100,
+                new TestMetricsUtil());
+
+        CompletableFuture<Void> failed = writer.write(item("call", 0, "v"));
+        try {
+            failed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("item should have been dropped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+        writer.write(item("call", 1, "v")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(dynamoDB.items.size(), 1);
+        assertEquals(writer.getDroppedCount(), 1);
+    }
+
+    @Test
+    public void dropsItemsWhenTooManyAreWaiting() throws Exception {
+        RecordingDynamoDB dynamoDB = new RecordingDynamoDB();
+        dynamoDB.blockWrites = new CountDownLatch(1);
+        DynamoDBBatchWriter writer = new DynamoDBBatchWriter(dynamoDB, TABLE, "PK", "SK", 0, 3,
+                new TestMetricsUtil());
+
+        // the writer thread is stuck writing the first item, the next two fill the queue
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        written.add(writer.write(item("call", 0, "v")));
+        assertTrue(dynamoDB.writing.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "first item not written");
+        written.add(writer.write(item("call", 1, "v")));
+        written.add(writer.write(item("call", 2, "v")));
+        CompletableFuture<Void> dropped = writer.write(item("call", 3, "v"));
+        assertTrue(dropped.isCompletedExceptionally());
+        assertEquals(writer.getDroppedCount(), 1);
+
+        dynamoDB.blockWrites.countDown();
+        awaitAll(written);
+        assertEquals(dynamoDB.items.size(), 3);
+    }
+
+    private static void awaitAll(List<CompletableFuture<Void>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static Item item(String callId, int sequence, String value) {
+        return new Item().withPrimaryKey("PK", callId, "SK", sequence).withString("Value", value);
+    }
+
+    /**
+     * DynamoDB recording the batches written to it instead of sending them.
+     */
+    private static class RecordingDynamoDB extends DynamoDB {
+        private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        private final List<Item> items = new CopyOnWriteArrayList<>();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private volatile CountDownLatch blockWrites;
+        private volatile int unprocessedOnFirstWrite;
+        private volatile RuntimeException failFirstWrite;
+
+        private RecordingDynamoDB() {
+            super(new AbstractAmazonDynamoDB() {
+            });
+        }
+
+        @Override
+        public BatchWriteItemOutcome batchWriteItem(TableWriteItems... tableWriteItems) {
+            writing.countDown();
+            if (blockWrites != null) {
+                try {
+                    blockWrites.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            RuntimeException failure = failFirstWrite;
+            if (failure != null) {
+                failFirstWrite = null;
+                throw failure;
+            }
+
+            List<Item> batch = new ArrayList<>(tableWriteItems[0].getItemsToPut());
+            batchSizes.add(batch.size());
+            int unprocessedCount = unprocessedOnFirstWrite;
+            unprocessedOnFirstWrite = 0;
+            items.addAll(batch.subList(0, batch.size() - unprocessedCount));
+
+            List<WriteRequest> unprocessed = new ArrayList<>();
+            for (Item item : batch.subList(batch.size() - unprocessedCount, batch.size())) {
+                unprocessed.add(new WriteRequest(new PutRequest(ItemUtils.toAttributeValues(item))));
+            }
+            return new BatchWriteItemOutcome(new BatchWriteItemResult()
+                    .withUnprocessedItems(unprocessed.isEmpty() ? null : Collections.singletonMap(TABLE, unprocessed)));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.kvstranscribestreaming.publisher.QueuedTranscriptionPublisher.OverflowPolicy;
+import com.amazonaws.kvstranscribestreaming.utils.TestMetricsUtil;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * The delegate is held on its first event, so the events published meanwhile stay queued. Every test uses its own
+ * publisher type, since the metrics and drop counts are shared per type.
+ */
+public class QueuedTranscriptionPublisherTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void publishesInOrderAndWaitsForTheQueueOnDone() {
+        HeldPublisher delegate = new HeldPublisher();
+        QueuedTranscriptionPublisher publisher = new QueuedTranscriptionPublisher("InOrder", "call", delegate, 10,
+                OverflowPolicy.DROP_PARTIALS, new TestMetricsUtil());
+
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(event("r" + i, i % 2 == 0));
+        }
+        delegate.release();
+        publisher.publishDone();
+
+        assertEquals(delegate.published, Arrays.asList("r0", "r1", "r2", "r3", "r4"));
+        assertTrue(delegate.done);
+    }
+
+    @Test
+    public void dropPartialsDropsTheOldestPartialFirst() throws Exception {
+        HeldPublisher delegate = new HeldPublisher();
+        QueuedTranscriptionPublisher publisher = new QueuedTranscriptionPublisher("DropPartials", "call", delegate,
+                3, OverflowPolicy.DROP_PARTIALS, new TestMetricsUtil());
+
+        publisher.publish(event("held", false));
+        delegate.awaitHeld();
+        publisher.publish(event("p1", true));
+        publisher.publish(event("f1", false));
+        publisher.publish(event("p2", true));
+        // full: drops p1, then p2
+        publisher.publish(event("f2", false));
+        publisher.publish(event("f3", false));
+        delegate.release();
+        publisher.publishDone();
+
+        assertEquals(delegate.published, Arrays.asList("held", "f1", "f2", "f3"));
+        assertEquals(publisher.getDroppedCount(), 2);
+    }
+
+    @Test
+    public void finalResultsSpillOverWithoutBlocking() throws Exception {
+        HeldPublisher delegate = new HeldPublisher();
+        QueuedTranscriptionPublisher publisher = new QueuedTranscriptionPublisher("Spill", "call", delegate, 2,
+                OverflowPolicy.DROP_PARTIALS, new TestMetricsUtil());
+
+        publisher.publish(event("held", false));
+        delegate.awaitHeld();
+        List<String> expected = new ArrayList<>();
+        expected.add("held");
+        // two fit the queue and two spill over, all on this thread while the delegate is held
+        for (int i = 0; i < 4; i++) {
+            publisher.publish(event("f" + i, false));
+            expected.add("f" + i);
+        }
+        // beyond the spill, finals and partials are dropped
+        publisher.publish(event("f4", false));
+        publisher.publish(event("p", true));
+        assertEquals(publisher.getDroppedCount(), 2);
+
+        delegate.release();
+        publisher.publishDone();
+        assertEquals(delegate.published, expected);
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestEvents() throws Exception {
+        HeldPublisher delegate = new HeldPublisher();
+        QueuedTranscriptionPublisher publisher = new QueuedTranscriptionPublisher("DropOldest", "call", delegate, 2,
+                OverflowPolicy.DROP_OLDEST, new TestMetricsUtil());
+
+        publisher.publish(event("held", false));
+        delegate.awaitHeld();
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(event("f" + i, false));
+        }
+        delegate.release();
+        publisher.publishDone();
+
+        assertEquals(delegate.published, Arrays.asList("held", "f3", "f4"));
+        assertEquals(publisher.getDroppedCount(), 3);
+    }
+
+    @Test
+    public void aFailingDelegateDoesNotStopTheQueue() {
+        HeldPublisher delegate = new HeldPublisher();
+        delegate.failOn = "r1";
+        QueuedTranscriptionPublisher publisher = new QueuedTranscriptionPublisher("Failing", "call", delegate, 10,
+                OverflowPolicy.DROP_PARTIALS, new TestMetricsUtil());
+
+        for (int i = 0; i < 3; i++) {
+            publisher.publish(event("r" + i, false));
+        }
+        delegate.release();
+        publisher.publishDone();
+
+        assertEquals(delegate.published, Arrays.asList("r0", "r1", "r2"));
+    }
+
+    private static TranscriptEvent event(String resultId, boolean partial) {
+        return TranscriptEvent.builder()
+                .transcript(Transcript.builder()
+                        .results(Result.builder().resultId(resultId).isPartial(partial).build())
+                        .build())
+                .build();
+    }
+
+    /**
+     * Publisher recording the result ids published, which waits on its first event until released.
+     */
+    private static class HeldPublisher implements TranscriptionPublisher {
+        private final List<String> published = new CopyOnWriteArrayList<>();
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile String failOn;
+        private volatile boolean done;
+
+        @Override
+        public void publish(TranscriptEvent e) {
+            String resultId = e.transcript().results().get(0).resultId();
+            published.add(resultId);
+            held.countDown();
+            try {
+                released.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (resultId.equals(failOn)) {
+                throw new IllegalStateException("Simulated publisher failure");
+            }
+        }
+
+        @Override
+        public void publishDone() {
+            done = true;
+        }
+
+        private void awaitHeld() throws InterruptedException {
+            assertTrue(held.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "first event not published");
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class SpeakerLabelRegistryTest {
+
+    @Test
+    public void firstLegToClaimIsTheFirstSpeaker() {
+        ClaimTable claimTable = new ClaimTable();
+        // every leg has its own registry, as when the legs are transcribed by different processes
+        SpeakerLabelRegistry legA = new SpeakerLabelRegistry(new DynamoDB(claimTable));
+        SpeakerLabelRegistry legB = new SpeakerLabelRegistry(new DynamoDB(claimTable));
+
+        assertEquals(legA.claim("call", "stream-a"), "spk_0");
+        assertEquals(legB.claim("call", "stream-b"), "spk_1");
+        assertEquals(legA.claim("call", "stream-a"), "spk_0");
+        assertEquals(legB.claim("other-call", "stream-c"), "spk_0");
+    }
+
+    @Test
+    public void claimsExpire() {
+        ClaimTable claimTable = new ClaimTable();
+        new SpeakerLabelRegistry(new DynamoDB(claimTable)).claim("call", "stream-a");
+
+        long expiresAt = Long.parseLong(claimTable.expiresAt.get("call"));
+        long inADay = Instant.now().getEpochSecond() + 24 * 60 * 60;
+        assertTrue(expiresAt > inADay - 60 && expiresAt <= inADay, "expires at " + expiresAt);
+    }
+
+    @Test
+    public void failedClaimIsNotASpeakerAndCanBeMadeAgain() {
+        ClaimTable claimTable = new ClaimTable();
+        claimTable.failNextClaim = true;
+        SpeakerLabelRegistry registry = new SpeakerLabelRegistry(new DynamoDB(claimTable));
+
+        assertNull(registry.claim("call", "stream-b"));
+        assertEquals(new SpeakerLabelRegistry(new DynamoDB(claimTable)).claim("call", "stream-a"), "spk_0");
+        assertEquals(registry.claim("call", "stream-b"), "spk_1");
+    }
+
+    /**
+     * Claim table evaluating the claim's condition on the first speaker's stream.
+     */
+    private static class ClaimTable extends AbstractAmazonDynamoDB {
+        private final Map<String, String> firstSpeakerStreams = new HashMap<>();
+        private final Map<String, String> expiresAt = new HashMap<>();
+        private boolean failNextClaim;
+
+        @Override
+        public synchronized UpdateItemResult updateItem(UpdateItemRequest request) {
+            if (failNextClaim) {
+                failNextClaim = false;
+                throw new AmazonServiceException("Simulated DynamoDB failure");
+            }
+            String transactionId = request.getKey().get("TransactionId").getS();
+            String stream = request.getExpressionAttributeValues().get(":stream").getS();
+            String firstSpeakerStream = firstSpeakerStreams.get(transactionId);
+            if (firstSpeakerStream != null && !firstSpeakerStream.equals(stream)) {
+                throw new ConditionalCheckFailedException("The conditional request failed");
+            }
+            firstSpeakerStreams.put(transactionId, stream);
+            expiresAt.put(transactionId, request.getExpressionAttributeValues().get(":expires").getN());
+            return new UpdateItemResult();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.amazonaws.kvstranscribestreaming.publisher;
+
+import com.amazonaws.kvstranscribestreaming.utils.TestMetricsUtil;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiAsyncClient;
+import software.amazon.awssdk.services.apigatewaymanagementapi.model.GoneException;
+import software.amazon.awssdk.services.apigatewaymanagementapi.model.PostToConnectionRequest;
+import software.amazon.awssdk.services.apigatewaymanagementapi.model.PostToConnectionResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class WebSocketPostClientTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void postsWaitForAPermit() {
+        HeldApiGatewayClient apiGatewayClient = new HeldApiGatewayClient();
+        WebSocketPostClient postClient = new WebSocketPostClient(apiGatewayClient, 2, new TestMetricsUtil());
+
+        List<CompletableFuture<Void>> posts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            posts.add(postClient.post("connection", frame("frame " + i)));
+        }
+        assertEquals(apiGatewayClient.sent.size(), 2);
+
+        apiGatewayClient.sent.get(0).complete(PostToConnectionResponse.builder().build());
+        assertTrue(posts.get(0).isDone());
+        assertEquals(apiGatewayClient.sent.size(), 3);
+        assertFalse(posts.get(2).isDone());
+    }
+
+    @Test
+    public void failuresCompletingImmediatelyDrainTheQueueWithoutNesting() throws Exception {
+        HeldApiGatewayClient apiGatewayClient = new HeldApiGatewayClient();
+        WebSocketPostClient postClient = new WebSocketPostClient(apiGatewayClient, 1, new TestMetricsUtil());
+
+        CompletableFuture<Void> first = postClient.post("connection", frame("first"));
+        // every later post fails as soon as it is sent, on the thread sending it
+        apiGatewayClient.failImmediately = true;
+        List<CompletableFuture<Void>> waiting = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            waiting.add(postClient.post("connection", frame("frame " + i)));
+        }
+
+        apiGatewayClient.sent.get(0).complete(PostToConnectionResponse.builder().build());
+        first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> post : waiting) {
+            try {
+                post.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                fail("post should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof GoneException);
+            }
+        }
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * API Gateway client answering posts when the test completes their futures, or failing them at once.
+     */
+    private static class HeldApiGatewayClient implements ApiGatewayManagementApiAsyncClient {
+        private final List<CompletableFuture<PostToConnectionResponse>> sent = new ArrayList<>();
+        private volatile boolean failImmediately;
+
+        @Override
+        public CompletableFuture<PostToConnectionResponse> postToConnection(PostToConnectionRequest request) {
+            CompletableFuture<PostToConnectionResponse> response = new CompletableFuture<>();
+            if (failImmediately) {
+                response.completeExceptionally(GoneException.builder().message("gone").build());
+            } else {
+                sent.add(response);
+            }
+            return response;
+        }
+
+        @Override
+        public String serviceName() {
+            return "execute-api";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
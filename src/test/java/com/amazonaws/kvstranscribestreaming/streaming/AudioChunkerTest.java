@@ -0,0 +1,126 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.expectThrows;
+
+/**
+ * Byte i of the stream is (byte) i in these tests, so the content of a chunk tells where it starts.
+ */
+public class AudioChunkerTest {
+
+    private static final int CHUNK_CAPACITY = 64;
+
+    @Test
+    public void groupsFramesByCount() throws Exception {
+        AudioChunker chunker = new AudioChunker(AudioChunkPolicy.frames(2), pool());
+        FrameSource source = new FrameSource(10, 10, 10);
+
+        assertEquals(chunker.fill(source), 20);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(0, 20));
+        assertEquals(chunker.fill(source), 10);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(20, 30));
+        assertEquals(chunker.fill(source), 0);
+    }
+
+    @Test
+    public void aFrameLargerThanTheSpaceLeftStartsTheNextChunk() throws Exception {
+        AudioChunker chunker = new AudioChunker(AudioChunkPolicy.frames(4), pool());
+        // the third frame is larger than the first two and doesn't fit after them
+        FrameSource source = new FrameSource(20, 20, 40, 10);
+
+        assertEquals(chunker.fill(source), 40);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(0, 40));
+        assertEquals(chunker.fill(source), 50);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(40, 90));
+        assertEquals(chunker.fill(source), 0);
+    }
+
+    @Test
+    public void splitsFramesAcrossChunksByDuration() throws Exception {
+        // 10 ms of 1 kHz 16 bit audio is 20 bytes
+        AudioChunker chunker = new AudioChunker(AudioChunkPolicy.duration(10, 1000, 2, 0), pool());
+        FrameSource source = new FrameSource(8, 8, 8, 30, 4);
+
+        assertEquals(chunker.fill(source), 20);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(0, 20));
+        assertEquals(chunker.fill(source), 20);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(20, 40));
+        assertEquals(chunker.fill(source), 18);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(40, 58));
+        assertEquals(chunker.fill(source), 0);
+    }
+
+    @Test
+    public void flushTurnsTheCarriedAudioIntoAChunk() throws Exception {
+        AudioChunker chunker = new AudioChunker(AudioChunkPolicy.duration(10, 1000, 2, 0), pool());
+        FrameSource source = new FrameSource(8, 8, 8, 8);
+
+        assertEquals(chunker.fill(source), 20);
+        assertEquals(chunker.flush(), 4);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(20, 24));
+        assertEquals(chunker.flush(), 0);
+        // the next chunk goes on after the flushed audio
+        assertEquals(chunker.fill(source), 8);
+        assertEquals(bytes(chunker.getChunk()), streamBytes(24, 32));
+    }
+
+    @Test
+    public void rejectsAFrameLargerThanTheChunkBuffer() throws Exception {
+        AudioChunker chunker = new AudioChunker(AudioChunkPolicy.frames(4), pool());
+        FrameSource source = new FrameSource(CHUNK_CAPACITY + 1);
+
+        expectThrows(IllegalStateException.class, () -> chunker.fill(source));
+    }
+
+    private static AudioChunkPool pool() {
+        return new AudioChunkPool(CHUNK_CAPACITY, 1);
+    }
+
+    private static byte[] bytes(ByteBuffer chunk) {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] streamBytes(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * Stream of frames of the given sizes, which like a KVS stream can't be split by the source.
+     */
+    private static class FrameSource implements AudioFrameSource {
+        private final int[] frameSizes;
+        private int frame;
+        private int streamOffset;
+
+        private FrameSource(int... frameSizes) {
+            this.frameSizes = Arrays.copyOf(frameSizes, frameSizes.length);
+        }
+
+        @Override
+        public int readAudioFrame(ByteBuffer audioBuffer) {
+            int frameSize = peekAudioFrameSize();
+            if (frameSize > 0) {
+                audioBuffer.put(streamBytes(streamOffset, streamOffset + frameSize));
+                streamOffset += frameSize;
+                frame++;
+            }
+            return frameSize;
+        }
+
+        @Override
+        public int peekAudioFrameSize() {
+            return frame < frameSizes.length ? frameSizes[frame] : 0;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.amazonaws.kvstranscribestreaming.streaming;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+/**
+ * Audio is addressed by its offset from the start of the call, and byte i of the call is the byte i in these tests.
+ */
+public class AudioReplayBufferTest {
+
+    private static final int BYTES_PER_SECOND = 16_000;
+
+    @Test
+    public void readsBackWhatWasAppended() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        buffer.append(callBytes(0, 30));
+        buffer.append(callBytes(30, 60));
+
+        assertEquals(buffer.getStartOffset(), 0);
+        assertEquals(buffer.getEndOffset(), 60);
+        assertEquals(read(buffer, 0, 100), callBytes(0, 60).array());
+        assertEquals(read(buffer, 45, 100), callBytes(45, 60).array());
+        assertEquals(read(buffer, 60, 100).length, 0);
+    }
+
+    @Test
+    public void appendLeavesTheChunkPositionUntouched() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        ByteBuffer chunk = callBytes(0, 30);
+        buffer.append(chunk);
+
+        assertEquals(chunk.position(), 0);
+        assertEquals(chunk.remaining(), 30);
+    }
+
+    @Test
+    public void wrapsAroundAndDropsTheOldestAudio() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        for (int offset = 0; offset < 250; offset += 30) {
+            buffer.append(callBytes(offset, Math.min(offset + 30, 250)));
+        }
+
+        assertEquals(buffer.getEndOffset(), 250);
+        assertEquals(buffer.getStartOffset(), 150);
+        assertEquals(read(buffer, 150, 100), callBytes(150, 250).array());
+        // a read across the end of the ring
+        assertEquals(read(buffer, 190, 20), callBytes(190, 210).array());
+    }
+
+    @Test
+    public void keepsOnlyTheTailOfAChunkLargerThanTheBuffer() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        buffer.append(callBytes(0, 70));
+        buffer.append(callBytes(70, 320));
+
+        assertEquals(buffer.getEndOffset(), 320);
+        assertEquals(buffer.getStartOffset(), 220);
+        assertEquals(read(buffer, 220, 100), callBytes(220, 320).array());
+    }
+
+    @Test
+    public void readCopiesOnlyWhatFitsTheDestination() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        buffer.append(callBytes(0, 80));
+
+        ByteBuffer dst = ByteBuffer.allocate(25);
+        assertEquals(buffer.read(10, dst), 25);
+        assertFalse(dst.hasRemaining());
+        assertEquals(dst.array(), callBytes(10, 35).array());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void readBeforeTheStartOffsetIsRejected() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(100, BYTES_PER_SECOND);
+        buffer.append(callBytes(0, 150));
+
+        buffer.read(49, ByteBuffer.allocate(10));
+    }
+
+    @Test
+    public void zeroCapacityOnlyKeepsTrackOfTheOffsets() {
+        AudioReplayBuffer buffer = new AudioReplayBuffer(0, BYTES_PER_SECOND);
+        buffer.append(callBytes(0, 40));
+        buffer.append(callBytes(40, 90));
+
+        assertEquals(buffer.getEndOffset(), 90);
+        assertEquals(buffer.getStartOffset(), 90);
+        assertEquals(buffer.read(90, ByteBuffer.allocate(10)), 0);
+    }
+
+    private static byte[] read(AudioReplayBuffer buffer, long offset, int maxBytes) {
+        ByteBuffer dst = ByteBuffer.allocate(maxBytes);
+        int copied = buffer.read(offset, dst);
+        byte[] bytes = new byte[copied];
+        dst.flip();
+        dst.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer callBytes(int fromOffset, int toOffset) {
+        ByteBuffer bytes = ByteBuffer.allocate(toOffset - fromOffset);
+        for (int offset = fromOffset; offset < toOffset; offset++) {
+            bytes.put((byte) offset);
+        }
+        bytes.flip();
+        return bytes;
+    }
+}
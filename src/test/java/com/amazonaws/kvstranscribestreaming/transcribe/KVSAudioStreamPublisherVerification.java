@@ -0,0 +1,241 @@
+package com.amazonaws.kvstranscribestreaming.transcribe;
+
+import com.amazonaws.kvstranscribestreaming.streaming.AudioChunkPolicy;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioFrameSource;
+import com.amazonaws.kvstranscribestreaming.streaming.AudioReplayBuffer;
+import com.amazonaws.kvstranscribestreaming.utils.TestMetricsUtil;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Runs the Reactive Streams TCK against the audio publisher of a call and its subscriptions, which covers demand,
+ * cancellation and the drain loop's signalling rules. Reading only on demand, and passing the stream on to the
+ * subscription of the next Transcribe session with a replay of the buffered audio, are checked on top.
+ *
+ * Unless a test chunks the audio by duration, every frame read from the stream is one chunk, so one AudioEvent. Frame
+ * i is filled with the byte i.
+ */
+public class KVSAudioStreamPublisherVerification extends PublisherVerification<AudioStream> {
+
+    private static final int BYTES_PER_SECOND = 16_000;
+    private static final int FRAME_BYTES = 320;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private ExecutorService executor;
+
+    public KVSAudioStreamPublisherVerification() {
+        super(new TestEnvironment(500));
+    }
+
+    @BeforeClass
+    public void startExecutor() {
+        executor = Executors.newCachedThreadPool(
+                new BasicThreadFactory.Builder().namingPattern("test-audio-pump-%d").daemon(true).build());
+    }
+
+    @AfterClass
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Publisher<AudioStream> createPublisher(long elements) {
+        return publisher(new CountingFrameSource(elements));
+    }
+
+    @Override
+    public Publisher<AudioStream> createFailedPublisher() {
+        // a broken stream is only noticed once audio is requested
+        return null;
+    }
+
+    @Test
+    public void handOffReplaysBufferedAudioThenPassesTheStreamOn() throws Exception {
+        KVSAudioStreamPublisher publisher = publisher(new CountingFrameSource(20));
+
+        CollectingSubscriber first = new CollectingSubscriber(8);
+        publisher.subscribe(first);
+        first.awaitReceived(8);
+
+        CollectingSubscriber second = new CollectingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(second);
+
+        assertTrue(first.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "first session not completed");
+        assertTrue(second.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "second session not completed");
+        assertEquals(first.audio.toByteArray(), streamBytes(0, 8));
+        // no final result yet, so the whole call is replayed before the rest of the stream
+        assertEquals(second.audio.toByteArray(), streamBytes(0, 20));
+    }
+
+    @Test
+    public void handOffKeepsTheAudioReadForTheNextChunk() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        // chunks of 400 bytes split the frames, the first chunk leaves 240 bytes of the second frame for the next one
+        KVSAudioStreamPublisher publisher = publisher(new CountingFrameSource(20), recording,
+                AudioChunkPolicy.duration(25, 8000, 2, 0));
+
+        CollectingSubscriber first = new CollectingSubscriber(1);
+        publisher.subscribe(first);
+        first.awaitReceived(1);
+
+        CollectingSubscriber second = new CollectingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(second);
+
+        assertTrue(second.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "second session not completed");
+        assertEquals(first.audio.toByteArray(), Arrays.copyOf(streamBytes(0, 2), 400));
+        assertEquals(second.audio.toByteArray(), streamBytes(0, 20));
+        assertEquals(recording.toByteArray(), streamBytes(0, 20));
+    }
+
+    @Test
+    public void cancelledSubscriptionPassesTheStreamOn() throws Exception {
+        KVSAudioStreamPublisher publisher = publisher(new CountingFrameSource(10));
+
+        CollectingSubscriber first = new CollectingSubscriber(3);
+        publisher.subscribe(first);
+        first.awaitReceived(3);
+        first.subscription.cancel();
+
+        CollectingSubscriber second = new CollectingSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(second);
+
+        assertTrue(second.completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "second session not completed");
+        // no final result yet, so the whole call is replayed before the rest of the stream
+        assertEquals(second.audio.toByteArray(), streamBytes(0, 10));
+        assertEquals(first.completed.getCount(), 1, "cancelled subscription must not complete");
+    }
+
+    @Test
+    public void noAudioIsReadWithoutDemand() throws Exception {
+        CountingFrameSource frameSource = new CountingFrameSource(10);
+        KVSAudioStreamPublisher publisher = publisher(frameSource);
+
+        CollectingSubscriber subscriber = new CollectingSubscriber(2);
+        publisher.subscribe(subscriber);
+        subscriber.awaitReceived(2);
+        Thread.sleep(100);
+        assertEquals(frameSource.framesRead, 2);
+
+        subscriber.subscription.request(3);
+        subscriber.awaitReceived(5);
+        Thread.sleep(100);
+        assertEquals(frameSource.framesRead, 5);
+    }
+
+    private KVSAudioStreamPublisher publisher(AudioFrameSource frameSource) {
+        return publisher(frameSource, null, AudioChunkPolicy.frames(1));
+    }
+
+    /**
+     * @param recording the call is recorded to, null to record nothing
+     */
+    private KVSAudioStreamPublisher publisher(AudioFrameSource frameSource, ByteArrayOutputStream recording,
+                                              AudioChunkPolicy chunkPolicy) {
+        return new KVSAudioStreamPublisher(frameSource, "call",
+                recording == null ? new ByteArrayOutputStream() : recording, recording != null, chunkPolicy, executor,
+                new AudioReplayBuffer(BYTES_PER_SECOND * 10, BYTES_PER_SECOND),
+                new SessionTimeline(BYTES_PER_SECOND), null, BYTES_PER_SECOND, () -> null, new TestMetricsUtil());
+    }
+
+    private static byte[] streamBytes(int fromFrame, int toFrame) {
+        ByteBuffer bytes = ByteBuffer.allocate((toFrame - fromFrame) * FRAME_BYTES);
+        for (int frame = fromFrame; frame < toFrame; frame++) {
+            for (int i = 0; i < FRAME_BYTES; i++) {
+                bytes.put((byte) frame);
+            }
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Stream of a fixed number of frames, read by one subscription at a time.
+     */
+    private static class CountingFrameSource implements AudioFrameSource {
+        private final long frames;
+        private volatile long framesRead;
+
+        private CountingFrameSource(long frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public int readAudioFrame(ByteBuffer audioBuffer) {
+            if (framesRead == frames) {
+                return 0;
+            }
+            for (int i = 0; i < FRAME_BYTES; i++) {
+                audioBuffer.put((byte) framesRead);
+            }
+            framesRead++;
+            return FRAME_BYTES;
+        }
+
+        @Override
+        public int peekAudioFrameSize() {
+            return framesRead == frames ? 0 : FRAME_BYTES;
+        }
+    }
+
+    private static class CollectingSubscriber implements Subscriber<AudioStream> {
+        private final long initialDemand;
+        private final ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile int received;
+
+        private CollectingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(initialDemand);
+        }
+
+        @Override
+        public synchronized void onNext(AudioStream event) {
+            byte[] chunk = ((AudioEvent) event).audioChunk().asByteArray();
+            audio.write(chunk, 0, chunk.length);
+            received++;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            throw new AssertionError("Unexpected error", t);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        private void awaitReceived(int events) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (received < events) {
+                assertTrue(System.nanoTime() < deadline, "received " + received + " of " + events + " events");
+                Thread.sleep(5);
+            }
+        }
+    }
+}
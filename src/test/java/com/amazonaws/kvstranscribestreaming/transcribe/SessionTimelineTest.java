@@ -0,0 +1,77 @@
+package com.amazonaws.kvstranscribestreaming.transcribe;
+
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SessionTimelineTest {
+
+    private static final int BYTES_PER_SECOND = 16_000;
+
+    @Test
+    public void resultsOfARotatedSessionAreCutAtTheLastFinalResult() {
+        SessionTimeline timeline = new SessionTimeline(BYTES_PER_SECOND);
+        SessionTimeline.Session first = timeline.newSession();
+        first.remap(event(result(false, word("hello", 0.0, 0.5), word("world", 0.6, 1.0))));
+        assertEquals(timeline.getStableOffsetBytes(), BYTES_PER_SECOND);
+
+        // the successor's audio starts half a second before the end of the final result
+        SessionTimeline.Session second = timeline.newSession();
+        second.audioSent(BYTES_PER_SECOND / 2, BYTES_PER_SECOND * 2);
+
+        // a final result straddling the cutoff keeps only its words after it
+        List<Result> results = second.remap(event(result(false, word("world", 0.1, 0.5), word("again", 0.6, 1.0))))
+                .transcript().results();
+        assertEquals(results.size(), 1);
+        assertEquals(results.get(0).alternatives().get(0).transcript(), "again");
+        assertEquals(results.get(0).startTime(), 1.1, 1e-9);
+    }
+
+    @Test
+    public void partialResultsAreCutButDoNotMoveTheCutoff() {
+        SessionTimeline timeline = new SessionTimeline(BYTES_PER_SECOND);
+        timeline.newSession().remap(event(result(false, word("hello", 0.0, 1.0))));
+        SessionTimeline.Session second = timeline.newSession();
+
+        // covered by the final result already published
+        assertTrue(second.remap(event(result(true, word("hello", 0.2, 0.9)))).transcript().results().isEmpty());
+
+        List<Result> straddling = second.remap(event(result(true, word("hello", 0.2, 0.9), word("there", 1.2, 1.5))))
+                .transcript().results();
+        assertEquals(straddling.size(), 1);
+        assertEquals(straddling.get(0).alternatives().get(0).transcript(), "there");
+        assertEquals(timeline.getStableOffsetBytes(), BYTES_PER_SECOND);
+    }
+
+    private static TranscriptEvent event(Result result) {
+        return TranscriptEvent.builder().transcript(Transcript.builder().results(result).build()).build();
+    }
+
+    private static Result result(boolean partial, Item... items) {
+        StringBuilder transcript = new StringBuilder();
+        for (Item item : items) {
+            transcript.append(transcript.length() == 0 ? "" : " ").append(item.content());
+        }
+        return Result.builder()
+                .resultId("result")
+                .isPartial(partial)
+                .startTime(items[0].startTime())
+                .endTime(items[items.length - 1].endTime())
+                .alternatives(Alternative.builder().transcript(transcript.toString()).items(items).build())
+                .build();
+    }
+
+    private static Item word(String content, double startTime, double endTime) {
+        return Item.builder().content(content).type(ItemType.PRONUNCIATION).startTime(startTime).endTime(endTime)
+                .build();
+    }
+}
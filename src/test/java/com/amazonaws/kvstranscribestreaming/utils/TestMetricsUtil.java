@@ -0,0 +1,32 @@
+package com.amazonaws.kvstranscribestreaming.utils;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * MetricsUtil keeping the sum of every metric recorded in memory instead of publishing it to CloudWatch.
+ */
+public class TestMetricsUtil extends MetricsUtil {
+
+    private final Map<String, DoubleAdder> sums = new ConcurrentHashMap<>();
+
+    public TestMetricsUtil() {
+        super(null, false);
+    }
+
+    @Override
+    public void recordMetric(String metricName, double value, StandardUnit unit) {
+        sums.computeIfAbsent(metricName, name -> new DoubleAdder()).add(value);
+    }
+
+    /**
+     * @return sum of the values recorded for the metric, 0 if none was
+     */
+    public double getSum(String metricName) {
+        DoubleAdder sum = sums.get(metricName);
+        return sum == null ? 0 : sum.sum();
+    }
+}